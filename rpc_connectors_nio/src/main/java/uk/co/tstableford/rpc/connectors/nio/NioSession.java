@@ -0,0 +1,285 @@
+package uk.co.tstableford.rpc.connectors.nio;
+
+import uk.co.tstableford.rpc.lib.RPC;
+import uk.co.tstableford.rpc.lib.stream.BlockStreamConnector;
+import uk.co.tstableford.rpc.lib.stream.Pausable;
+import uk.co.tstableford.rpc.lib.stream.StreamConnector;
+import uk.co.tstableford.rpc.lib.stream.StreamParser;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One connection driven by a selector thread, with its own parser and RPC.
+ *
+ * Incoming data is pushed into the parser by the selector thread, so the read methods
+ * always return NO_DATA, or ERROR_EXIT once closed. Writes can come from any thread. They
+ * are queued and then written by the selector thread with gathering writes.
+ * Handlers run on the selector thread unless the RPC is given another HandlerExecutor.
+ * Pausing reading takes the session out of the selector's read set, leaving data in the
+ * socket so TCP holds the sender back.
+ */
+public class NioSession implements BlockStreamConnector, Pausable {
+    // Cap on how many reads are done for one session before moving on to others.
+    private static final int MAX_READS_PER_WAKEUP = 16;
+    private final NioTransport transport;
+    private final SelectorLoop loop;
+    private final SocketChannel channel;
+    private final StreamParser parser;
+    private final RPC rpc;
+    private final ByteBuffer readBuffer;
+    private final ConcurrentLinkedQueue<ByteBuffer> outbound;
+    private final ByteBuffer[] gather = new ByteBuffer[16];
+    private final AtomicLong pendingBytes;
+    private final AtomicBoolean writeScheduled;
+    private final long maxPendingBytes;
+    private final AtomicBoolean open;
+    // Changed under this, read on the selector thread.
+    private volatile int readPauses = 0;
+    private SelectionKey key;
+    private boolean connected;
+
+    NioSession(NioTransport transport, SelectorLoop loop, SocketChannel channel, int frameSize, int readSize, long maxPendingBytes) {
+        this.transport = transport;
+        this.loop = loop;
+        this.channel = channel;
+        this.readBuffer = ByteBuffer.allocate(readSize);
+        this.outbound = new ConcurrentLinkedQueue<>();
+        this.pendingBytes = new AtomicLong();
+        this.writeScheduled = new AtomicBoolean();
+        this.maxPendingBytes = maxPendingBytes;
+        this.parser = new StreamParser(this, new byte[frameSize]);
+        this.parser.setDeliveryMode(StreamParser.DeliveryMode.VIEW);
+        this.rpc = new RPC(this);
+        this.rpc.attach(this.parser);
+        this.open = new AtomicBoolean(true);
+    }
+
+    public RPC getRPC() {
+        return this.rpc;
+    }
+
+    public StreamParser getParser() {
+        return this.parser;
+    }
+
+    public SocketChannel getChannel() {
+        return this.channel;
+    }
+
+    public boolean isOpen() {
+        return this.open.get();
+    }
+
+    /**
+     * Bytes queued but not yet written to the socket.
+     */
+    public long getPendingBytes() {
+        return this.pendingBytes.get();
+    }
+
+    /**
+     * Register with the selector. Called on the selector thread.
+     */
+    void register(boolean connected) throws IOException {
+        this.connected = connected;
+        this.key = this.channel.register(this.loop.getSelector(), connected ? this.readOps() : SelectionKey.OP_CONNECT, this);
+        if (connected) {
+            this.opened();
+        }
+    }
+
+    private void opened() {
+        this.transport.getHandler().onOpen(this);
+        if (!this.outbound.isEmpty()) {
+            this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    void onConnectable() {
+        try {
+            if (this.channel.finishConnect()) {
+                this.connected = true;
+                this.key.interestOps(this.readOps());
+                this.opened();
+            }
+        } catch (IOException e) {
+            this.close();
+        }
+    }
+
+    void onReadable() {
+        try {
+            for (int i = 0; i < MAX_READS_PER_WAKEUP; i++) {
+                int read = this.channel.read(this.readBuffer);
+                if (read < 0) {
+                    this.close();
+                    return;
+                }
+                if (read == 0) {
+                    return;
+                }
+                this.parser.parse(this.readBuffer.array(), 0, read);
+                this.readBuffer.clear();
+                if (this.readPauses > 0) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            this.close();
+        }
+    }
+
+    void onWritable() {
+        try {
+            while (true) {
+                int count = 0;
+                for (ByteBuffer buffer: this.outbound) {
+                    this.gather[count++] = buffer;
+                    if (count == this.gather.length) {
+                        break;
+                    }
+                }
+                if (count == 0) {
+                    break;
+                }
+                long written = this.channel.write(this.gather, 0, count);
+                this.pendingBytes.addAndGet(-written);
+                for (int i = 0; i < count; i++) {
+                    if (!this.gather[i].hasRemaining()) {
+                        this.outbound.poll();
+                    }
+                    this.gather[i] = null;
+                }
+                if (written == 0) {
+                    // The socket buffer is full, wait to be told it's writable again.
+                    return;
+                }
+            }
+            this.key.interestOps(this.readOps());
+            this.writeScheduled.set(false);
+            // A write may have been queued after the last drain but before the flag was cleared.
+            if (!this.outbound.isEmpty() && this.writeScheduled.compareAndSet(false, true)) {
+                this.key.interestOps(this.readOps() | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            this.close();
+        }
+    }
+
+    @Override
+    public int writeData(byte[] data) {
+        return this.writeData(data, 0, data.length);
+    }
+
+    /**
+     * Queue data to be written by the selector thread.
+     * @return length, or 0 if the session is closed or too much is already waiting to be written.
+     */
+    @Override
+    public int writeData(byte[] data, int offset, int length) {
+        if (!this.open.get() || this.pendingBytes.get() + length > this.maxPendingBytes) {
+            return 0;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        copy.put(data, offset, length);
+        copy.flip();
+        this.pendingBytes.addAndGet(length);
+        this.outbound.add(copy);
+
+        if (this.writeScheduled.compareAndSet(false, true)) {
+            Runnable enableWrite = new Runnable() {
+                @Override
+                public void run() {
+                    if (key != null && key.isValid() && connected) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+            };
+            if (this.loop.inLoop()) {
+                enableWrite.run();
+            } else {
+                this.loop.execute(enableWrite);
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public synchronized void pauseReading() {
+        if (this.readPauses++ == 0) {
+            this.updateReadInterest();
+        }
+    }
+
+    @Override
+    public synchronized void resumeReading() {
+        if (this.readPauses > 0 && --this.readPauses == 0) {
+            this.updateReadInterest();
+        }
+    }
+
+    public boolean isReadingPaused() {
+        return this.readPauses > 0;
+    }
+
+    private int readOps() {
+        return this.readPauses > 0 ? 0 : SelectionKey.OP_READ;
+    }
+
+    private void updateReadInterest() {
+        Runnable update = new Runnable() {
+            @Override
+            public void run() {
+                if (key != null && key.isValid() && connected) {
+                    key.interestOps((key.interestOps() & ~SelectionKey.OP_READ) | readOps());
+                }
+            }
+        };
+        if (this.loop.inLoop()) {
+            update.run();
+        } else {
+            this.loop.execute(update);
+        }
+    }
+
+    @Override
+    public int readData() {
+        return this.open.get() ? StreamConnector.NO_DATA : StreamConnector.ERROR_EXIT;
+    }
+
+    @Override
+    public int readData(byte[] buffer, int offset, int length) {
+        return this.readData();
+    }
+
+    @Override
+    public int readData(ByteBuffer buffer) {
+        return this.readData();
+    }
+
+    /**
+     * Close the connection. Anything not yet written is lost.
+     */
+    public void close() {
+        if (!this.open.compareAndSet(true, false)) {
+            return;
+        }
+        if (this.key != null) {
+            this.key.cancel();
+        }
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            // Closing anyway.
+        }
+        this.outbound.clear();
+        this.rpc.shutdown();
+        this.transport.closed(this);
+    }
+}
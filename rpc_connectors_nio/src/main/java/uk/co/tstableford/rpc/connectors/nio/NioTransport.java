@@ -0,0 +1,226 @@
+package uk.co.tstableford.rpc.connectors.nio;
+
+import uk.co.tstableford.rpc.lib.metrics.MetricsListener;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs StreamParser/RPC sessions over TCP or Unix domain sockets on a few selector threads.
+ *
+ * <pre>
+ * NioTransport transport = new NioTransport(2, handler);
+ * transport.start();
+ * transport.listen(new InetSocketAddress(4000));
+ * NioSession session = transport.connect(new InetSocketAddress("bridge", 4000));
+ * </pre>
+ * Sessions are spread over the selector threads as they are accepted or connected.
+ */
+public class NioTransport {
+    private final SelectorLoop[] loops;
+    private final SessionHandler handler;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final Set<NioSession> sessions = ConcurrentHashMap.newKeySet();
+    private int frameSize = 1024;
+    private int readSize = 4096;
+    private long maxPendingBytes = 1024 * 1024;
+    private volatile MetricsListener metrics = null;
+
+    public NioTransport(int selectorThreads, SessionHandler handler) throws IOException {
+        this.handler = handler;
+        this.loops = new SelectorLoop[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++) {
+            this.loops[i] = new SelectorLoop(this, "NioTransport selector " + i);
+        }
+    }
+
+    /**
+     * The largest packet payload a session can receive. Defaults to 1024.
+     */
+    public void setFrameSize(int frameSize) {
+        this.frameSize = frameSize;
+    }
+
+    /**
+     * The size of each session's read buffer. Defaults to 4096.
+     */
+    public void setReadSize(int readSize) {
+        this.readSize = readSize;
+    }
+
+    /**
+     * How many bytes a session can have waiting to be written before writes are refused.
+     */
+    public void setMaxPendingBytes(long maxPendingBytes) {
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Give each new session's parser and RPC this listener. One Metrics can be shared by all
+     * sessions. Sessions already open keep what they had.
+     */
+    public void setMetrics(MetricsListener metrics) {
+        this.metrics = metrics;
+    }
+
+    public void start() {
+        for (SelectorLoop loop: this.loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * Accept connections on address. Accepted sessions are opened on any selector thread.
+     */
+    public ServerSocketChannel listen(SocketAddress address) throws IOException {
+        return this.listen(ServerSocketChannel.open(), address);
+    }
+
+    /**
+     * Accept connections on a Unix domain socket. Needs Java 16 or later.
+     * @throws UnsupportedOperationException On older JVMs.
+     */
+    public ServerSocketChannel listenUnix(String path) throws IOException {
+        ServerSocketChannel server;
+        try {
+            Method open = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+            server = (ServerSocketChannel) open.invoke(null, unixFamily());
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later.", e);
+        }
+        return this.listen(server, unixAddress(path));
+    }
+
+    private ServerSocketChannel listen(final ServerSocketChannel server, SocketAddress address) throws IOException {
+        server.configureBlocking(false);
+        server.bind(address);
+        final SelectorLoop loop = this.loops[0];
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.register(loop.getSelector(), SelectionKey.OP_ACCEPT);
+                } catch (IOException e) {
+                    System.err.println("Failed to listen: " + e.getMessage());
+                }
+            }
+        });
+        return server;
+    }
+
+    /**
+     * Start connecting to address. The handler's onOpen is called once connected,
+     * anything written before then is queued.
+     */
+    public NioSession connect(SocketAddress address) throws IOException {
+        return this.connect(SocketChannel.open(), address);
+    }
+
+    /**
+     * Connect to a Unix domain socket. Needs Java 16 or later.
+     * @throws UnsupportedOperationException On older JVMs.
+     */
+    public NioSession connectUnix(String path) throws IOException {
+        SocketChannel channel;
+        try {
+            Method open = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+            channel = (SocketChannel) open.invoke(null, unixFamily());
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later.", e);
+        }
+        return this.connect(channel, unixAddress(path));
+    }
+
+    private NioSession connect(SocketChannel channel, SocketAddress address) throws IOException {
+        channel.configureBlocking(false);
+        boolean connected = channel.connect(address);
+        return this.open(channel, connected);
+    }
+
+    /**
+     * Close every session and listener and stop the selector threads.
+     */
+    public void close() {
+        for (SelectorLoop loop: this.loops) {
+            loop.stop();
+        }
+    }
+
+    public Set<NioSession> getSessions() {
+        return this.sessions;
+    }
+
+    SessionHandler getHandler() {
+        return this.handler;
+    }
+
+    void accept(ServerSocketChannel server) {
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                channel.configureBlocking(false);
+                this.open(channel, true);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to accept: " + e.getMessage());
+        }
+    }
+
+    void closed(NioSession session) {
+        if (this.sessions.remove(session)) {
+            this.handler.onClose(session);
+        }
+    }
+
+    private NioSession open(SocketChannel channel, final boolean connected) {
+        SelectorLoop loop = this.loops[(this.nextLoop.getAndIncrement() & Integer.MAX_VALUE) % this.loops.length];
+        final NioSession session = new NioSession(this, loop, channel, this.frameSize, this.readSize, this.maxPendingBytes);
+        if (this.metrics != null) {
+            session.getParser().setMetrics(this.metrics);
+            session.getRPC().setMetrics(this.metrics);
+        }
+        this.sessions.add(session);
+        Runnable register = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    session.register(connected);
+                } catch (IOException e) {
+                    session.close();
+                }
+            }
+        };
+        if (loop.inLoop()) {
+            register.run();
+        } else {
+            loop.execute(register);
+        }
+        return session;
+    }
+
+    private static ProtocolFamily unixFamily() {
+        try {
+            return StandardProtocolFamily.valueOf("UNIX");
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later.", e);
+        }
+    }
+
+    private static SocketAddress unixAddress(String path) {
+        try {
+            Class<?> addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+            return (SocketAddress) addressClass.getMethod("of", String.class).invoke(null, path);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Unix domain sockets need Java 16 or later.", e);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package uk.co.tstableford.rpc.connectors.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector and the thread that drives it. Other threads hand it work with execute().
+ *
+ * A RuntimeException from a task only drops that task, and one from a session's handlers
+ * closes only that session, so the other sessions on the loop carry on.
+ */
+class SelectorLoop implements Runnable {
+    private final NioTransport transport;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    private final Thread thread;
+    private volatile boolean running;
+
+    SelectorLoop(NioTransport transport, String name) throws IOException {
+        this.transport = transport;
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.running = true;
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        this.thread.start();
+    }
+
+    Selector getSelector() {
+        return this.selector;
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    /**
+     * Run task on the selector thread.
+     */
+    void execute(Runnable task) {
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    void stop() {
+        this.running = false;
+        this.selector.wakeup();
+        try {
+            this.thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            try {
+                this.selector.select();
+            } catch (IOException e) {
+                System.err.println("Selector failed: " + e.getMessage());
+                break;
+            }
+
+            Runnable task;
+            while ((task = this.tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Selector task failed: " + e);
+                }
+            }
+
+            Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    try {
+                        this.transport.accept((ServerSocketChannel) key.channel());
+                    } catch (RuntimeException e) {
+                        System.err.println("Accept failed: " + e);
+                    }
+                    continue;
+                }
+                NioSession session = (NioSession) key.attachment();
+                try {
+                    if (key.isConnectable()) {
+                        session.onConnectable();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        session.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        session.onWritable();
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("Session failed, closing it: " + e);
+                    this.close(session);
+                }
+            }
+        }
+
+        for (SelectionKey key: this.selector.keys()) {
+            if (key.attachment() instanceof NioSession) {
+                this.close((NioSession) key.attachment());
+            } else {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // Closing anyway.
+                }
+            }
+        }
+        try {
+            this.selector.close();
+        } catch (IOException e) {
+            // Closing anyway.
+        }
+    }
+
+    private void close(NioSession session) {
+        try {
+            session.close();
+        } catch (RuntimeException e) {
+            System.err.println("Session failed to close: " + e);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package uk.co.tstableford.rpc.connectors.nio;
+
+/**
+ * Told when sessions open and close. onOpen is called on the session's selector thread,
+ * onClose on whichever thread closed the session, usually the selector thread.
+ */
+public interface SessionHandler {
+    /**
+     * The connection is ready. Register functions on session.getRPC() here, nothing is
+     * read from the session until this returns.
+     */
+    void onOpen(NioSession session);
+
+    void onClose(NioSession session);
+}
@@ -2,10 +2,17 @@ package uk.co.tstableford.rpc.connectors.pc;
 
 import com.fazecast.jSerialComm.SerialPort;
 
+import uk.co.tstableford.rpc.lib.stream.BlockStreamConnector;
 import uk.co.tstableford.rpc.lib.stream.StreamConnector;
 
-public class SerialConnector implements StreamConnector {
+import java.nio.ByteBuffer;
+
+public class SerialConnector implements BlockStreamConnector {
     private SerialPort serialPort;
+    // Reads all happen on the parser thread so these can be reused.
+    private byte[] singleByte = new byte[1];
+    private byte[] scratch = new byte[0];
+
     public SerialConnector(SerialPort port) {
         this.serialPort = port;
     }
@@ -13,9 +20,8 @@ public class SerialConnector implements StreamConnector {
     @Override
     public int readData() {
         if (serialPort.isOpen()) {
-            byte[] buffer = new byte[1];
-            if (serialPort.readBytes(buffer, 1) == 1) {
-                return (buffer[0] & 0xff);
+            if (serialPort.readBytes(singleByte, 1) == 1) {
+                return (singleByte[0] & 0xff);
             } else {
                 return StreamConnector.NO_DATA;
             }
@@ -24,6 +30,64 @@ public class SerialConnector implements StreamConnector {
         }
     }
 
+    @Override
+    public int readData(byte[] buffer, int offset, int length) {
+        if (!serialPort.isOpen()) {
+            return StreamConnector.ERROR_EXIT;
+        }
+        if (length <= 0) {
+            return StreamConnector.NO_DATA;
+        }
+        // Only ask for what is already waiting, otherwise a blocking read would wait
+        // for the whole length. With nothing waiting block for a single byte.
+        int available = serialPort.bytesAvailable();
+        int toRead = Math.max(1, Math.min(available, length));
+
+        int read;
+        if (offset == 0) {
+            read = serialPort.readBytes(buffer, toRead);
+        } else {
+            byte[] tmp = getScratch(toRead);
+            read = serialPort.readBytes(tmp, toRead);
+            if (read > 0) {
+                System.arraycopy(tmp, 0, buffer, offset, read);
+            }
+        }
+
+        if (read > 0) {
+            return read;
+        } else if (read < 0) {
+            return StreamConnector.ERROR_EXIT;
+        } else {
+            return StreamConnector.NO_DATA;
+        }
+    }
+
+    @Override
+    public int readData(ByteBuffer buffer) {
+        int read;
+        if (buffer.hasArray()) {
+            read = readData(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (read > 0) {
+                buffer.position(buffer.position() + read);
+            }
+        } else {
+            byte[] tmp = getScratch(buffer.remaining());
+            read = readData(tmp, 0, buffer.remaining());
+            if (read > 0) {
+                buffer.put(tmp, 0, read);
+            }
+        }
+        return read;
+    }
+
+    private byte[] getScratch(int size) {
+        if (scratch.length < size) {
+            scratch = new byte[size];
+        }
+        return scratch;
+    }
+
     @Override
     public int writeData(byte[] data) {
         if (serialPort.isOpen()) {
@@ -32,4 +96,18 @@ public class SerialConnector implements StreamConnector {
             return 0;
         }
     }
-}
\ No newline at end of file
+
+    @Override
+    public int writeData(byte[] data, int offset, int length) {
+        if (!serialPort.isOpen()) {
+            return 0;
+        }
+        if (offset == 0) {
+            return serialPort.writeBytes(data, length);
+        }
+        // Writes can come from any thread so don't share the read scratch buffer.
+        byte[] tmp = new byte[length];
+        System.arraycopy(data, offset, tmp, 0, length);
+        return serialPort.writeBytes(tmp, length);
+    }
+}
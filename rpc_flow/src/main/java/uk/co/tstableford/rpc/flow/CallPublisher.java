@@ -0,0 +1,120 @@
+package uk.co.tstableford.rpc.flow;
+
+import uk.co.tstableford.rpc.lib.CallQueue;
+import uk.co.tstableford.rpc.lib.RPC;
+import uk.co.tstableford.rpc.lib.stream.Pausable;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Publishes the calls an RPC receives, for one function ID or for every ID a filter accepts,
+ * to a single Flow.Subscriber with demand based backpressure.
+ *
+ * Calls are buffered in a CallQueue from the moment the publisher is made, so none are missed
+ * before subscribing, and its overflow policy decides what happens when the subscriber falls
+ * behind. PAUSE_READING stops the Pausable, a PausableConnector or NioSession, from reading
+ * until the subscriber catches up. Cancelling the subscription removes the publisher's own
+ * handler from the RPC, and nothing else, and further calls go to its other handlers.
+ */
+public class CallPublisher implements Flow.Publisher<CallQueue.Call> {
+    public static final int DEFAULT_BUFFER_SIZE = Flow.defaultBufferSize();
+    private final RPC rpc;
+    private final CallQueue queue;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+    private final Integer functionId;
+
+    /**
+     * Publish calls to functionId, replacing any Handler already registered for it with
+     * registerFunction. A reader function or template handler registered for the ID is still
+     * tried first, so calls they accept never reach the publisher.
+     * @param reading What to pause with PAUSE_READING, may be null for other policies.
+     */
+    public CallPublisher(RPC rpc, int functionId, int bufferSize, CallQueue.Overflow overflow, Pausable reading) {
+        this.rpc = rpc;
+        this.functionId = functionId;
+        this.queue = new CallQueue(bufferSize, overflow, reading);
+        rpc.registerFunction(functionId, this.queue);
+    }
+
+    /**
+     * Publish calls to every function ID filter accepts that isn't registered to a function
+     * handler, after any handlers already added.
+     */
+    public CallPublisher(RPC rpc, CallQueue.Filter filter, int bufferSize, CallQueue.Overflow overflow, Pausable reading) {
+        this.rpc = rpc;
+        this.functionId = null;
+        this.queue = new CallQueue(bufferSize, overflow, reading);
+        this.queue.setFilter(filter);
+        rpc.addHandler(this.queue);
+    }
+
+    public CallQueue getQueue() {
+        return this.queue;
+    }
+
+    /**
+     * Deliver what is buffered and complete the subscriber, say when the link closes.
+     */
+    public void complete() {
+        this.remove();
+        this.queue.complete();
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super CallQueue.Call> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber is null.");
+        }
+        if (!this.subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("CallPublisher only allows one subscriber."));
+            return;
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                queue.request(n);
+            }
+
+            @Override
+            public void cancel() {
+                remove();
+                queue.cancel();
+            }
+        });
+        this.queue.subscribe(new CallQueue.Sink() {
+            @Override
+            public void onCall(CallQueue.Call call) {
+                subscriber.onNext(call);
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                remove();
+                subscriber.onError(error);
+            }
+
+            @Override
+            public void onComplete() {
+                subscriber.onComplete();
+            }
+        });
+    }
+
+    private void remove() {
+        if (this.functionId != null) {
+            this.rpc.unregisterFunction(this.functionId, this.queue);
+        } else {
+            this.rpc.removeHandler(this.queue);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package uk.co.tstableford.rpc.flow;
+
+import uk.co.tstableford.rpc.lib.CallQueue;
+import uk.co.tstableford.rpc.lib.RPC;
+import uk.co.tstableford.rpc.lib.serializer.LReader;
+import uk.co.tstableford.rpc.lib.serializer.LSerializer;
+import uk.co.tstableford.rpc.lib.serializer.LWriter;
+import uk.co.tstableford.rpc.lib.stream.StreamConnector;
+import uk.co.tstableford.rpc.lib.stream.StreamParser;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+public class CallPublisherTest {
+    private static final StreamConnector NOWHERE = new StreamConnector() {
+        @Override
+        public int readData() {
+            return StreamConnector.NO_DATA;
+        }
+
+        @Override
+        public int writeData(byte[] data) {
+            return data.length;
+        }
+    };
+
+    public static void main(String[] args) {
+        testSingleSubscriber();
+        System.out.println();
+        testCancel();
+        System.out.println();
+        testError();
+        System.out.println();
+        testOtherHandlers();
+    }
+
+    public static void testSingleSubscriber() {
+        RecordingRPC rpc = new RecordingRPC();
+        CallPublisher publisher = new CallPublisher(rpc, 5, 4, CallQueue.Overflow.DROP_NEWEST, null);
+        Recorder first = new Recorder(Long.MAX_VALUE);
+        Recorder second = new Recorder(Long.MAX_VALUE);
+        publisher.subscribe(first);
+        publisher.subscribe(second);
+        boolean pass = send(rpc, 5);
+        // The second subscriber is turned away without disturbing the first.
+        pass = pass && first.calls.equals(Arrays.asList(5)) && first.error == null &&
+                second.subscribed && second.calls.isEmpty() && second.error instanceof IllegalStateException &&
+                rpc.removed.isEmpty();
+        System.out.println("Single subscriber test PASS = " + pass);
+    }
+
+    public static void testCancel() {
+        RecordingRPC rpc = new RecordingRPC();
+        CallPublisher function = new CallPublisher(rpc, 5, 4, CallQueue.Overflow.DROP_NEWEST, null);
+        CallPublisher filtered = new CallPublisher(rpc, new CallQueue.Filter() {
+            @Override
+            public boolean accept(int functionId) {
+                return functionId >= 10;
+            }
+        }, 4, CallQueue.Overflow.DROP_NEWEST, null);
+        // Added after the publishers, so it only sees what they leave.
+        final List<Integer> fallback = new ArrayList<>();
+        rpc.addHandler(new RPC.Handler() {
+            @Override
+            public boolean onRPC(int functionId, LSerializer object) {
+                fallback.add(functionId);
+                return true;
+            }
+        });
+        Recorder functionSubscriber = new Recorder(Long.MAX_VALUE);
+        Recorder filteredSubscriber = new Recorder(Long.MAX_VALUE);
+        function.subscribe(functionSubscriber);
+        filtered.subscribe(filteredSubscriber);
+
+        boolean pass = send(rpc, 5) && send(rpc, 10);
+        functionSubscriber.subscription.cancel();
+        filteredSubscriber.subscription.cancel();
+        pass = pass && send(rpc, 5) && send(rpc, 10);
+        // Both publishers leave the RPC, so later calls reach its other handlers.
+        pass = pass && functionSubscriber.calls.equals(Arrays.asList(5)) && filteredSubscriber.calls.equals(Arrays.asList(10)) &&
+                rpc.removed.equals(Arrays.<Object>asList(5, filtered.getQueue())) && fallback.equals(Arrays.asList(5, 10));
+        System.out.println("Cancel test PASS = " + pass);
+    }
+
+    public static void testError() {
+        RecordingRPC rpc = new RecordingRPC();
+        final List<Integer> fallback = new ArrayList<>();
+        rpc.addHandler(new RPC.Handler() {
+            @Override
+            public boolean onRPC(int functionId, LSerializer object) {
+                fallback.add(functionId);
+                return true;
+            }
+        });
+        CallPublisher publisher = new CallPublisher(rpc, 5, 1, CallQueue.Overflow.FAIL, null);
+        // No demand, so the second call overflows the buffer.
+        Recorder subscriber = new Recorder(0);
+        publisher.subscribe(subscriber);
+        boolean pass = send(rpc, 5) && send(rpc, 5) && send(rpc, 5);
+        pass = pass && subscriber.error instanceof IllegalStateException && subscriber.calls.isEmpty() &&
+                rpc.removed.equals(Arrays.<Object>asList(5)) && fallback.equals(Arrays.asList(5));
+        System.out.println("Error test PASS = " + pass);
+    }
+
+    public static void testOtherHandlers() {
+        RecordingRPC rpc = new RecordingRPC();
+        final List<String> seen = new ArrayList<>();
+        // Only takes calls with an argument, so argumentless ones reach the publisher.
+        rpc.registerReaderFunction(5, new RPC.ReaderHandler() {
+            @Override
+            public boolean onRPC(int functionId, LReader reader) {
+                seen.add("reader");
+                return reader.size() > 0;
+            }
+        });
+        CallPublisher publisher = new CallPublisher(rpc, 5, 4, CallQueue.Overflow.DROP_NEWEST, null);
+        Recorder subscriber = new Recorder(Long.MAX_VALUE);
+        publisher.subscribe(subscriber);
+        boolean pass = send(rpc, 5);
+        // A handler registered after the publisher replaces it and outlives the cancel.
+        rpc.registerFunction(5, new RPC.Handler() {
+            @Override
+            public boolean onRPC(int functionId, LSerializer object) {
+                seen.add("newer");
+                return true;
+            }
+        });
+        subscriber.subscription.cancel();
+        pass = pass && send(rpc, 5);
+        pass = pass && subscriber.calls.equals(Arrays.asList(5)) &&
+                seen.equals(Arrays.asList("reader", "reader", "newer"));
+        System.out.println("Other handlers test PASS = " + pass);
+    }
+
+    /**
+     * Parse an argumentless call to functionId as if it had been read by rpc.
+     */
+    private static boolean send(RecordingRPC rpc, int functionId) {
+        try {
+            LWriter writer = new LWriter();
+            writer.beginCall(functionId, 0);
+            ByteBuffer packet = writer.finish();
+            rpc.parser.parse(packet.array(), packet.arrayOffset(), packet.limit());
+            return true;
+        } catch (LSerializer.InvalidTypeException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Records the function IDs and handlers publishers remove themselves with.
+     */
+    private static class RecordingRPC extends RPC {
+        private final StreamParser parser = new StreamParser(NOWHERE, new byte[256]);
+        private final List<Object> removed = new ArrayList<>();
+
+        RecordingRPC() {
+            super(NOWHERE);
+            this.attach(this.parser);
+        }
+
+        @Override
+        public boolean unregisterFunction(int functionId, Handler handler) {
+            this.removed.add(functionId);
+            return super.unregisterFunction(functionId, handler);
+        }
+
+        @Override
+        public void removeHandler(Handler handler) {
+            this.removed.add(handler);
+            super.removeHandler(handler);
+        }
+    }
+
+    private static class Recorder implements Flow.Subscriber<CallQueue.Call> {
+        private final long demand;
+        private final List<Integer> calls = new ArrayList<>();
+        private Flow.Subscription subscription;
+        private boolean subscribed = false;
+        private Throwable error;
+
+        Recorder(long demand) {
+            this.demand = demand;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            this.subscribed = true;
+            if (this.demand > 0) {
+                subscription.request(this.demand);
+            }
+        }
+
+        @Override
+        public void onNext(CallQueue.Call call) {
+            this.calls.add(call.getFunctionId());
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package uk.co.tstableford.rpc.processor;
+
+import uk.co.tstableford.rpc.lib.object.LType;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The Java types an RPCService method can take or reply with, and how each is read and written.
+ */
+enum FieldKind {
+    BYTE("byte", "Byte", LType.INT8, EnumSet.of(LType.INT8)),
+    SHORT("short", "Short", LType.INT16, EnumSet.of(LType.INT8, LType.UINT8, LType.INT16)),
+    INT("int", "Integer", LType.INT32, EnumSet.of(LType.INT8, LType.UINT8, LType.INT16, LType.UINT16, LType.INT32)),
+    LONG("long", "Long", LType.INT64, EnumSet.of(LType.INT8, LType.UINT8, LType.INT16, LType.UINT16, LType.INT32,
+            LType.UINT32, LType.INT64, LType.VARINT, LType.UVARINT)),
+    BOOLEAN("boolean", "Boolean", LType.UINT8, EnumSet.of(LType.UINT8)),
+    FLOAT("float", "Float", LType.FLOAT, EnumSet.of(LType.FLOAT)),
+    STRING("String", "String", LType.STRING, EnumSet.of(LType.STRING));
+
+    private final String primitive, boxed;
+    private final LType defaultType;
+    private final Set<LType> allowed;
+
+    FieldKind(String primitive, String boxed, LType defaultType, Set<LType> allowed) {
+        this.primitive = primitive;
+        this.boxed = boxed;
+        this.defaultType = defaultType;
+        this.allowed = allowed;
+    }
+
+    String getPrimitive() {
+        return this.primitive;
+    }
+
+    LType getDefaultType() {
+        return this.defaultType;
+    }
+
+    boolean allows(LType type) {
+        return this.allowed.contains(type);
+    }
+
+    String allowedTypes() {
+        return Arrays.toString(this.allowed.toArray());
+    }
+
+    static FieldKind forPrimitive(String name) {
+        for (FieldKind kind: values()) {
+            if (kind.primitive.equals(name)) {
+                return kind;
+            }
+        }
+        return null;
+    }
+
+    static FieldKind forBoxed(String qualifiedName) {
+        for (FieldKind kind: values()) {
+            if (("java.lang." + kind.boxed).equals(qualifiedName)) {
+                return kind;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * An expression that checks the wire type expression typeExpr is exactly type, so a value
+     * is never narrowed into a parameter too small for it.
+     */
+    static String typeCheck(String typeExpr, LType type) {
+        return typeExpr + " == LType." + type.name();
+    }
+
+    /**
+     * An expression reading field index from an LReader or LSerializer as this kind.
+     * @param reader True for an LReader, false for an LSerializer.
+     */
+    String read(String source, String index, boolean reader) {
+        String integer = source + (reader ? ".getLong(" : ".longAt(") + index + ")";
+        switch (this) {
+            case BYTE:
+                return "(byte) " + integer;
+            case SHORT:
+                return "(short) " + integer;
+            case INT:
+                return "(int) " + integer;
+            case LONG:
+                return integer;
+            case BOOLEAN:
+                return integer + " != 0";
+            case FLOAT:
+                return source + (reader ? ".getFloat(" : ".floatValueAt(") + index + ")";
+            default:
+                return source + (reader ? ".getString(" : ".stringAt(") + index + ")";
+        }
+    }
+
+    /**
+     * A statement writing value to an LWriter as type.
+     */
+    String write(String writer, String value, LType type) {
+        switch (this) {
+            case BOOLEAN:
+                return writer + ".writeUInt8(" + value + " ? 1 : 0);";
+            case FLOAT:
+                return writer + ".writeFloat(" + value + ");";
+            case STRING:
+                return writer + ".writeString(" + value + ");";
+            default:
+                return writer + ".writeInteger(LType." + type.name() + ", " + value + ");";
+        }
+    }
+}
@@ -0,0 +1,447 @@
+package uk.co.tstableford.rpc.processor;
+
+import uk.co.tstableford.rpc.lib.annotation.Field;
+import uk.co.tstableford.rpc.lib.annotation.RPCFunction;
+import uk.co.tstableford.rpc.lib.annotation.RPCService;
+import uk.co.tstableford.rpc.lib.object.LType;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates a Stub and a Skeleton for each RPCService interface. The generated code writes
+ * and reads fields directly with LWriter and LReader, so nothing is looked up by reflection at
+ * runtime and calls don't build LObjects.
+ *
+ * Signatures are checked while compiling: every method needs a unique function ID, and
+ * parameter and reply types must be ones that can be sent. See Field for the type rules.
+ */
+@SupportedAnnotationTypes("uk.co.tstableford.rpc.lib.annotation.RPCService")
+public class RPCProcessor extends AbstractProcessor {
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element: roundEnv.getElementsAnnotatedWith(RPCService.class)) {
+            if (element.getKind() != ElementKind.INTERFACE) {
+                this.error(element, "@RPCService can only be used on interfaces.");
+                continue;
+            }
+            TypeElement service = (TypeElement) element;
+            List<Function> functions = this.functions(service);
+            if (functions == null) {
+                continue;
+            }
+            try {
+                this.writeStub(service, functions);
+                this.writeSkeleton(service, functions);
+            } catch (IOException e) {
+                this.error(service, "Couldn't write generated code: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * One RPCFunction method.
+     */
+    private static class Function {
+        private ExecutableElement method;
+        private int id;
+        private long timeoutMillis;
+        private List<String> names = new ArrayList<>();
+        private List<FieldKind> kinds = new ArrayList<>();
+        private List<LType> types = new ArrayList<>();
+        // Null for one way calls. VOID requests reply with no fields.
+        private FieldKind reply;
+        private boolean voidReply;
+        private LType replyType;
+    }
+
+    /**
+     * Check the methods of service.
+     * @return Its functions, or null if there were errors.
+     */
+    private List<Function> functions(TypeElement service) {
+        List<Function> functions = new ArrayList<>();
+        Map<Integer, ExecutableElement> ids = new HashMap<>();
+        boolean ok = true;
+        for (ExecutableElement method: ElementFilter.methodsIn(service.getEnclosedElements())) {
+            if (method.getModifiers().contains(Modifier.STATIC) || method.getModifiers().contains(Modifier.DEFAULT)) {
+                continue;
+            }
+            RPCFunction annotation = method.getAnnotation(RPCFunction.class);
+            if (annotation == null) {
+                this.error(method, "Methods of an @RPCService need an @RPCFunction.");
+                ok = false;
+                continue;
+            }
+            Function function = new Function();
+            function.method = method;
+            function.id = annotation.id();
+            function.timeoutMillis = annotation.timeoutMillis();
+            if (function.id < 0 || function.id > 0xffff) {
+                this.error(method, "Function ID " + function.id + " isn't a UINT16.");
+                ok = false;
+            } else if (ids.containsKey(function.id)) {
+                this.error(method, "Function ID " + function.id + " is already used by " + ids.get(function.id).getSimpleName() + ".");
+                ok = false;
+            }
+            ids.put(function.id, method);
+            if (!method.getThrownTypes().isEmpty()) {
+                this.error(method, "RPC functions can't declare exceptions.");
+                ok = false;
+            }
+
+            for (VariableElement parameter: method.getParameters()) {
+                FieldKind kind = this.kind(parameter.asType());
+                if (kind == null) {
+                    this.error(parameter, "Can't send a " + parameter.asType() + ", use byte, short, int, long, boolean, float or String.");
+                    ok = false;
+                    continue;
+                }
+                LType type = this.wireType(parameter, kind);
+                if (type == null) {
+                    ok = false;
+                    continue;
+                }
+                function.names.add(parameter.getSimpleName().toString());
+                function.kinds.add(kind);
+                function.types.add(type);
+            }
+
+            TypeMirror returnType = method.getReturnType();
+            if (returnType.getKind() != TypeKind.VOID) {
+                TypeMirror result = this.futureResult(returnType);
+                if (result == null) {
+                    this.error(method, "RPC functions must return void or a CompletableFuture.");
+                    ok = false;
+                } else if (result.toString().equals("java.lang.Void")) {
+                    function.voidReply = true;
+                } else {
+                    function.reply = result.getKind() == TypeKind.DECLARED ?
+                            FieldKind.forBoxed(((TypeElement) ((DeclaredType) result).asElement()).getQualifiedName().toString()) : null;
+                    if (function.reply == null) {
+                        this.error(method, "Can't reply with a " + result + ", use Byte, Short, Integer, Long, Boolean, Float, String or Void.");
+                        ok = false;
+                    } else {
+                        function.replyType = this.wireType(method, function.reply);
+                        ok = ok && function.replyType != null;
+                    }
+                }
+            }
+            int limit = returnType.getKind() == TypeKind.VOID ? 254 : 253;
+            if (method.getParameters().size() > limit) {
+                this.error(method, "RPC functions can take at most " + limit + " parameters.");
+                ok = false;
+            }
+            functions.add(function);
+        }
+        return ok ? functions : null;
+    }
+
+    private FieldKind kind(TypeMirror type) {
+        if (type.getKind().isPrimitive()) {
+            return FieldKind.forPrimitive(type.toString());
+        }
+        if (type.toString().equals("java.lang.String")) {
+            return FieldKind.STRING;
+        }
+        return null;
+    }
+
+    /**
+     * The wire type of element, from its Field annotation or its kind.
+     * @return Null after reporting an error if the annotation doesn't suit the kind.
+     */
+    private LType wireType(Element element, FieldKind kind) {
+        Field field = element.getAnnotation(Field.class);
+        if (field == null) {
+            return kind.getDefaultType();
+        }
+        if (!kind.allows(field.value())) {
+            this.error(element, kind.getPrimitive() + " can't be sent as " + field.value() + ", it can be one of " + kind.allowedTypes() + ".");
+            return null;
+        }
+        return field.value();
+    }
+
+    /**
+     * @return T for a CompletableFuture&lt;T&gt;, otherwise null.
+     */
+    private TypeMirror futureResult(TypeMirror type) {
+        if (type.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+        DeclaredType declared = (DeclaredType) type;
+        String name = ((TypeElement) declared.asElement()).getQualifiedName().toString();
+        if (!name.equals("java.util.concurrent.CompletableFuture") || declared.getTypeArguments().size() != 1) {
+            return null;
+        }
+        return declared.getTypeArguments().get(0);
+    }
+
+    private void writeStub(TypeElement service, List<Function> functions) throws IOException {
+        String name = this.generatedName(service) + "Stub";
+        StringBuilder out = new StringBuilder();
+        this.header(out, service);
+        out.append("import uk.co.tstableford.rpc.lib.RPC;\n");
+        out.append("import uk.co.tstableford.rpc.lib.object.LType;\n");
+        out.append("import uk.co.tstableford.rpc.lib.serializer.LSerializer;\n");
+        out.append("import uk.co.tstableford.rpc.lib.serializer.LWritable;\n");
+        out.append("import uk.co.tstableford.rpc.lib.serializer.LWriter;\n\n");
+        out.append("import java.util.concurrent.CompletableFuture;\n");
+        out.append("import java.util.concurrent.TimeUnit;\n");
+        out.append("import java.util.function.Function;\n\n");
+        out.append("/**\n * Sends calls to ").append(service.getSimpleName()).append(" over an RPC. Generated by RPCProcessor.\n */\n");
+        out.append("public class ").append(name).append(" implements ").append(this.sourceName(service)).append(" {\n");
+        out.append("    private final RPC rpc;\n");
+        out.append("    private final LWriter writer = new LWriter();\n\n");
+        out.append("    public ").append(name).append("(RPC rpc) {\n");
+        out.append("        this.rpc = rpc;\n");
+        out.append("    }\n");
+
+        for (Function function: functions) {
+            out.append("\n    @Override\n    public ").append(function.method.getReturnType()).append(" ")
+                    .append(function.method.getSimpleName()).append("(");
+            for (int i = 0; i < function.names.size(); i++) {
+                out.append(i > 0 ? ", " : "").append("final ").append(function.kinds.get(i).getPrimitive())
+                        .append(" ").append(function.names.get(i));
+            }
+            out.append(") {\n");
+            if (function.method.getReturnType().getKind() == TypeKind.VOID) {
+                out.append("        synchronized (this.writer) {\n");
+                out.append("            try {\n");
+                out.append("                this.writer.beginCall(").append(function.id).append(", ").append(function.names.size()).append(");\n");
+                for (int i = 0; i < function.names.size(); i++) {
+                    out.append("                ").append(function.kinds.get(i).write("this.writer", function.names.get(i), function.types.get(i))).append("\n");
+                }
+                out.append("                this.rpc.call(this.writer);\n");
+                out.append("            } catch (LSerializer.InvalidTypeException $e) {\n");
+                out.append("                throw new IllegalArgumentException(\"Can't send ").append(function.method.getSimpleName()).append(".\", $e);\n");
+                out.append("            }\n");
+                out.append("        }\n");
+            } else {
+                String result = function.voidReply ? "Void" : this.boxed(function.reply);
+                out.append("        CompletableFuture<LSerializer> $reply = this.rpc.callAsync(").append(function.id).append(", new LWritable() {\n");
+                out.append("            @Override\n");
+                out.append("            public int size() {\n");
+                out.append("                return ").append(function.names.size()).append(";\n");
+                out.append("            }\n\n");
+                out.append("            @Override\n");
+                out.append("            public void writeTo(LWriter $writer) throws LSerializer.InvalidTypeException {\n");
+                for (int i = 0; i < function.names.size(); i++) {
+                    out.append("                ").append(function.kinds.get(i).write("$writer", function.names.get(i), function.types.get(i))).append("\n");
+                }
+                out.append("            }\n");
+                out.append("        }, ").append(function.timeoutMillis).append("L, TimeUnit.MILLISECONDS);\n");
+                out.append("        return $reply.thenApply(new Function<LSerializer, ").append(result).append(">() {\n");
+                out.append("            @Override\n");
+                out.append("            public ").append(result).append(" apply(LSerializer $result) {\n");
+                if (function.voidReply) {
+                    out.append("                return null;\n");
+                } else {
+                    out.append("                if ($result.size() < 1 || !(").append(FieldKind.typeCheck("$result.typeAt(0)", function.replyType)).append(")) {\n");
+                    out.append("                    throw new IllegalStateException(\"Unexpected reply to ").append(function.method.getSimpleName()).append(".\");\n");
+                    out.append("                }\n");
+                    out.append("                return ").append(function.reply.read("$result", "0", false)).append(";\n");
+                }
+                out.append("            }\n");
+                out.append("        });\n");
+            }
+            out.append("    }\n");
+        }
+        out.append("}\n");
+        this.write(service, name, out);
+    }
+
+    private void writeSkeleton(TypeElement service, List<Function> functions) throws IOException {
+        String name = this.generatedName(service) + "Skeleton";
+        String serviceName = this.sourceName(service);
+        StringBuilder out = new StringBuilder();
+        this.header(out, service);
+        out.append("import uk.co.tstableford.rpc.lib.RPC;\n");
+        out.append("import uk.co.tstableford.rpc.lib.object.LType;\n");
+        out.append("import uk.co.tstableford.rpc.lib.serializer.LReader;\n");
+        out.append("import uk.co.tstableford.rpc.lib.serializer.LSerializer;\n");
+        out.append("import uk.co.tstableford.rpc.lib.serializer.LWritable;\n");
+        out.append("import uk.co.tstableford.rpc.lib.serializer.LWriter;\n\n");
+        out.append("import java.util.concurrent.CompletableFuture;\n");
+        out.append("import java.util.function.Function;\n\n");
+        out.append("/**\n * Registers a ").append(service.getSimpleName()).append(" implementation with an RPC. Generated by RPCProcessor.\n");
+        out.append(" *\n * Calls whose fields aren't exactly the signature's types are passed on to the RPC's other\n");
+        out.append(" * handlers. Requests are replied to when the implementation's future completes, on the\n");
+        out.append(" * thread that completes it, and aren't replied to if it fails.\n */\n");
+        out.append("public class ").append(name).append(" {\n");
+        out.append("    private final ").append(serviceName).append(" impl;\n\n");
+        out.append("    public ").append(name).append("(").append(serviceName).append(" impl) {\n");
+        out.append("        this.impl = impl;\n");
+        out.append("    }\n\n");
+
+        out.append("    public void register(RPC rpc) {\n");
+        for (int f = 0; f < functions.size(); f++) {
+            Function function = functions.get(f);
+            boolean request = function.method.getReturnType().getKind() != TypeKind.VOID;
+            String source = "$reader";
+            if (f > 0) {
+                out.append("\n");
+            }
+            if (request) {
+                out.append("        rpc.registerAsyncRequestFunction(").append(function.id).append(", new RPC.AsyncRequestHandler() {\n");
+                out.append("            @Override\n");
+                out.append("            public CompletableFuture<LWritable> onRequest(int $functionId, LReader $reader) {\n");
+            } else {
+                out.append("        rpc.registerReaderFunction(").append(function.id).append(", new RPC.ReaderHandler() {\n");
+                out.append("            @Override\n");
+                out.append("            public boolean onRPC(int $functionId, LReader $reader) {\n");
+            }
+            out.append("                if (").append(source).append(".size() != ").append(function.names.size());
+            for (int i = 0; i < function.names.size(); i++) {
+                String type = source + ".getType(" + i + ")";
+                out.append("\n                        || !(").append(FieldKind.typeCheck(type, function.types.get(i))).append(")");
+            }
+            out.append(") {\n");
+            out.append("                    return ").append(request ? "null" : "false").append(";\n");
+            out.append("                }\n");
+            StringBuilder call = new StringBuilder();
+            call.append("impl.").append(function.method.getSimpleName()).append("(");
+            for (int i = 0; i < function.names.size(); i++) {
+                call.append(i > 0 ? ", " : "").append(function.kinds.get(i).read(source, Integer.toString(i), true));
+            }
+            call.append(")");
+            if (!request) {
+                out.append("                ").append(call).append(";\n");
+                out.append("                return true;\n");
+            } else {
+                String result = function.voidReply ? "Void" : this.boxed(function.reply);
+                out.append("                return ").append(call).append(".thenApply(new Function<").append(result).append(", LWritable>() {\n");
+                out.append("                    @Override\n");
+                out.append("                    public LWritable apply(final ").append(result).append(" $value) {\n");
+                if (!function.voidReply) {
+                    out.append("                        if ($value == null) {\n");
+                    out.append("                            return null;\n");
+                    out.append("                        }\n");
+                }
+                out.append("                        return new LWritable() {\n");
+                out.append("                            @Override\n");
+                out.append("                            public int size() {\n");
+                out.append("                                return ").append(function.voidReply ? 0 : 1).append(";\n");
+                out.append("                            }\n\n");
+                out.append("                            @Override\n");
+                out.append("                            public void writeTo(LWriter $writer) throws LSerializer.InvalidTypeException {\n");
+                if (!function.voidReply) {
+                    out.append("                                ").append(function.reply.write("$writer", "$value", function.replyType)).append("\n");
+                }
+                out.append("                            }\n");
+                out.append("                        };\n");
+                out.append("                    }\n");
+                out.append("                });\n");
+            }
+            out.append("            }\n");
+            out.append("        });\n");
+        }
+        out.append("    }\n\n");
+
+        out.append("    public void unregister(RPC rpc) {\n");
+        for (Function function: functions) {
+            boolean request = function.method.getReturnType().getKind() != TypeKind.VOID;
+            out.append("        rpc.").append(request ? "unregisterRequestFunction(" : "unregisterFunction(").append(function.id).append(");\n");
+        }
+        out.append("    }\n");
+        out.append("}\n");
+        this.write(service, name, out);
+    }
+
+    private String boxed(FieldKind kind) {
+        switch (kind) {
+            case BYTE:
+                return "Byte";
+            case SHORT:
+                return "Short";
+            case INT:
+                return "Integer";
+            case LONG:
+                return "Long";
+            case BOOLEAN:
+                return "Boolean";
+            case FLOAT:
+                return "Float";
+            default:
+                return "String";
+        }
+    }
+
+    private void header(StringBuilder out, TypeElement service) {
+        String pkg = this.packageName(service);
+        if (!pkg.isEmpty()) {
+            out.append("package ").append(pkg).append(";\n\n");
+        }
+    }
+
+    private String packageName(TypeElement service) {
+        Element element = service;
+        while (!(element instanceof PackageElement)) {
+            element = element.getEnclosingElement();
+        }
+        return ((PackageElement) element).getQualifiedName().toString();
+    }
+
+    /**
+     * The name the generated classes start with, Outer_Inner for nested interfaces.
+     */
+    private String generatedName(TypeElement service) {
+        String name = service.getSimpleName().toString();
+        Element enclosing = service.getEnclosingElement();
+        while (enclosing instanceof TypeElement) {
+            name = enclosing.getSimpleName() + "_" + name;
+            enclosing = enclosing.getEnclosingElement();
+        }
+        return name;
+    }
+
+    /**
+     * The name of service as written in its own package.
+     */
+    private String sourceName(TypeElement service) {
+        String pkg = this.packageName(service);
+        String name = service.getQualifiedName().toString();
+        return pkg.isEmpty() ? name : name.substring(pkg.length() + 1);
+    }
+
+    private void write(TypeElement service, String name, StringBuilder source) throws IOException {
+        String pkg = this.packageName(service);
+        JavaFileObject file = this.processingEnv.getFiler().createSourceFile(pkg.isEmpty() ? name : pkg + "." + name, service);
+        try (Writer writer = file.openWriter()) {
+            writer.write(source.toString());
+        }
+    }
+
+    private void error(Element element, String message) {
+        this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
@@ -0,0 +1,56 @@
+package uk.co.tstableford.rpcbench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import uk.co.tstableford.rpc.lib.stream.CRC16;
+
+import java.util.Random;
+
+/**
+ * Compares the table driven CRC16 against the original bit at a time loop.
+ * 4 bytes is the size of the header fields the parser checks on every resync.
+ */
+@State(Scope.Benchmark)
+public class CRC16Benchmark {
+    @Param({"4", "64", "1024"})
+    public int size;
+
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        this.data = new byte[size];
+        new Random(42).nextBytes(this.data);
+    }
+
+    @Benchmark
+    public int table() {
+        return CRC16.CRC(this.data);
+    }
+
+    @Benchmark
+    public int bitwise() {
+        return bitwiseCRC(this.data);
+    }
+
+    // The CRC16 implementation before it was table driven.
+    private static int bitwiseCRC(final byte[] buffer) {
+        int crc = 0xFFFF;
+        int polynomial = 0x1021;   // 0001 0000 0010 0001  (0, 5, 12)
+
+        for (byte b : buffer) {
+            for (int i = 0; i < 8; i++) {
+                boolean bit = ((b   >> (7-i) & 1) == 1);
+                boolean c15 = ((crc >> 15    & 1) == 1);
+                crc <<= 1;
+                if (c15 ^ bit) crc ^= polynomial;
+            }
+        }
+
+        crc &= 0xffff;
+        return crc;
+    }
+}
@@ -0,0 +1,47 @@
+package uk.co.tstableford.rpcbench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import uk.co.tstableford.rpc.lib.stream.LZCodec;
+
+import java.nio.charset.Charset;
+
+/**
+ * LZCodec over a string heavy status report, with and without a preset dictionary.
+ */
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+    private static final String REPORT = "status report temperature 21.5 humidity 40 battery 80 firmware 1.2.3 uptime 86400 ";
+
+    @Param({"false", "true"})
+    public boolean dictionary;
+
+    private byte[] data;
+    private byte[] packed;
+    private int packedLength;
+    private LZCodec compressor, decompressor;
+
+    @Setup
+    public void setup() {
+        Charset utf8 = Charset.forName("UTF-8");
+        this.data = (REPORT + REPORT.replace("21.5", "22.0") + "ok").getBytes(utf8);
+        byte[] preset = this.dictionary ? REPORT.getBytes(utf8) : new byte[0];
+        this.compressor = new LZCodec(preset);
+        this.decompressor = new LZCodec(preset);
+        this.packed = new byte[this.data.length * 2];
+        this.packedLength = this.compressor.compress(this.data, 0, this.data.length, this.packed, 0, this.packed.length);
+    }
+
+    @Benchmark
+    public int compress() {
+        return this.compressor.compress(this.data, 0, this.data.length, this.packed, 0, this.packed.length);
+    }
+
+    @Benchmark
+    public int decompress() {
+        return this.decompressor.decompress(this.packed, 0, this.packedLength, this.data.length);
+    }
+}
@@ -0,0 +1,75 @@
+package uk.co.tstableford.rpcbench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import uk.co.tstableford.rpc.lib.object.LType;
+import uk.co.tstableford.rpc.lib.serializer.LReader;
+import uk.co.tstableford.rpc.lib.serializer.LSerializer;
+import uk.co.tstableford.rpc.lib.serializer.LWriter;
+import uk.co.tstableford.rpc.lib.serializer.MessageTemplate;
+import uk.co.tstableford.rpc.lib.stream.StreamParser;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed telemetry call encoded and decoded through a MessageTemplate and through
+ * LWriter and LReader.
+ */
+@State(Scope.Benchmark)
+public class MessageTemplateBenchmark {
+    private MessageTemplate template;
+    private ByteBuffer packet;
+    private ByteBuffer payload;
+    private LWriter writer;
+    private LReader reader;
+    private long timestamp;
+
+    @Setup
+    public void setup() throws LSerializer.InvalidTypeException {
+        this.template = MessageTemplate.forCall(1, LType.INT64, LType.UINT32, LType.INT16, LType.FLOAT, LType.UINT8);
+        this.packet = this.template.newPacket();
+        this.writer = new LWriter(ByteBuffer.allocate(1024));
+        this.reader = new LReader();
+        this.payload = this.writePacket().duplicate();
+        this.payload.position(StreamParser.HEADER_SIZE);
+        this.payload = this.payload.slice();
+    }
+
+    @Benchmark
+    public ByteBuffer templatePacket() throws LSerializer.InvalidTypeException {
+        long value = this.timestamp++;
+        this.template.putLong(this.packet, 0, value);
+        this.template.putLong(this.packet, 1, 42);
+        this.template.putLong(this.packet, 2, -5);
+        this.template.putFloat(this.packet, 3, 21.5f);
+        this.template.putLong(this.packet, 4, 80);
+        return this.packet;
+    }
+
+    @Benchmark
+    public ByteBuffer writePacket() throws LSerializer.InvalidTypeException {
+        this.writer.beginCall(1, 5);
+        this.writer.writeInt64(this.timestamp++);
+        this.writer.writeUInt32(42);
+        this.writer.writeInt16((short) -5);
+        this.writer.writeFloat(21.5f);
+        this.writer.writeUInt8(80);
+        return this.writer.finish();
+    }
+
+    @Benchmark
+    public long templateRead() {
+        if (!this.template.matches(this.payload, this.payload.limit())) {
+            return -1;
+        }
+        return this.template.getLong(this.payload, 0) + this.template.getLong(this.payload, 4);
+    }
+
+    @Benchmark
+    public long readerRead() throws LSerializer.InvalidTypeException {
+        this.reader.reset(this.payload);
+        return this.reader.getLong(1) + this.reader.getLong(5);
+    }
+}
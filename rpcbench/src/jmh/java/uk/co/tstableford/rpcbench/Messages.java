@@ -0,0 +1,49 @@
+package uk.co.tstableford.rpcbench;
+
+import uk.co.tstableford.rpc.lib.object.LObject;
+import uk.co.tstableford.rpc.lib.object.LObjects;
+import uk.co.tstableford.rpc.lib.object.LType;
+import uk.co.tstableford.rpc.lib.serializer.LSerializer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Message shapes shared by the benchmarks.
+ */
+public class Messages {
+    /**
+     * SMALL is a timestamp, MIXED is a typical telemetry call and WIDE is 64 numbers with some strings.
+     */
+    public enum Shape {
+        SMALL,
+        MIXED,
+        WIDE;
+    }
+
+    public static LSerializer create(Shape shape) {
+        switch (shape) {
+            case SMALL:
+                return new LSerializer(LObjects.Int(LType.INT64, 1475520488000L));
+            case MIXED:
+                return new LSerializer(
+                        LObjects.Int(LType.UINT16, 42),
+                        LObjects.Int(LType.INT32, -70000),
+                        LObjects.Float(21.5f),
+                        LObjects.String("temperature"),
+                        LObjects.Int(LType.UINT8, 7));
+            default:
+            {
+                List<LObject> objects = new ArrayList<>();
+                for (int i = 0; i < 64; i++) {
+                    if (i % 16 == 0) {
+                        objects.add(LObjects.String("field " + i));
+                    } else {
+                        objects.add(LObjects.Int(LType.INT32, i * 1000));
+                    }
+                }
+                return new LSerializer(objects);
+            }
+        }
+    }
+}
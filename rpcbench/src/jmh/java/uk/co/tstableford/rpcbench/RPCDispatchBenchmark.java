@@ -0,0 +1,99 @@
+package uk.co.tstableford.rpcbench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.co.tstableford.rpc.lib.RPC;
+import uk.co.tstableford.rpc.lib.serializer.LReader;
+import uk.co.tstableford.rpc.lib.serializer.LSerializer;
+import uk.co.tstableford.rpc.lib.serializer.LWriter;
+import uk.co.tstableford.rpc.lib.stream.StreamConnector;
+import uk.co.tstableford.rpc.lib.stream.StreamParser;
+
+import java.nio.ByteBuffer;
+
+/**
+ * RPC.onPacket for a call to the last of a number of functions, handled either by a chain
+ * of handlers or by functions registered by ID.
+ */
+@State(Scope.Benchmark)
+public class RPCDispatchBenchmark {
+    @Param({"1", "16", "128"})
+    public int functions;
+
+    private RPC chained, chainedReader, registered;
+    private ByteBuffer packet;
+    private int size;
+
+    @Setup
+    public void setup(final Blackhole blackhole) throws LSerializer.InvalidTypeException {
+        StreamConnector connector = new StreamConnector() {
+            @Override
+            public int readData() {
+                return NO_DATA;
+            }
+
+            @Override
+            public int writeData(byte[] data) {
+                return data.length;
+            }
+        };
+        this.chained = new RPC(connector);
+        this.chainedReader = new RPC(connector);
+        this.registered = new RPC(connector);
+        for (int i = 0; i < this.functions; i++) {
+            final int id = i;
+            this.chained.addHandler(new RPC.Handler() {
+                @Override
+                public boolean onRPC(int functionId, LSerializer object) {
+                    if (functionId != id) {
+                        return false;
+                    }
+                    blackhole.consume(object.longAt(0));
+                    return true;
+                }
+            });
+            RPC.ReaderHandler handler = new RPC.ReaderHandler() {
+                @Override
+                public boolean onRPC(int functionId, LReader reader) {
+                    if (functionId != id) {
+                        return false;
+                    }
+                    blackhole.consume(reader.getLong(0));
+                    return true;
+                }
+            };
+            this.chainedReader.addReaderHandler(handler);
+            this.registered.registerReaderFunction(i, handler);
+        }
+
+        LSerializer message = Messages.create(Messages.Shape.MIXED);
+        LWriter writer = new LWriter();
+        writer.beginCall(this.functions - 1, message.size());
+        message.writeTo(writer);
+        ByteBuffer frame = writer.finish();
+        this.size = frame.limit() - StreamParser.HEADER_SIZE;
+        this.packet = ByteBuffer.allocate(this.size);
+        frame.position(StreamParser.HEADER_SIZE);
+        this.packet.put(frame);
+        this.packet.flip();
+    }
+
+    @Benchmark
+    public void chainedSerializer() {
+        this.chained.onPacket(RPC.RPC_PACKET_ID, this.size, this.packet);
+    }
+
+    @Benchmark
+    public void chainedReader() {
+        this.chainedReader.onPacket(RPC.RPC_PACKET_ID, this.size, this.packet);
+    }
+
+    @Benchmark
+    public void registeredReader() {
+        this.registered.onPacket(RPC.RPC_PACKET_ID, this.size, this.packet);
+    }
+}
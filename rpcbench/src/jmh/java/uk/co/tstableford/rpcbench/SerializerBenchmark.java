@@ -0,0 +1,63 @@
+package uk.co.tstableford.rpcbench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import uk.co.tstableford.rpc.lib.serializer.LReader;
+import uk.co.tstableford.rpc.lib.serializer.LSerializer;
+import uk.co.tstableford.rpc.lib.serializer.LWriter;
+
+import java.nio.ByteBuffer;
+
+@State(Scope.Benchmark)
+public class SerializerBenchmark {
+    @Param({"SMALL", "MIXED", "WIDE"})
+    public Messages.Shape shape;
+
+    private LSerializer message;
+    private ByteBuffer serialized;
+    private LReader reader;
+    private LWriter writer;
+    // Not every shape starts with a number, WIDE starts with a string.
+    private int firstInteger;
+
+    @Setup
+    public void setup() throws LSerializer.InvalidTypeException {
+        this.message = Messages.create(this.shape);
+        this.serialized = this.message.serialize();
+        this.reader = new LReader();
+        this.writer = new LWriter(ByteBuffer.allocate(1024));
+        this.reader.reset(this.serialized);
+        while (!this.reader.getType(this.firstInteger).isInteger()) {
+            this.firstInteger++;
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer serialize() throws LSerializer.InvalidTypeException {
+        return this.message.serialize();
+    }
+
+    @Benchmark
+    public LSerializer unserialize() throws LSerializer.InvalidTypeException {
+        return new LSerializer(this.serialized);
+    }
+
+    /**
+     * Reads the first integer field, the lookup a handler does for the function ID.
+     */
+    @Benchmark
+    public long readFirstField() throws LSerializer.InvalidTypeException {
+        this.reader.reset(this.serialized);
+        return this.reader.getLong(this.firstInteger);
+    }
+
+    @Benchmark
+    public ByteBuffer writePacket() throws LSerializer.InvalidTypeException {
+        this.writer.beginCall(1, this.message.size());
+        this.message.writeTo(this.writer);
+        return this.writer.finish();
+    }
+}
@@ -0,0 +1,116 @@
+package uk.co.tstableford.rpcbench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.co.tstableford.rpc.lib.serializer.LSerializer;
+import uk.co.tstableford.rpc.lib.stream.RingBuffer;
+import uk.co.tstableford.rpc.lib.stream.StreamConnector;
+import uk.co.tstableford.rpc.lib.stream.StreamParser;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Parses 64KB of stream per op, a byte at a time, as a block or through a RingBuffer. CLEAN is back to back packets, CORRUPT has random bit
+ * flips and GARBAGE is random bytes the parser has to keep resyncing through.
+ */
+@State(Scope.Benchmark)
+public class StreamParserBenchmark {
+    private static final int STREAM_SIZE = 64 * 1024;
+
+    public enum Stream {
+        CLEAN,
+        CORRUPT,
+        GARBAGE;
+    }
+
+    @Param({"CLEAN", "CORRUPT", "GARBAGE"})
+    public Stream stream;
+
+    @Param({"COPY", "VIEW"})
+    public StreamParser.DeliveryMode delivery;
+
+    private byte[] data;
+    private int index;
+    private StreamParser byteParser, blockParser, ringParser;
+    private RingBuffer ring;
+    private byte[] packet;
+
+    @Setup
+    public void setup(final Blackhole blackhole) throws LSerializer.InvalidTypeException {
+        this.packet = StreamParser.WrapBuffer(8, Messages.create(Messages.Shape.MIXED).serialize());
+        Random random = new Random(42);
+        this.data = new byte[STREAM_SIZE];
+        if (this.stream == Stream.GARBAGE) {
+            random.nextBytes(this.data);
+        } else {
+            for (int i = 0; i < STREAM_SIZE; i++) {
+                this.data[i] = this.packet[i % this.packet.length];
+            }
+            if (this.stream == Stream.CORRUPT) {
+                for (int i = 0; i < STREAM_SIZE / 256; i++) {
+                    this.data[random.nextInt(STREAM_SIZE)] ^= 1 << random.nextInt(8);
+                }
+            }
+        }
+
+        StreamConnector connector = new StreamConnector() {
+            @Override
+            public int readData() {
+                if (index >= data.length) {
+                    return NO_DATA;
+                }
+                return data[index++] & 0xff;
+            }
+
+            @Override
+            public int writeData(byte[] data) {
+                return data.length;
+            }
+        };
+        StreamParser.StreamHandler handler = new StreamParser.StreamHandler() {
+            @Override
+            public void onPacket(int type, int size, ByteBuffer buffer) {
+                blackhole.consume(buffer);
+            }
+        };
+        this.byteParser = new StreamParser(connector, new byte[1024]);
+        this.byteParser.setDeliveryMode(this.delivery);
+        this.byteParser.addHandler(8, handler);
+        this.blockParser = new StreamParser(connector, new byte[1024]);
+        this.blockParser.setDeliveryMode(this.delivery);
+        this.blockParser.addHandler(8, handler);
+        this.ringParser = new StreamParser(connector, new byte[1024]);
+        this.ringParser.setDeliveryMode(this.delivery);
+        this.ringParser.addHandler(8, handler);
+        this.ring = new RingBuffer(2 * STREAM_SIZE, 1024);
+    }
+
+    @Benchmark
+    public int parseByByte() {
+        this.index = 0;
+        int count = 0;
+        while (this.byteParser.parse() >= 0) {
+            count++;
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int parseBlock() {
+        return this.blockParser.parse(this.data, 0, this.data.length);
+    }
+
+    /**
+     * Fills an off heap ring and parses it on the same thread, so this includes the copy in.
+     */
+    @Benchmark
+    public int parseRing() {
+        this.ring.write(this.data, 0, this.data.length);
+        return this.ringParser.parse(this.ring);
+    }
+}
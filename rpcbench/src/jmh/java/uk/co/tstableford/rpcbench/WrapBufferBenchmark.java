@@ -0,0 +1,29 @@
+package uk.co.tstableford.rpcbench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import uk.co.tstableford.rpc.lib.serializer.LSerializer;
+import uk.co.tstableford.rpc.lib.stream.StreamParser;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frames a MIXED payload with a header and CRC, kept apart from StreamParserBenchmark so it
+ * isn't repeated for each of that benchmark's streams and delivery modes.
+ */
+@State(Scope.Benchmark)
+public class WrapBufferBenchmark {
+    private ByteBuffer payload;
+
+    @Setup
+    public void setup() throws LSerializer.InvalidTypeException {
+        this.payload = Messages.create(Messages.Shape.MIXED).serialize();
+    }
+
+    @Benchmark
+    public byte[] wrapBuffer() {
+        return StreamParser.WrapBuffer(8, this.payload);
+    }
+}
@@ -0,0 +1,218 @@
+package uk.co.tstableford.rpc.lib;
+
+import uk.co.tstableford.rpc.lib.stream.BlockStreamConnector;
+import uk.co.tstableford.rpc.lib.stream.BlockStreamConnectors;
+import uk.co.tstableford.rpc.lib.stream.StreamConnector;
+import uk.co.tstableford.rpc.lib.stream.StreamParser;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps a connector and packs RPC calls, requests and responses written close together into
+ * RPC.RPC_BATCH_PACKET_ID packets, so a burst of small calls shares one header, one CRC and
+ * one write. The other end's RPC unpacks them, there's nothing to set up there.
+ *
+ * A batch payload is a run of entries, each the packet type as a UINT8, the payload size as
+ * a big endian UINT16 and then the payload.
+ *
+ * Batching adapts to the rate of calls. A call written when nothing has been sent for
+ * maxDelay goes straight out. Calls that follow it are held until the batch would go over
+ * maxBatchSize bytes or the first of them has waited maxDelay. A batch holding a single call
+ * is sent as a plain packet. Other packet types, and calls too big to share a batch, flush
+ * whatever is held and then go through untouched so ordering is kept.
+ *
+ * Each writeData call must hold exactly one whole packet, as RPC and LWriter write them.
+ * Writes are serialized. Held calls are sent from a timer thread, call close() to stop it.
+ * A held call has already been reported as written, so if the wrapped connector later fails
+ * to write its batch, the calls in it are counted by getLostCalls instead.
+ */
+public class BatchingConnector implements BlockStreamConnector {
+    public static final int ENTRY_HEADER_SIZE = 3;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 512;
+    public static final long DEFAULT_MAX_DELAY_MICROS = 2000;
+    private final StreamConnector connector;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+    private final byte[] batch;
+    private final ScheduledExecutorService timer;
+    // Bytes of entries in batch, and how many there are.
+    private int used = 0, entries = 0;
+    // Bumped on every flush so a stale timer leaves the next batch alone.
+    private long generation = 0;
+    private long lastWrite;
+    private boolean closed = false;
+    private long batches = 0, batchedCalls = 0, bytesSaved = 0, lostCalls = 0;
+
+    /**
+     * @param maxBatchSize The most payload bytes in one batch, at most 65535.
+     * @param maxDelay The longest a call is held waiting for others to join it.
+     */
+    public BatchingConnector(StreamConnector connector, int maxBatchSize, long maxDelay, TimeUnit unit) {
+        if (maxBatchSize < 1 || maxBatchSize > 0xffff) {
+            throw new IllegalArgumentException("Batch size must be between 1 and 65535.");
+        }
+        this.connector = connector;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = unit.toNanos(maxDelay);
+        this.batch = new byte[StreamParser.HEADER_SIZE + maxBatchSize];
+        this.lastWrite = System.nanoTime() - this.maxDelayNanos;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "BatchingConnector");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public BatchingConnector(StreamConnector connector) {
+        this(connector, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY_MICROS, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * The number of batch packets sent.
+     */
+    public synchronized long getBatches() {
+        return this.batches;
+    }
+
+    /**
+     * The number of calls sent inside batch packets.
+     */
+    public synchronized long getBatchedCalls() {
+        return this.batchedCalls;
+    }
+
+    /**
+     * How many fewer bytes were written thanks to batching.
+     */
+    public synchronized long getBytesSaved() {
+        return this.bytesSaved;
+    }
+
+    /**
+     * The number of held calls the wrapped connector failed to write.
+     */
+    public synchronized long getLostCalls() {
+        return this.lostCalls;
+    }
+
+    @Override
+    public int writeData(byte[] data) {
+        return this.writeData(data, 0, data.length);
+    }
+
+    /**
+     * @return length once the packet is sent or held, or whatever the wrapped connector
+     * returned for a packet written straight away.
+     */
+    @Override
+    public synchronized int writeData(byte[] data, int offset, int length) {
+        int payload = length - StreamParser.HEADER_SIZE;
+        int type = payload < 0 ? -1 : ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+        int size = payload < 0 ? -1 : ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+        long now = System.nanoTime();
+        if (this.closed || size != payload || !isBatchable(type) || ENTRY_HEADER_SIZE + payload > this.maxBatchSize
+                || (this.entries == 0 && now - this.lastWrite >= this.maxDelayNanos)) {
+            this.flush();
+            this.lastWrite = now;
+            return BlockStreamConnectors.writeData(this.connector, data, offset, length);
+        }
+
+        if (this.used + ENTRY_HEADER_SIZE + payload > this.maxBatchSize) {
+            this.flush();
+        }
+        int entry = StreamParser.HEADER_SIZE + this.used;
+        this.batch[entry] = (byte) type;
+        this.batch[entry + 1] = (byte) (payload >> 8);
+        this.batch[entry + 2] = (byte) payload;
+        System.arraycopy(data, offset + StreamParser.HEADER_SIZE, this.batch, entry + ENTRY_HEADER_SIZE, payload);
+        this.used += ENTRY_HEADER_SIZE + payload;
+        this.entries++;
+        if (this.entries == 1) {
+            final long generation = this.generation;
+            this.timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flushGeneration(generation);
+                }
+            }, this.maxDelayNanos, TimeUnit.NANOSECONDS);
+        }
+        return length;
+    }
+
+    /**
+     * Send any held calls now.
+     * @return False if the wrapped connector didn't write them all, they're then counted as lost.
+     */
+    public synchronized boolean flush() {
+        if (this.entries == 0) {
+            return true;
+        }
+        this.generation++;
+        this.lastWrite = System.nanoTime();
+        boolean written;
+        if (this.entries == 1) {
+            // Turn the lone entry back into a plain packet, its header ends where the entry's does.
+            int start = ENTRY_HEADER_SIZE;
+            int type = this.batch[StreamParser.HEADER_SIZE] & 0xff;
+            int length = StreamParser.HEADER_SIZE + this.used - ENTRY_HEADER_SIZE;
+            StreamParser.WriteHeader(this.batch, start, type, this.used - ENTRY_HEADER_SIZE);
+            written = BlockStreamConnectors.writeData(this.connector, this.batch, start, length) == length;
+        } else {
+            int length = StreamParser.HEADER_SIZE + this.used;
+            StreamParser.WriteHeader(this.batch, 0, RPC.RPC_BATCH_PACKET_ID, this.used);
+            written = BlockStreamConnectors.writeData(this.connector, this.batch, 0, length) == length;
+            if (written) {
+                this.batches++;
+                this.batchedCalls += this.entries;
+                this.bytesSaved += (this.entries - 1) * StreamParser.HEADER_SIZE - this.entries * ENTRY_HEADER_SIZE;
+            }
+        }
+        if (!written) {
+            this.lostCalls += this.entries;
+        }
+        this.used = 0;
+        this.entries = 0;
+        return written;
+    }
+
+    /**
+     * Send any held calls and stop the timer thread. Later calls are written straight away.
+     */
+    public synchronized void close() {
+        this.flush();
+        this.closed = true;
+        this.timer.shutdownNow();
+    }
+
+    private synchronized void flushGeneration(long generation) {
+        if (generation == this.generation) {
+            this.flush();
+        }
+    }
+
+    private static boolean isBatchable(int type) {
+        return type == RPC.RPC_PACKET_ID || type == RPC.RPC_REQUEST_PACKET_ID || type == RPC.RPC_RESPONSE_PACKET_ID;
+    }
+
+    @Override
+    public int readData() {
+        return this.connector.readData();
+    }
+
+    @Override
+    public int readData(byte[] buffer, int offset, int length) {
+        return BlockStreamConnectors.readData(this.connector, buffer, offset, length);
+    }
+
+    @Override
+    public int readData(ByteBuffer buffer) {
+        return BlockStreamConnectors.readData(this.connector, buffer);
+    }
+}
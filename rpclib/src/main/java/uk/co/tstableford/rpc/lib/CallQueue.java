@@ -0,0 +1,284 @@
+package uk.co.tstableford.rpc.lib;
+
+import uk.co.tstableford.rpc.lib.serializer.LSerializer;
+import uk.co.tstableford.rpc.lib.stream.Pausable;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Handler that buffers incoming calls and hands them to a Sink only as fast as the sink
+ * asks for them, in the manner of a reactive streams subscription.
+ *
+ * Register it with RPC.registerFunction for one function, or with RPC.addHandler and a
+ * filter for several. Calls arriving while the sink has no demand are buffered, up to
+ * capacity, and then the overflow policy decides what happens. With PAUSE_READING the
+ * connector is told to stop reading once the buffer is full and to start again once it has
+ * drained to half full. Calls already read when reading stops are still buffered, so the
+ * buffer can go over capacity by however many calls the last read held.
+ *
+ * The sink is called on whichever thread made delivery possible, the one dispatching the
+ * call or the one calling request, but never from two threads at once.
+ */
+public class CallQueue implements RPC.Handler {
+    public enum Overflow {
+        /** Pause the connector until the buffer drains. */
+        PAUSE_READING,
+        /** Throw away the oldest buffered call to make room. */
+        DROP_OLDEST,
+        /** Throw away the call that didn't fit. */
+        DROP_NEWEST,
+        /** Fail the sink with an IllegalStateException and stop taking calls. */
+        FAIL
+    }
+
+    private final int capacity;
+    private final Overflow overflow;
+    private final Pausable reading;
+    private final ConcurrentLinkedQueue<Call> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicBoolean paused = new AtomicBoolean();
+    private volatile Filter filter;
+    private volatile Sink sink;
+    private volatile boolean cancelled = false, done = false;
+    private volatile Throwable error;
+    // Only touched while draining.
+    private boolean terminated = false;
+
+    /**
+     * @param capacity The most calls buffered while the sink has no demand.
+     * @param reading What to pause with PAUSE_READING, may be null for other policies.
+     */
+    public CallQueue(int capacity, Overflow overflow, Pausable reading) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1.");
+        }
+        if (overflow == Overflow.PAUSE_READING && reading == null) {
+            throw new IllegalArgumentException("PAUSE_READING needs something to pause.");
+        }
+        this.capacity = capacity;
+        this.overflow = overflow;
+        this.reading = reading;
+    }
+
+    public CallQueue(int capacity, Overflow overflow) {
+        this(capacity, overflow, null);
+    }
+
+    /**
+     * Only take calls to the function IDs filter accepts, the rest are left for other handlers.
+     * Pass null, the default, to take every call.
+     */
+    public void setFilter(Filter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Start delivering to sink. There can only be one.
+     */
+    public void subscribe(Sink sink) {
+        if (this.sink != null) {
+            throw new IllegalStateException("Already subscribed.");
+        }
+        this.sink = sink;
+        this.drain();
+    }
+
+    /**
+     * Allow n more calls to be delivered. Demand adds up to at most Long.MAX_VALUE, which
+     * means unbounded.
+     */
+    public void request(long n) {
+        if (n <= 0) {
+            this.fail(new IllegalArgumentException("Request must be positive, was " + n + "."));
+            return;
+        }
+        while (true) {
+            long current = this.requested.get();
+            long next = current + n;
+            if (next < 0) {
+                next = Long.MAX_VALUE;
+            }
+            if (this.requested.compareAndSet(current, next)) {
+                break;
+            }
+        }
+        this.drain();
+    }
+
+    /**
+     * Stop delivering, throw away what is buffered and resume reading if it was paused.
+     * Calls are left for other handlers from then on.
+     */
+    public void cancel() {
+        this.cancelled = true;
+        this.drain();
+    }
+
+    /**
+     * Deliver what is buffered and then call onComplete.
+     */
+    public void complete() {
+        this.done = true;
+        this.drain();
+    }
+
+    /**
+     * Throw away what is buffered and call onError.
+     */
+    public void fail(Throwable error) {
+        if (this.error == null) {
+            this.error = error;
+        }
+        this.done = true;
+        this.drain();
+    }
+
+    /**
+     * The number of calls buffered.
+     */
+    public int size() {
+        return this.size.get();
+    }
+
+    /**
+     * The number of calls thrown away by DROP_OLDEST or DROP_NEWEST.
+     */
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * True while this queue has reading paused.
+     */
+    public boolean isPaused() {
+        return this.paused.get();
+    }
+
+    @Override
+    public boolean onRPC(int functionId, LSerializer object) {
+        Filter filter = this.filter;
+        if (this.cancelled || this.done || (filter != null && !filter.accept(functionId))) {
+            return false;
+        }
+        if (this.size.get() >= this.capacity) {
+            switch (this.overflow) {
+                case DROP_NEWEST:
+                    this.dropped.incrementAndGet();
+                    return true;
+                case DROP_OLDEST:
+                    if (this.queue.poll() != null) {
+                        this.size.decrementAndGet();
+                        this.dropped.incrementAndGet();
+                    }
+                    break;
+                case FAIL:
+                    this.fail(new IllegalStateException("More than " + this.capacity + " calls buffered."));
+                    return true;
+                default:
+                    break;
+            }
+        }
+        this.queue.offer(new Call(functionId, object));
+        if (this.size.incrementAndGet() >= this.capacity && this.overflow == Overflow.PAUSE_READING
+                && this.paused.compareAndSet(false, true)) {
+            this.reading.pauseReading();
+        }
+        this.drain();
+        return true;
+    }
+
+    private void drain() {
+        if (this.wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        while (true) {
+            Sink sink = this.sink;
+            if (this.cancelled || this.error != null) {
+                this.clear();
+            }
+            if (sink != null && !this.terminated && !this.cancelled) {
+                long requested = this.requested.get();
+                long emitted = 0;
+                while (emitted != requested && !this.cancelled && this.error == null) {
+                    Call call = this.queue.poll();
+                    if (call == null) {
+                        break;
+                    }
+                    this.size.decrementAndGet();
+                    sink.onCall(call);
+                    emitted++;
+                }
+                if (emitted != 0 && requested != Long.MAX_VALUE) {
+                    this.requested.addAndGet(-emitted);
+                }
+                if (this.done && !this.cancelled && (this.error != null || this.queue.isEmpty())) {
+                    this.terminated = true;
+                    this.clear();
+                    if (this.error != null) {
+                        sink.onError(this.error);
+                    } else {
+                        sink.onComplete();
+                    }
+                }
+            }
+            // Checked here as well as after pausing, so a pause racing a drain is always undone.
+            if (this.paused.get() && (this.size.get() <= this.capacity / 2 || this.cancelled || this.terminated)
+                    && this.paused.compareAndSet(true, false)) {
+                this.reading.resumeReading();
+            }
+            missed = this.wip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    private void clear() {
+        while (this.queue.poll() != null) {
+            this.size.decrementAndGet();
+        }
+    }
+
+    public interface Filter {
+        boolean accept(int functionId);
+    }
+
+    /**
+     * Receives calls from a CallQueue. Nothing is delivered after onError or onComplete.
+     */
+    public interface Sink {
+        void onCall(Call call);
+
+        void onError(Throwable error);
+
+        void onComplete();
+    }
+
+    /**
+     * A call as it was received. The arguments are decoded copies and can be kept.
+     */
+    public static class Call {
+        private final int functionId;
+        private final LSerializer arguments;
+
+        public Call(int functionId, LSerializer arguments) {
+            this.functionId = functionId;
+            this.arguments = arguments;
+        }
+
+        public int getFunctionId() {
+            return this.functionId;
+        }
+
+        public LSerializer getArguments() {
+            return this.arguments;
+        }
+    }
+}
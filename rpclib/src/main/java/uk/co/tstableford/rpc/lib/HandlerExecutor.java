@@ -0,0 +1,22 @@
+package uk.co.tstableford.rpc.lib;
+
+/**
+ * Decides which thread runs an RPC handler. See HandlerExecutors for the usual choices.
+ */
+public interface HandlerExecutor {
+    /**
+     * Run task, which calls the handlers for functionId.
+     */
+    void execute(int functionId, Runnable task);
+
+    /**
+     * True if tasks are run before execute returns. RPC can then hand handlers the
+     * parser's buffer directly instead of a copy.
+     */
+    boolean isInline();
+
+    /**
+     * Stop any threads. Tasks already queued may not run.
+     */
+    void shutdown();
+}
@@ -0,0 +1,119 @@
+package uk.co.tstableford.rpc.lib;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory methods for HandlerExecutor.
+ */
+public class HandlerExecutors {
+    private static final HandlerExecutor INLINE = new HandlerExecutor() {
+        @Override
+        public void execute(int functionId, Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public boolean isInline() {
+            return true;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    };
+
+    /**
+     * Run handlers on the thread that parses packets. This is the default.
+     */
+    public static HandlerExecutor inline() {
+        return INLINE;
+    }
+
+    /**
+     * Run handlers on the given executor. Calls may run in any order.
+     */
+    public static HandlerExecutor executor(final ExecutorService executor) {
+        return new HandlerExecutor() {
+            @Override
+            public void execute(int functionId, Runnable task) {
+                executor.execute(task);
+            }
+
+            @Override
+            public boolean isInline() {
+                return false;
+            }
+
+            @Override
+            public void shutdown() {
+                executor.shutdown();
+            }
+        };
+    }
+
+    /**
+     * Run handlers on a fixed pool of threads. Calls may run in any order.
+     */
+    public static HandlerExecutor threadPool(int threads) {
+        return executor(Executors.newFixedThreadPool(threads, threadFactory("RPC handler")));
+    }
+
+    /**
+     * Run each handler on its own virtual thread. On JVMs without virtual threads this
+     * falls back to a cached thread pool.
+     */
+    public static HandlerExecutor virtualThreads() {
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return executor((ExecutorService) method.invoke(null));
+        } catch (ReflectiveOperationException e) {
+            return executor(Executors.newCachedThreadPool(threadFactory("RPC handler")));
+        }
+    }
+
+    /**
+     * Run handlers on a number of single threaded lanes picked by function ID. Calls to one
+     * function run one at a time in the order they arrived, while calls to functions in
+     * different lanes run in parallel.
+     */
+    public static HandlerExecutor orderedLanes(int lanes) {
+        final ExecutorService[] executors = new ExecutorService[lanes];
+        for (int i = 0; i < lanes; i++) {
+            executors[i] = Executors.newSingleThreadExecutor(threadFactory("RPC lane " + i));
+        }
+        return new HandlerExecutor() {
+            @Override
+            public void execute(int functionId, Runnable task) {
+                executors[Math.floorMod(functionId, executors.length)].execute(task);
+            }
+
+            @Override
+            public boolean isInline() {
+                return false;
+            }
+
+            @Override
+            public void shutdown() {
+                for (ExecutorService executor: executors) {
+                    executor.shutdown();
+                }
+            }
+        };
+    }
+
+    private static ThreadFactory threadFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + " " + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -1,65 +1,723 @@
 package uk.co.tstableford.rpc.lib;
 
-import uk.co.tstableford.rpc.lib.object.LObject;
-import uk.co.tstableford.rpc.lib.object.LObjects;
+import uk.co.tstableford.rpc.lib.metrics.MetricsListener;
 import uk.co.tstableford.rpc.lib.object.LType;
+import uk.co.tstableford.rpc.lib.stream.BlockStreamConnector;
+import uk.co.tstableford.rpc.lib.stream.DispatchTable;
 import uk.co.tstableford.rpc.lib.stream.StreamConnector;
 import uk.co.tstableford.rpc.lib.stream.StreamParser;
+import uk.co.tstableford.rpc.lib.serializer.LReader;
 import uk.co.tstableford.rpc.lib.serializer.LSerializer;
+import uk.co.tstableford.rpc.lib.serializer.LWritable;
+import uk.co.tstableford.rpc.lib.serializer.LWriter;
+import uk.co.tstableford.rpc.lib.serializer.MessageTemplate;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 public class RPC implements StreamParser.StreamHandler {
     public static final int RPC_PACKET_ID = 8;
+    // A call that expects a reply. Fields are the function ID, the call ID and then the arguments.
+    public static final int RPC_REQUEST_PACKET_ID = 9;
+    // A reply to a request. Fields are the call ID and then the results.
+    public static final int RPC_RESPONSE_PACKET_ID = 10;
+    // Several calls, requests or responses in one packet, see BatchingConnector.
+    public static final int RPC_BATCH_PACKET_ID = 13;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
     private List<Handler> handlers;
+    private List<ReaderHandler> readerHandlers;
+    private DispatchTable<ReaderHandler> readerFunctions;
+    private DispatchTable<Handler> functions;
+    private DispatchTable<RequestHandler> requestFunctions;
+    private DispatchTable<AsyncRequestHandler> asyncRequestFunctions;
+    private DispatchTable<TemplateFunction> templateFunctions;
+    private DispatchTable<PendingCall> pending;
+    private final InFlightLimit inFlight;
+    private AtomicInteger nextCallId;
+    private ScheduledExecutorService timeouts;
+    private LReader reader;
+    private LWriter writer;
     private StreamConnector connector;
+    private volatile HandlerExecutor executor;
+    private AtomicInteger handlerQueue;
+    private AtomicLong handlerCalls, handlerNanos, maxHandlerNanos;
+    private volatile MetricsListener metrics;
 
     public RPC(StreamConnector connector) {
         this.connector = connector;
-        this.handlers = new ArrayList<Handler>();
+        this.handlers = new CopyOnWriteArrayList<Handler>();
+        this.readerHandlers = new CopyOnWriteArrayList<ReaderHandler>();
+        this.readerFunctions = new DispatchTable<>();
+        this.functions = new DispatchTable<>();
+        this.requestFunctions = new DispatchTable<>();
+        this.asyncRequestFunctions = new DispatchTable<>();
+        this.templateFunctions = new DispatchTable<>();
+        this.pending = new DispatchTable<>();
+        this.inFlight = new InFlightLimit(DEFAULT_MAX_IN_FLIGHT);
+        this.nextCallId = new AtomicInteger();
+        this.reader = new LReader();
+        this.writer = new LWriter();
+        this.executor = HandlerExecutors.inline();
+        this.handlerQueue = new AtomicInteger();
+        this.handlerCalls = new AtomicLong();
+        this.handlerNanos = new AtomicLong();
+        this.maxHandlerNanos = new AtomicLong();
+    }
+
+    /**
+     * Choose which thread runs handlers. Anything other than HandlerExecutors.inline() means
+     * each packet is copied before being queued, and handlers get their own LReader.
+     * Replies to callAsync are always completed on the parsing thread.
+     */
+    public void setHandlerExecutor(HandlerExecutor executor) {
+        this.executor = executor;
+    }
+
+    public HandlerExecutor getHandlerExecutor() {
+        return this.executor;
+    }
+
+    /**
+     * The number of calls waiting for a handler executor thread.
+     */
+    public int getHandlerQueueDepth() {
+        return this.handlerQueue.get();
+    }
+
+    /**
+     * The number of calls that have been through the handlers.
+     */
+    public long getHandlerCalls() {
+        return this.handlerCalls.get();
+    }
+
+    /**
+     * The total time spent in handlers.
+     */
+    public long getHandlerNanos() {
+        return this.handlerNanos.get();
+    }
+
+    /**
+     * The longest any single call spent in handlers.
+     */
+    public long getMaxHandlerNanos() {
+        return this.maxHandlerNanos.get();
+    }
+
+    /**
+     * Report bytes written, decode errors, unhandled calls and handler times to metrics.
+     * Decode errors are then no longer printed. Pass null, the default, to report nothing.
+     */
+    public void setMetrics(MetricsListener metrics) {
+        this.metrics = metrics;
+    }
+
+    public MetricsListener getMetrics() {
+        return this.metrics;
     }
 
     public void removeHandler(Handler handler) {
-        if (this.handlers.contains(handler)) {
-            this.handlers.remove(handler);
+        this.handlers.remove(handler);
+    }
+
+    public synchronized void call(int functionId, LWritable obj) throws LSerializer.InvalidTypeException {
+        this.writer.beginCall(functionId, obj.size());
+        obj.writeTo(this.writer);
+        this.send(this.writer.finish());
+    }
+
+    /**
+     * Call a function and wait for the reply asynchronously. Many calls can be in flight at
+     * once, up to the limit set by setMaxInFlight. The future is completed on the thread that
+     * parses incoming packets, so slow work should be moved elsewhere.
+     * @param timeout How long to wait for the reply before failing with a TimeoutException.
+     * @return A future that completes with the results, or fails with a TimeoutException, or a
+     * RejectedExecutionException if too many calls are already in flight.
+     */
+    public CompletableFuture<LSerializer> callAsync(int functionId, LWritable obj, long timeout, TimeUnit unit) {
+        final PendingCall call = new PendingCall();
+        if (!this.inFlight.tryAcquire()) {
+            call.completeExceptionally(new RejectedExecutionException("Too many calls in flight."));
+            return call;
+        }
+        do {
+            call.callId = this.nextCallId.getAndIncrement() & 0xffff;
+        } while (!this.pending.putIfAbsent(call.callId, call));
+
+        call.timeout = this.getTimeouts().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (finish(call)) {
+                    call.completeExceptionally(new TimeoutException("No reply to call " + call.callId + "."));
+                }
+            }
+        }, timeout, unit);
+        // Replies, timeouts and errors free the slot before completing the call, so callbacks
+        // can make calls of their own. This catches a call cancelled by the caller.
+        call.whenComplete(new BiConsumer<LSerializer, Throwable>() {
+            @Override
+            public void accept(LSerializer result, Throwable error) {
+                finish(call);
+            }
+        });
+
+        try {
+            synchronized (this) {
+                this.writer.begin(RPC_REQUEST_PACKET_ID, obj.size() + 2);
+                this.writer.writeUInt16(functionId);
+                this.writer.writeUInt16(call.callId);
+                obj.writeTo(this.writer);
+                this.send(this.writer.finish());
+            }
+        } catch (LSerializer.InvalidTypeException e) {
+            if (this.finish(call)) {
+                call.completeExceptionally(e);
+            }
+        }
+        return call;
+    }
+
+    /**
+     * Limit how many callAsync calls can wait for a reply at once, between 1 and 65536, the
+     * number of call IDs. Calls already in flight count against the new limit.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1 || maxInFlight > 0x10000) {
+            throw new IllegalArgumentException("Calls in flight must be between 1 and 65536.");
+        }
+        this.inFlight.resize(maxInFlight);
+    }
+
+    /**
+     * Stop waiting for call and free its slot.
+     * @return False if it had already finished.
+     */
+    private boolean finish(PendingCall call) {
+        if (!this.pending.remove(call.callId, call)) {
+            return false;
+        }
+        if (call.timeout != null) {
+            call.timeout.cancel(false);
+        }
+        this.inFlight.release();
+        return true;
+    }
+
+    /**
+     * Register a handler for calls made with callAsync. Whatever it returns is sent back as
+     * the reply. Returning null sends nothing and the caller will time out.
+     */
+    public void registerRequestFunction(int functionId, RequestHandler handler) {
+        this.requestFunctions.put(functionId, handler);
+    }
+
+    /**
+     * Register a handler for calls made with callAsync that reads the arguments with an LReader
+     * and replies when its future completes, on whichever thread completes it. The handler
+     * thread isn't held up while the reply is worked out. Tried before a RequestHandler
+     * registered for the same ID.
+     */
+    public void registerAsyncRequestFunction(int functionId, AsyncRequestHandler handler) {
+        this.asyncRequestFunctions.put(functionId, handler);
+    }
+
+    public void unregisterRequestFunction(int functionId) {
+        this.asyncRequestFunctions.remove(functionId);
+        this.requestFunctions.remove(functionId);
+    }
+
+    /**
+     * Register this RPC with a parser for every packet type it handles.
+     */
+    public void attach(StreamParser parser) {
+        parser.addHandler(RPC_PACKET_ID, this);
+        parser.addHandler(RPC_REQUEST_PACKET_ID, this);
+        parser.addHandler(RPC_RESPONSE_PACKET_ID, this);
+        parser.addHandler(RPC_BATCH_PACKET_ID, this);
+    }
+
+    /**
+     * Fail every call still waiting for a reply and stop the timeout and handler threads.
+     */
+    public void shutdown() {
+        this.executor.shutdown();
+        for (int i = 0; i <= 0xffff; i++) {
+            PendingCall call = this.pending.get(i);
+            if (call != null && this.finish(call)) {
+                call.completeExceptionally(new CancellationException("RPC shut down."));
+            }
+        }
+        synchronized (this) {
+            if (this.timeouts != null) {
+                this.timeouts.shutdownNow();
+                this.timeouts = null;
+            }
+        }
+    }
+
+    private synchronized ScheduledExecutorService getTimeouts() {
+        if (this.timeouts == null) {
+            this.timeouts = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "RPC timeouts");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
         }
+        return this.timeouts;
+    }
+
+    /**
+     * Send a packet built with an LWriter, usually started with beginCall.
+     */
+    public synchronized void call(LWriter writer) throws LSerializer.InvalidTypeException {
+        this.send(writer.finish());
     }
 
-    public synchronized void call(int functionId, LSerializer obj) throws LSerializer.InvalidTypeException {
-        List<LObject> data = new ArrayList<>(obj.getData());
-        data.add(0, LObjects.Int(LType.UINT16, functionId));
-        LSerializer send = new LSerializer(data);
-        connector.writeData(StreamParser.WrapBuffer(RPC.RPC_PACKET_ID, send.serialize()));
+    /**
+     * Send a complete packet, such as one from MessageTemplate.newPacket(). Everything from
+     * index 0 up to the limit is written.
+     */
+    public synchronized void call(ByteBuffer packet) {
+        packet.position(0);
+        this.send(packet);
+    }
+
+    private void send(ByteBuffer packet) {
+        MetricsListener metrics = this.metrics;
+        if (metrics != null) {
+            metrics.onBytesWritten(packet.limit());
+        }
+        if (connector instanceof BlockStreamConnector && packet.hasArray()) {
+            ((BlockStreamConnector) connector).writeData(packet.array(), packet.arrayOffset(), packet.limit());
+        } else {
+            byte data[] = new byte[packet.limit()];
+            packet.get(data);
+            connector.writeData(data);
+        }
     }
 
     public void addHandler(Handler handler) {
         this.handlers.add(handler);
     }
 
+    /**
+     * Reader handlers are offered each call before the LSerializer handlers. The
+     * LSerializer is only built if no reader handler accepts the call.
+     */
+    public void addReaderHandler(ReaderHandler handler) {
+        this.readerHandlers.add(handler);
+    }
+
+    public void removeReaderHandler(ReaderHandler handler) {
+        this.readerHandlers.remove(handler);
+    }
+
+    /**
+     * Register a handler for a single function ID. These are looked up in constant time
+     * before any of the handlers added with addReaderHandler or addHandler are tried. A
+     * registered handler that returns false passes the call on to those. Replaces any handler
+     * already registered for the ID. Safe to call while packets are being dispatched.
+     */
+    public void registerReaderFunction(int functionId, ReaderHandler handler) {
+        this.readerFunctions.put(functionId, handler);
+    }
+
+    /**
+     * Register an LSerializer handler for a single function ID. Reader functions registered
+     * for the same ID are tried first.
+     */
+    public void registerFunction(int functionId, Handler handler) {
+        this.functions.put(functionId, handler);
+    }
+
+    /**
+     * Register a handler for calls to functionId laid out exactly as template, which must be
+     * a MessageTemplate.forCall template. Matching calls skip LReader and go straight to the
+     * handler, which reads fields at the template's fixed offsets. Calls that don't match are
+     * passed on as usual. Replaces any template handler already registered for the ID.
+     */
+    public void registerFunction(int functionId, MessageTemplate template, TemplateHandler handler) {
+        if (template.getPacketType() != RPC_PACKET_ID || template.getFunctionId() != functionId) {
+            throw new IllegalArgumentException("Template isn't for calls to function " + functionId + ".");
+        }
+        TemplateFunction function = new TemplateFunction();
+        function.template = template;
+        function.handler = handler;
+        this.templateFunctions.put(functionId, function);
+    }
+
+    public void unregisterFunction(int functionId) {
+        this.templateFunctions.remove(functionId);
+        this.readerFunctions.remove(functionId);
+        this.functions.remove(functionId);
+    }
+
+    /**
+     * Unregister handler only if it is still the LSerializer handler for functionId. Reader
+     * and template functions for the ID, and any handler registered since, are left alone.
+     * @return True if it was removed.
+     */
+    public boolean unregisterFunction(int functionId, Handler handler) {
+        return this.functions.remove(functionId, handler);
+    }
+
+    /**
+     * The packet is fully decoded before this returns, so RPC can be used with
+     * StreamParser.DeliveryMode.VIEW.
+     */
     @Override
-    public void onPacket(int type, int size, ByteBuffer buffer) {
-        if (type == RPC_PACKET_ID) {
+    public void onPacket(final int type, int size, ByteBuffer buffer) {
+        if (type == RPC_BATCH_PACKET_ID) {
+            this.onBatch(size, buffer);
+            return;
+        }
+        if (type != RPC_PACKET_ID && type != RPC_REQUEST_PACKET_ID && type != RPC_RESPONSE_PACKET_ID) {
+            System.err.println("RPC given wrong packet type.");
+            return;
+        }
+        if (type == RPC_PACKET_ID && this.executor.isInline() && this.onTemplate(size, buffer)) {
+            return;
+        }
+        try {
+            this.reader.reset(buffer);
+            if (this.reader.size() < 1 || this.reader.getType(0) == LType.STRING || this.reader.getType(0) == LType.FLOAT) {
+                throw new LSerializer.InvalidTypeException("Missing function ID.");
+            }
+            if (type == RPC_RESPONSE_PACKET_ID) {
+                this.onResponse(this.reader.getInt(0), buffer);
+                return;
+            }
+            // Function IDs are written as UINT16, anything else would be out of range for the handler tables.
+            if (this.reader.getType(0) != LType.UINT16) {
+                throw new LSerializer.InvalidTypeException("Function ID isn't a UINT16.");
+            }
+
+            final int functionId = this.reader.getInt(0);
+            final HandlerExecutor executor = this.executor;
+            if (executor.isInline()) {
+                this.handle(type, functionId, buffer, this.reader);
+                return;
+            }
+
+            final ByteBuffer copy = ByteBuffer.allocate(size);
+            ByteBuffer source = buffer.duplicate();
+            source.clear();
+            source.limit(size);
+            copy.put(source);
+            copy.flip();
+            this.handlerQueue.incrementAndGet();
             try {
-                LSerializer object = new LSerializer(buffer);
-                int functionId = (int) object.intAt(0).getData();
-                object.getData().remove(0);
-                for (Handler handler: handlers) {
-                    if (handler.onRPC(functionId, object)) {
-                        break;
+                executor.execute(functionId, new Runnable() {
+                    @Override
+                    public void run() {
+                        handlerQueue.decrementAndGet();
+                        try {
+                            handle(type, functionId, copy, new LReader(copy));
+                        } catch (LSerializer.InvalidTypeException e) {
+                            decodeError(type, copy);
+                        }
                     }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shut down or full, the call is dropped rather than stopping the parser.
+                this.handlerQueue.decrementAndGet();
+                MetricsListener metrics = this.metrics;
+                if (metrics != null) {
+                    metrics.onUnhandled(functionId);
                 }
-            } catch (LSerializer.InvalidTypeException e) {
-                System.err.println("Failed to de-serialize object [" + buffer.toString() + "]");
             }
+        } catch (LSerializer.InvalidTypeException e) {
+            this.decodeError(type, buffer);
+        }
+    }
+
+    /**
+     * Hand a call straight to its template handler if it matches the registered template.
+     * Only the function ID is read before the match, so nothing else is decoded twice.
+     */
+    private boolean onTemplate(int size, ByteBuffer buffer) {
+        if (size < 2) {
+            return false;
+        }
+        int offset = 1 + (buffer.get(0) & 0xff);
+        if (offset + 2 > size || buffer.get(1) != LType.UINT16.getId()) {
+            return false;
+        }
+        int functionId = buffer.getShort(offset) & 0xffff;
+        TemplateFunction function = this.templateFunctions.get(functionId);
+        if (function == null || !function.template.matches(buffer, size)) {
+            return false;
+        }
+        long start = System.nanoTime();
+        try {
+            function.handler.onRPC(functionId, function.template, buffer);
+        } finally {
+            this.recordHandler(functionId, start);
+        }
+        return true;
+    }
+
+    /**
+     * Handle each entry of a batch in turn through a view of its payload, nothing is copied
+     * unless a handler executor needs it.
+     */
+    private void onBatch(int size, ByteBuffer buffer) {
+        ByteBuffer view = buffer.duplicate();
+        int offset = 0;
+        while (offset < size) {
+            if (offset + BatchingConnector.ENTRY_HEADER_SIZE > size) {
+                this.decodeError(RPC_BATCH_PACKET_ID, buffer);
+                return;
+            }
+            int type = buffer.get(offset) & 0xff;
+            int length = buffer.getShort(offset + 1) & 0xffff;
+            offset += BatchingConnector.ENTRY_HEADER_SIZE;
+            if (offset + length > size || (type != RPC_PACKET_ID && type != RPC_REQUEST_PACKET_ID && type != RPC_RESPONSE_PACKET_ID)) {
+                this.decodeError(RPC_BATCH_PACKET_ID, buffer);
+                return;
+            }
+            view.limit(offset + length);
+            view.position(offset);
+            this.onPacket(type, length, view.slice());
+            offset += length;
+        }
+    }
+
+    private void decodeError(int type, ByteBuffer buffer) {
+        MetricsListener metrics = this.metrics;
+        if (metrics != null) {
+            metrics.onDecodeError(type);
         } else {
-            System.err.println("RPC given wrong packet type.");
+            System.err.println("Failed to de-serialize object [" + buffer.toString() + "]");
         }
     }
 
+    /**
+     * Run the handlers for a call or request. reader must already be reset onto buffer.
+     */
+    private void handle(int type, int functionId, ByteBuffer buffer, LReader reader) throws LSerializer.InvalidTypeException {
+        long start = System.nanoTime();
+        try {
+            reader.shift();
+            if (type == RPC_REQUEST_PACKET_ID) {
+                if (reader.size() < 1 || reader.getType(0) != LType.UINT16) {
+                    throw new LSerializer.InvalidTypeException("Missing call ID.");
+                }
+                int callId = reader.getInt(0);
+                reader.shift();
+                AsyncRequestHandler asyncFunction = asyncRequestFunctions.get(functionId);
+                if (asyncFunction != null) {
+                    CompletableFuture<? extends LWritable> result = asyncFunction.onRequest(functionId, reader);
+                    if (result != null) {
+                        this.replyWhenDone(callId, result);
+                        return;
+                    }
+                }
+                RequestHandler requestFunction = requestFunctions.get(functionId);
+                if (requestFunction != null) {
+                    LSerializer object = new LSerializer(buffer);
+                    object.remove(0);
+                    object.remove(0);
+                    LSerializer result = requestFunction.onRequest(functionId, object);
+                    if (result != null) {
+                        this.reply(callId, result);
+                    }
+                    return;
+                }
+            }
+            this.dispatch(functionId, type == RPC_REQUEST_PACKET_ID ? 2 : 1, buffer, reader);
+        } finally {
+            this.recordHandler(functionId, start);
+        }
+    }
+
+    private void recordHandler(int functionId, long start) {
+        long time = System.nanoTime() - start;
+        MetricsListener metrics = this.metrics;
+        if (metrics != null) {
+            metrics.onHandlerTime(functionId, time);
+        }
+        this.handlerCalls.incrementAndGet();
+        this.handlerNanos.addAndGet(time);
+        long max = this.maxHandlerNanos.get();
+        while (time > max && !this.maxHandlerNanos.compareAndSet(max, time)) {
+            max = this.maxHandlerNanos.get();
+        }
+    }
+
+    private void onResponse(int callId, ByteBuffer buffer) throws LSerializer.InvalidTypeException {
+        PendingCall call = this.pending.get(callId);
+        // Replies to calls that have already timed out are dropped.
+        if (call != null) {
+            LSerializer result = new LSerializer(buffer);
+            result.remove(0);
+            if (this.finish(call)) {
+                call.complete(result);
+            }
+        }
+    }
+
+    private void replyWhenDone(final int callId, CompletableFuture<? extends LWritable> future) {
+        future.whenComplete(new BiConsumer<LWritable, Throwable>() {
+            @Override
+            public void accept(LWritable result, Throwable error) {
+                // A failed or empty result isn't replied to, like a RequestHandler returning null.
+                if (error != null || result == null) {
+                    return;
+                }
+                try {
+                    reply(callId, result);
+                } catch (LSerializer.InvalidTypeException e) {
+                    System.err.println("Failed to reply to call " + callId + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    private synchronized void reply(int callId, LWritable result) throws LSerializer.InvalidTypeException {
+        this.writer.begin(RPC_RESPONSE_PACKET_ID, result.size() + 1);
+        this.writer.writeUInt16(callId);
+        result.writeTo(this.writer);
+        this.send(this.writer.finish());
+    }
+
+    /**
+     * Offer a call to the registered function and then the handler chains.
+     * @param skip How many leading fields to drop when an LSerializer is built.
+     */
+    private void dispatch(int functionId, int skip, ByteBuffer buffer, LReader reader) throws LSerializer.InvalidTypeException {
+        // Calls queued for a handler executor don't go through onTemplate first.
+        TemplateFunction template = skip == 1 ? templateFunctions.get(functionId) : null;
+        if (template != null && template.template.matches(buffer, buffer.limit())) {
+            template.handler.onRPC(functionId, template.template, buffer);
+            return;
+        }
+        ReaderHandler readerFunction = readerFunctions.get(functionId);
+        if (readerFunction != null && readerFunction.onRPC(functionId, reader)) {
+            return;
+        }
+        LSerializer object = null;
+        Handler function = functions.get(functionId);
+        if (function != null) {
+            object = this.unserialize(buffer, skip);
+            if (function.onRPC(functionId, object)) {
+                return;
+            }
+        }
+        for (ReaderHandler handler: readerHandlers) {
+            if (handler.onRPC(functionId, reader)) {
+                return;
+            }
+        }
+        if (!handlers.isEmpty()) {
+            if (object == null) {
+                object = this.unserialize(buffer, skip);
+            }
+            for (Handler handler: handlers) {
+                if (handler.onRPC(functionId, object)) {
+                    return;
+                }
+            }
+        }
+        MetricsListener metrics = this.metrics;
+        if (metrics != null) {
+            metrics.onUnhandled(functionId);
+        }
+    }
+
+    private LSerializer unserialize(ByteBuffer buffer, int skip) throws LSerializer.InvalidTypeException {
+        LSerializer object = new LSerializer(buffer);
+        for (int i = 0; i < skip; i++) {
+            object.remove(0);
+        }
+        return object;
+    }
+
     public interface Handler {
         boolean onRPC(int functionId, LSerializer object);
     }
+
+    public interface RequestHandler {
+        /**
+         * @return The results to send back to the caller, or null to not reply.
+         */
+        LSerializer onRequest(int functionId, LSerializer object);
+    }
+
+    public interface TemplateHandler {
+        /**
+         * payload has already been checked against template, so its fields can be read with
+         * template.getLong and friends. Like a ReaderHandler it must not be kept.
+         */
+        void onRPC(int functionId, MessageTemplate template, ByteBuffer payload);
+    }
+
+    private static class TemplateFunction {
+        private MessageTemplate template;
+        private TemplateHandler handler;
+    }
+
+    private static class PendingCall extends CompletableFuture<LSerializer> {
+        private int callId;
+        private volatile ScheduledFuture<?> timeout;
+    }
+
+    /**
+     * A Semaphore whose number of permits can be changed while some are taken.
+     */
+    // Subclassed for reducePermits, which Semaphore only offers to subclasses.
+    private static class InFlightLimit extends Semaphore {
+        private static final long serialVersionUID = 1L;
+        private int limit;
+
+        private InFlightLimit(int limit) {
+            super(limit);
+            this.limit = limit;
+        }
+
+        private synchronized void resize(int limit) {
+            if (limit > this.limit) {
+                this.release(limit - this.limit);
+            } else {
+                this.reducePermits(this.limit - limit);
+            }
+            this.limit = limit;
+        }
+    }
+
+    public interface AsyncRequestHandler {
+        /**
+         * Field 0 of reader is the first argument, the function and call IDs have already been
+         * removed. Like a ReaderHandler it must not be kept after this returns.
+         * @return A future of the results to send back, or null to pass the request on to the
+         * other handlers. A future that fails or completes with null sends nothing.
+         */
+        CompletableFuture<? extends LWritable> onRequest(int functionId, LReader reader);
+    }
+
+    public interface ReaderHandler {
+        /**
+         * The reader is reused for the next call and must not be kept after this returns.
+         * Field 0 is the first argument, the function ID has already been removed.
+         */
+        boolean onRPC(int functionId, LReader reader);
+    }
 }
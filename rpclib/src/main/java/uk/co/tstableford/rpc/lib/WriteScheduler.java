@@ -0,0 +1,379 @@
+package uk.co.tstableford.rpc.lib;
+
+import uk.co.tstableford.rpc.lib.metrics.MetricsListener;
+import uk.co.tstableford.rpc.lib.serializer.LReader;
+import uk.co.tstableford.rpc.lib.serializer.LSerializer;
+import uk.co.tstableford.rpc.lib.stream.BlockStreamConnector;
+import uk.co.tstableford.rpc.lib.stream.BlockStreamConnectors;
+import uk.co.tstableford.rpc.lib.stream.BufferPool;
+import uk.co.tstableford.rpc.lib.stream.DispatchTable;
+import uk.co.tstableford.rpc.lib.stream.StreamConnector;
+import uk.co.tstableford.rpc.lib.stream.StreamParser;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps a connector so that packets are queued by priority class and written by a single
+ * writer thread, letting urgent packets overtake bulk traffic sharing the same link.
+ *
+ * Each class is either strict or weighted. Strict classes are always served first, in the
+ * order they were given. Weighted classes share what's left by deficit round robin, so each
+ * gets link time in proportion to its weight, measured in bytes. An urgent packet waits for
+ * at most the packet being written when it arrives, so bulk streams should be cut into
+ * modest packets, for instance with Fragmenter.
+ *
+ * Packets are put in a class by function ID for RPC calls and requests, then by packet type,
+ * then the default class, which is the last one unless set otherwise. Each writeData call must
+ * hold exactly one whole packet. writeData copies it and returns straight away, unless its
+ * class's queue is full, in which case it waits for space. Packets the wrapped connector fails
+ * to write, or throws on, are counted by getLost and the writer thread carries on.
+ */
+public class WriteScheduler implements BlockStreamConnector {
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+    public static final int QUANTUM = 256;
+    private final StreamConnector connector;
+    private final TrafficClass[] classes;
+    private final int queueSize;
+    private final BufferPool pool;
+    private final DispatchTable<TrafficClass> byType = new DispatchTable<>();
+    private final DispatchTable<TrafficClass> byFunction = new DispatchTable<>();
+    private final LReader reader = new LReader();
+    private final Thread thread;
+    private volatile TrafficClass defaultClass;
+    private volatile boolean byFunctionUsed = false;
+    private volatile MetricsListener metrics;
+    // Guarded by this.
+    private int queued = 0;
+    private int next = 0;
+    private long accepted = 0, done = 0, lost = 0;
+    private volatile boolean running = true;
+
+    /**
+     * @param queueSize The most packets each class can hold before writers wait.
+     * @param classes The priority classes, numbered by their position here.
+     */
+    public WriteScheduler(StreamConnector connector, int queueSize, TrafficClass... classes) {
+        if (classes.length < 1) {
+            throw new IllegalArgumentException("At least one class is needed.");
+        }
+        this.connector = connector;
+        this.queueSize = queueSize;
+        this.classes = new TrafficClass[classes.length];
+        for (int i = 0; i < classes.length; i++) {
+            this.classes[i] = new TrafficClass(classes[i].name, classes[i].strict, classes[i].weight);
+            this.classes[i].index = i;
+        }
+        this.defaultClass = this.classes[classes.length - 1];
+        this.pool = new BufferPool(4096);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "WriteScheduler");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public WriteScheduler(StreamConnector connector, TrafficClass... classes) {
+        this(connector, DEFAULT_QUEUE_SIZE, classes);
+    }
+
+    /**
+     * Put every packet of the given type in trafficClass, unless its function ID says otherwise.
+     */
+    public void assignType(int type, int trafficClass) {
+        this.byType.put(type, this.classes[trafficClass]);
+    }
+
+    /**
+     * Put calls and requests to functionId in trafficClass.
+     */
+    public void assignFunction(int functionId, int trafficClass) {
+        this.byFunction.put(functionId, this.classes[trafficClass]);
+        this.byFunctionUsed = true;
+    }
+
+    public void setDefaultClass(int trafficClass) {
+        this.defaultClass = this.classes[trafficClass];
+    }
+
+    /**
+     * Report how long packets wait in each class's queue to metrics. Pass null, the default,
+     * to report nothing.
+     */
+    public void setMetrics(MetricsListener metrics) {
+        this.metrics = metrics;
+    }
+
+    public synchronized int getQueueDepth(int trafficClass) {
+        return this.classes[trafficClass].queue.size();
+    }
+
+    /**
+     * The number of packets of trafficClass that have been written.
+     */
+    public synchronized long getWritten(int trafficClass) {
+        return this.classes[trafficClass].written;
+    }
+
+    /**
+     * The number of packets the wrapped connector failed to write.
+     */
+    public synchronized long getLost() {
+        return this.lost;
+    }
+
+    @Override
+    public int writeData(byte[] data) {
+        return this.writeData(data, 0, data.length);
+    }
+
+    /**
+     * Queue a packet to be written.
+     * @return length, or 0 if the scheduler is closed or the wait for space was interrupted.
+     */
+    @Override
+    public int writeData(byte[] data, int offset, int length) {
+        if (!this.running) {
+            return 0;
+        }
+        TrafficClass trafficClass = this.classify(data, offset, length);
+        Entry entry = new Entry();
+        entry.trafficClass = trafficClass.index;
+        entry.frame = this.pool.acquire(length);
+        entry.frame.put(data, offset, length);
+        entry.frame.flip();
+
+        synchronized (this) {
+            try {
+                while (this.running && trafficClass.queue.size() >= this.queueSize) {
+                    this.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                this.pool.release(entry.frame);
+                return 0;
+            }
+            if (!this.running) {
+                this.pool.release(entry.frame);
+                return 0;
+            }
+            entry.queuedAt = System.nanoTime();
+            trafficClass.queue.add(entry);
+            this.queued++;
+            this.accepted++;
+            this.notifyAll();
+        }
+        return length;
+    }
+
+    /**
+     * Wait until every packet queued before this call has been written.
+     * @return False if the timeout passed first.
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        return this.flushUntil(System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /**
+     * Write out what is queued, waiting up to timeout, and stop the writer thread.
+     */
+    public void close(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        this.flushUntil(deadline);
+        synchronized (this) {
+            this.running = false;
+            this.notifyAll();
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining > 0) {
+            TimeUnit.NANOSECONDS.timedJoin(this.thread, remaining);
+        }
+    }
+
+    private synchronized boolean flushUntil(long deadline) throws InterruptedException {
+        long target = this.accepted;
+        while (this.done < target) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    private TrafficClass classify(byte[] data, int offset, int length) {
+        int payload = length - StreamParser.HEADER_SIZE;
+        if (payload < 1) {
+            return this.defaultClass;
+        }
+        int type = ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+        if (this.byFunctionUsed && (type == RPC.RPC_PACKET_ID || type == RPC.RPC_REQUEST_PACKET_ID)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data, offset + StreamParser.HEADER_SIZE, payload).slice();
+            synchronized (this.reader) {
+                try {
+                    this.reader.reset(buffer);
+                    if (this.reader.size() > 0 && this.reader.getType(0).isInteger()) {
+                        TrafficClass trafficClass = this.byFunction.get(this.reader.getInt(0));
+                        if (trafficClass != null) {
+                            return trafficClass;
+                        }
+                    }
+                } catch (LSerializer.InvalidTypeException e) {
+                    // Not a call RPC could read either, classify it by type.
+                }
+            }
+        }
+        TrafficClass trafficClass = this.byType.get(type);
+        return trafficClass != null ? trafficClass : this.defaultClass;
+    }
+
+    /**
+     * The next packet to write, or null if every queue is empty.
+     */
+    private Entry take() {
+        if (this.queued == 0) {
+            return null;
+        }
+        for (TrafficClass trafficClass: this.classes) {
+            if (trafficClass.strict && !trafficClass.queue.isEmpty()) {
+                return this.taken(trafficClass);
+            }
+        }
+        // Only weighted classes have anything queued. A class is served while its deficit
+        // covers its next packet, otherwise it's topped up and the next class gets a turn.
+        while (true) {
+            TrafficClass trafficClass = this.classes[this.next];
+            Entry head = trafficClass.queue.peek();
+            if (head == null || trafficClass.strict) {
+                trafficClass.deficit = 0;
+            } else if (trafficClass.deficit >= head.frame.remaining()) {
+                trafficClass.deficit -= head.frame.remaining();
+                return this.taken(trafficClass);
+            } else {
+                trafficClass.deficit += (long) trafficClass.weight * QUANTUM;
+            }
+            this.next = (this.next + 1) % this.classes.length;
+        }
+    }
+
+    private Entry taken(TrafficClass trafficClass) {
+        this.queued--;
+        // A writer may be waiting for space.
+        this.notifyAll();
+        return trafficClass.queue.poll();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            Entry entry;
+            synchronized (this) {
+                while ((entry = this.take()) == null) {
+                    if (!this.running) {
+                        return;
+                    }
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            MetricsListener metrics = this.metrics;
+            if (metrics != null) {
+                metrics.onQueueWait(entry.trafficClass, System.nanoTime() - entry.queuedAt);
+            }
+            ByteBuffer frame = entry.frame;
+            boolean written;
+            try {
+                written = BlockStreamConnectors.writeData(this.connector, frame.array(), frame.arrayOffset(), frame.limit()) == frame.limit();
+            } catch (RuntimeException e) {
+                System.err.println("WriteScheduler failed to write a packet: " + e);
+                written = false;
+            }
+            this.pool.release(frame);
+            synchronized (this) {
+                if (written) {
+                    this.classes[entry.trafficClass].written++;
+                } else {
+                    this.lost++;
+                }
+                this.done++;
+                this.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public int readData() {
+        return this.connector.readData();
+    }
+
+    @Override
+    public int readData(byte[] buffer, int offset, int length) {
+        return BlockStreamConnectors.readData(this.connector, buffer, offset, length);
+    }
+
+    @Override
+    public int readData(ByteBuffer buffer) {
+        return BlockStreamConnectors.readData(this.connector, buffer);
+    }
+
+    /**
+     * A priority class. Create them with strict or weighted and pass them to the constructor.
+     */
+    public static class TrafficClass {
+        private final String name;
+        private final boolean strict;
+        private final int weight;
+        private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+        private int index;
+        private long deficit = 0;
+        private long written = 0;
+
+        private TrafficClass(String name, boolean strict, int weight) {
+            this.name = name;
+            this.strict = strict;
+            this.weight = weight;
+        }
+
+        /**
+         * A class served before any weighted class, and before strict classes given after it.
+         */
+        public static TrafficClass strict(String name) {
+            return new TrafficClass(name, true, 0);
+        }
+
+        /**
+         * A class sharing the link with the other weighted classes in proportion to weight.
+         */
+        public static TrafficClass weighted(String name, int weight) {
+            if (weight < 1) {
+                throw new IllegalArgumentException("Weight must be at least 1.");
+            }
+            return new TrafficClass(name, false, weight);
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public boolean isStrict() {
+            return this.strict;
+        }
+
+        public int getWeight() {
+            return this.weight;
+        }
+    }
+
+    private static class Entry {
+        private ByteBuffer frame;
+        private long queuedAt;
+        private int trafficClass;
+    }
+}
@@ -0,0 +1,23 @@
+package uk.co.tstableford.rpc.lib.annotation;
+
+import uk.co.tstableford.rpc.lib.object.LType;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * The wire type of an RPCFunction parameter, or on the method, of the value its request
+ * replies with. Without it the type follows the Java type: byte INT8, short INT16, int INT32,
+ * long INT64, boolean UINT8, float FLOAT and String STRING.
+ *
+ * Any integer type can be used as long as the Java type can hold every value it decodes to,
+ * so an int can be sent as a UINT16 but a UINT32 needs a long.
+ * Generated skeletons only accept a field sent as exactly its declared type.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target({ElementType.PARAMETER, ElementType.METHOD})
+public @interface Field {
+    LType value();
+}
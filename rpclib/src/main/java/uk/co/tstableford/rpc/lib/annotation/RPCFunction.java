@@ -0,0 +1,20 @@
+package uk.co.tstableford.rpc.lib.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * The function ID a method of an RPCService is called with.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.METHOD)
+public @interface RPCFunction {
+    int id();
+
+    /**
+     * How long a stub waits for the reply to a request before failing it with a TimeoutException.
+     */
+    long timeoutMillis() default 1000;
+}
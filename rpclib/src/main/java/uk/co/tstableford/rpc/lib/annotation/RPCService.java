@@ -0,0 +1,31 @@
+package uk.co.tstableford.rpc.lib.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an interface whose methods are RPC functions. With rpc_processor on the compile
+ * classpath, an interface Foo gets two generated classes in the same package:
+ * <ul>
+ * <li>FooStub implements Foo and sends each call over an RPC.</li>
+ * <li>FooSkeleton registers a Foo implementation with an RPC for each function ID.</li>
+ * </ul>
+ * Every method needs an RPCFunction annotation. Methods returning void are one way calls,
+ * methods returning a CompletableFuture are requests and complete with the reply.
+ * <pre>
+ * &#64;RPCService
+ * public interface Thermostat {
+ *     &#64;RPCFunction(id = 1)
+ *     void setTarget(&#64;Field(LType.INT16) int tenthsOfDegree, String zone);
+ *
+ *     &#64;RPCFunction(id = 2)
+ *     CompletableFuture&lt;Float&gt; getTemperature(String zone);
+ * }
+ * </pre>
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface RPCService {
+}
@@ -0,0 +1,292 @@
+package uk.co.tstableford.rpc.lib.metrics;
+
+import uk.co.tstableford.rpc.lib.stream.DispatchTable;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts MetricsListener events with LongAdders so several parsing threads can share one
+ * instance. Pass it to StreamParser.setMetrics and RPC.setMetrics, then read it directly or
+ * over JMX after calling register.
+ */
+public class Metrics implements MetricsListener, MetricsMXBean {
+    private final LongAdder frames = new LongAdder();
+    private final DispatchTable<LongAdder> framesByType = new DispatchTable<>();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder resyncSkipped = new LongAdder();
+    private final LongAdder crcFailures = new LongAdder();
+    private final LongAdder oversizeDrops = new LongAdder();
+    private final LongAdder decodeErrors = new LongAdder();
+    private final LongAdder unhandled = new LongAdder();
+    private final DispatchTable<LongAdder> unhandledByFunction = new DispatchTable<>();
+    private final DispatchTable<LatencyHistogram> handlerTimes = new DispatchTable<>();
+    private final DispatchTable<LatencyHistogram> queueWaits = new DispatchTable<>();
+
+    @Override
+    public void onFrame(int type, int size) {
+        this.frames.increment();
+        increment(this.framesByType, type);
+    }
+
+    @Override
+    public void onBytesRead(int count) {
+        this.bytesRead.add(count);
+    }
+
+    @Override
+    public void onBytesWritten(int count) {
+        this.bytesWritten.add(count);
+    }
+
+    @Override
+    public void onResyncSkipped(int count) {
+        this.resyncSkipped.add(count);
+    }
+
+    @Override
+    public void onCrcFailure() {
+        this.crcFailures.increment();
+    }
+
+    @Override
+    public void onOversize(int type, int size) {
+        this.oversizeDrops.increment();
+    }
+
+    @Override
+    public void onDecodeError(int type) {
+        this.decodeErrors.increment();
+    }
+
+    @Override
+    public void onUnhandled(int functionId) {
+        this.unhandled.increment();
+        increment(this.unhandledByFunction, functionId);
+    }
+
+    @Override
+    public void onHandlerTime(int functionId, long nanos) {
+        record(this.handlerTimes, functionId, nanos);
+    }
+
+    @Override
+    public void onQueueWait(int trafficClass, long nanos) {
+        record(this.queueWaits, trafficClass, nanos);
+    }
+
+    /**
+     * Register with the platform MBean server as uk.co.tstableford.rpc:type=Metrics,name=name.
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("uk.co.tstableford.rpc:type=Metrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    public void unregister(ObjectName objectName) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+    }
+
+    /**
+     * @return The handler times for functionId, or null if it hasn't been called.
+     */
+    public LatencyHistogram getHandlerTimes(int functionId) {
+        return this.handlerTimes.get(functionId);
+    }
+
+    /**
+     * @return The queue waits for trafficClass, or null if nothing of that class was queued.
+     */
+    public LatencyHistogram getQueueWaits(int trafficClass) {
+        return this.queueWaits.get(trafficClass);
+    }
+
+    public long getFrames(int type) {
+        LongAdder counter = this.framesByType.get(type);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    @Override
+    public long getFrames() {
+        return this.frames.sum();
+    }
+
+    @Override
+    public Map<String, Long> getFramesByType() {
+        return sums(this.framesByType);
+    }
+
+    @Override
+    public long getBytesRead() {
+        return this.bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return this.bytesWritten.sum();
+    }
+
+    @Override
+    public long getResyncSkippedBytes() {
+        return this.resyncSkipped.sum();
+    }
+
+    @Override
+    public long getCrcFailures() {
+        return this.crcFailures.sum();
+    }
+
+    @Override
+    public long getOversizeDrops() {
+        return this.oversizeDrops.sum();
+    }
+
+    @Override
+    public long getDecodeErrors() {
+        return this.decodeErrors.sum();
+    }
+
+    @Override
+    public long getUnhandledCalls() {
+        return this.unhandled.sum();
+    }
+
+    @Override
+    public Map<String, Long> getUnhandledByFunction() {
+        return sums(this.unhandledByFunction);
+    }
+
+    @Override
+    public Map<String, Long> getHandlerCalls() {
+        Map<String, Long> out = new TreeMap<>();
+        for (int i = 0; i <= 0xffff; i++) {
+            LatencyHistogram histogram = this.handlerTimes.get(i);
+            if (histogram != null) {
+                out.put(Integer.toString(i), histogram.getCount());
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public Map<String, Long> getHandlerP50Nanos() {
+        return percentiles(this.handlerTimes, 50);
+    }
+
+    @Override
+    public Map<String, Long> getHandlerP99Nanos() {
+        return percentiles(this.handlerTimes, 99);
+    }
+
+    @Override
+    public Map<String, Long> getHandlerMaxNanos() {
+        return percentiles(this.handlerTimes, 100);
+    }
+
+    @Override
+    public Map<String, Long> getQueueWaitP50Nanos() {
+        return percentiles(this.queueWaits, 50);
+    }
+
+    @Override
+    public Map<String, Long> getQueueWaitP99Nanos() {
+        return percentiles(this.queueWaits, 99);
+    }
+
+    @Override
+    public Map<String, Long> getQueueWaitMaxNanos() {
+        return percentiles(this.queueWaits, 100);
+    }
+
+    @Override
+    public void reset() {
+        this.frames.reset();
+        this.bytesRead.reset();
+        this.bytesWritten.reset();
+        this.resyncSkipped.reset();
+        this.crcFailures.reset();
+        this.oversizeDrops.reset();
+        this.decodeErrors.reset();
+        this.unhandled.reset();
+        for (int i = 0; i <= 0xffff; i++) {
+            LongAdder counter = this.framesByType.get(i);
+            if (counter != null) {
+                counter.reset();
+            }
+            counter = this.unhandledByFunction.get(i);
+            if (counter != null) {
+                counter.reset();
+            }
+            LatencyHistogram histogram = this.handlerTimes.get(i);
+            if (histogram != null) {
+                histogram.reset();
+            }
+            histogram = this.queueWaits.get(i);
+            if (histogram != null) {
+                histogram.reset();
+            }
+        }
+    }
+
+    private static Map<String, Long> percentiles(DispatchTable<LatencyHistogram> table, double percentile) {
+        Map<String, Long> out = new TreeMap<>();
+        for (int i = 0; i <= 0xffff; i++) {
+            LatencyHistogram histogram = table.get(i);
+            if (histogram != null) {
+                out.put(Integer.toString(i), histogram.getPercentile(percentile));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * IDs that aren't a UINT16 have no histogram and are ignored.
+     */
+    private static void record(DispatchTable<LatencyHistogram> table, int id, long nanos) {
+        if ((id & ~0xffff) != 0) {
+            return;
+        }
+        LatencyHistogram histogram = table.get(id);
+        if (histogram == null) {
+            table.putIfAbsent(id, new LatencyHistogram());
+            histogram = table.get(id);
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * IDs that aren't a UINT16 have no counter and are ignored.
+     */
+    private static void increment(DispatchTable<LongAdder> table, int id) {
+        if ((id & ~0xffff) != 0) {
+            return;
+        }
+        LongAdder counter = table.get(id);
+        if (counter == null) {
+            table.putIfAbsent(id, new LongAdder());
+            counter = table.get(id);
+        }
+        counter.increment();
+    }
+
+    private static Map<String, Long> sums(DispatchTable<LongAdder> table) {
+        Map<String, Long> out = new TreeMap<>();
+        for (int i = 0; i <= 0xffff; i++) {
+            LongAdder counter = table.get(i);
+            if (counter != null) {
+                out.put(Integer.toString(i), counter.sum());
+            }
+        }
+        return out;
+    }
+}
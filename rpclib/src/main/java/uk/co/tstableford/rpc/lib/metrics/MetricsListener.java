@@ -0,0 +1,56 @@
+package uk.co.tstableford.rpc.lib.metrics;
+
+/**
+ * Receives events from StreamParser, RPC and the connectors. Every method has an empty default
+ * so listeners only implement what they need. Metrics is the usual implementation.
+ *
+ * Events are reported on the thread that caused them, often the parsing thread, so
+ * implementations should be cheap and thread safe. Nothing is reported while no listener is
+ * set. RPC still times every handled call either way, for getHandlerCalls, getHandlerNanos
+ * and getMaxHandlerNanos.
+ */
+public interface MetricsListener {
+    /**
+     * A packet with a valid header was read, whether or not anything handles its type.
+     */
+    default void onFrame(int type, int size) {}
+
+    default void onBytesRead(int count) {}
+
+    default void onBytesWritten(int count) {}
+
+    /**
+     * count bytes were thrown away while looking for the next header.
+     */
+    default void onResyncSkipped(int count) {}
+
+    /**
+     * The bytes where the next header should have been didn't hold a valid header.
+     */
+    default void onCrcFailure() {}
+
+    /**
+     * A valid header announced a payload larger than the parser's buffer and was skipped.
+     */
+    default void onOversize(int type, int size) {}
+
+    /**
+     * A packet's payload couldn't be decoded.
+     */
+    default void onDecodeError(int type) {}
+
+    /**
+     * Nothing accepted a call to functionId.
+     */
+    default void onUnhandled(int functionId) {}
+
+    /**
+     * The handlers for a call to functionId took nanos to run.
+     */
+    default void onHandlerTime(int functionId, long nanos) {}
+
+    /**
+     * A packet of priority class trafficClass waited nanos in a WriteScheduler queue.
+     */
+    default void onQueueWait(int trafficClass, long nanos) {}
+}
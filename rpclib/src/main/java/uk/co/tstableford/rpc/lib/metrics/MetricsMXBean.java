@@ -0,0 +1,44 @@
+package uk.co.tstableford.rpc.lib.metrics;
+
+import java.util.Map;
+
+/**
+ * The JMX view of Metrics. Maps are keyed by packet type, function ID or priority class.
+ */
+public interface MetricsMXBean {
+    long getFrames();
+
+    Map<String, Long> getFramesByType();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getResyncSkippedBytes();
+
+    long getCrcFailures();
+
+    long getOversizeDrops();
+
+    long getDecodeErrors();
+
+    long getUnhandledCalls();
+
+    Map<String, Long> getUnhandledByFunction();
+
+    Map<String, Long> getHandlerCalls();
+
+    Map<String, Long> getHandlerP50Nanos();
+
+    Map<String, Long> getHandlerP99Nanos();
+
+    Map<String, Long> getHandlerMaxNanos();
+
+    Map<String, Long> getQueueWaitP50Nanos();
+
+    Map<String, Long> getQueueWaitP99Nanos();
+
+    Map<String, Long> getQueueWaitMaxNanos();
+
+    void reset();
+}
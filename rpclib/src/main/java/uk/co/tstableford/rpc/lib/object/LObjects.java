@@ -1,11 +1,14 @@
 package uk.co.tstableford.rpc.lib.object;
 
 import uk.co.tstableford.rpc.lib.serializer.LSerializer;
+import uk.co.tstableford.rpc.lib.serializer.VarInt;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
 public class LObjects {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
     public static class LString implements LObject {
         private String data;
         private boolean nullTerminator;
@@ -27,10 +30,14 @@ public class LObjects {
             return this.data;
         }
 
+        public boolean isNullTerminated() {
+            return this.nullTerminator;
+        }
+
         @Override
         public int getSize() {
             // +1 for the null terminator.
-            return this.data.length() + (this.nullTerminator ? 1 : 0);
+            return utf8Length(this.data) + (this.nullTerminator ? 1 : 0);
         }
 
         @Override
@@ -40,11 +47,11 @@ public class LObjects {
 
         @Override
         public ByteBuffer getBytes() throws LSerializer.InvalidTypeException {
-            if (this.data.length() > 255) {
+            if (this.getSize() > 255) {
                 throw new LSerializer.InvalidTypeException();
             }
             ByteBuffer buffer = ByteBuffer.allocate(this.getSize() + (nullTerminator ? 1 : 0));
-            buffer.put(this.data.getBytes(Charset.forName("UTF-8")));
+            buffer.put(this.data.getBytes(UTF8));
             if (nullTerminator) {
                 buffer.put((byte) 0x00);
             }
@@ -59,7 +66,7 @@ public class LObjects {
             if (strArray[size - 1] == 0x00) {
                 size--;
             }
-            this.data = new String(strArray, 0, size, Charset.forName("UTF-8"));
+            this.data = new String(strArray, 0, size, UTF8);
 
             return this;
         }
@@ -340,6 +347,60 @@ public class LObjects {
         }
     }
 
+    /**
+     * A signed integer of any size sent as a zigzag varint, so it takes 1 byte for -64 to 63
+     * and at most 10 bytes.
+     */
+    public static class LVarInt extends LNumber {
+        public LVarInt(long data) {
+            super(LType.VARINT, data);
+        }
+
+        @Override
+        public int getSize() {
+            return VarInt.size(VarInt.zigzag(this.data));
+        }
+
+        @Override
+        public ByteBuffer getBytes() throws LSerializer.InvalidTypeException {
+            ByteBuffer buffer = ByteBuffer.allocate(this.getSize());
+            VarInt.put(buffer, 0, VarInt.zigzag(this.data));
+            return buffer;
+        }
+
+        @Override
+        public void parse(ByteBuffer buffer, int offset) {
+            this.setData(VarInt.unzigzag(VarInt.get(buffer, offset)));
+        }
+    }
+
+    /**
+     * An unsigned integer sent as a varint. Negative values are taken as unsigned 64 bit
+     * values and take the full 10 bytes.
+     */
+    public static class LUVarInt extends LNumber {
+        public LUVarInt(long data) {
+            super(LType.UVARINT, data);
+        }
+
+        @Override
+        public int getSize() {
+            return VarInt.size(this.data);
+        }
+
+        @Override
+        public ByteBuffer getBytes() throws LSerializer.InvalidTypeException {
+            ByteBuffer buffer = ByteBuffer.allocate(this.getSize());
+            VarInt.put(buffer, 0, this.data);
+            return buffer;
+        }
+
+        @Override
+        public void parse(ByteBuffer buffer, int offset) {
+            this.setData(VarInt.get(buffer, offset));
+        }
+    }
+
     public static LNumber Int(LType type, long number) {
         switch (type) {
             case INT8:
@@ -356,6 +417,10 @@ public class LObjects {
                 return new LUInt32(number);
             case INT64:
                 return new LInt64(number);
+            case VARINT:
+                return new LVarInt(number);
+            case UVARINT:
+                return new LUVarInt(number);
             default:
                 return null;
         }
@@ -384,4 +449,28 @@ public class LObjects {
     public static LString String(ByteBuffer buffer, int offset, int length) {
         return String(null).parse(buffer, offset, length);
     }
+
+    /**
+     * The number of bytes data takes up when encoded as UTF-8. An unpaired surrogate counts as
+     * the one byte of the '?' it's replaced with.
+     */
+    public static int utf8Length(String data) {
+        int length = 0;
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < data.length() && Character.isLowSurrogate(data.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
 }
@@ -10,9 +10,22 @@ public enum LType {
     UINT32(0x07, 0x04),
     INT64(0x08, 0x08),
     UINT64(0x09, 0x08),
-    FLOAT(0x0c, 0x04);
+    FLOAT(0x0c, 0x04),
+    // Zigzag encoded signed varint. The size is the most it can take, see VarInt.
+    VARINT(0x0d, 0x0a),
+    // Unsigned varint.
+    UVARINT(0x0e, 0x0a);
 
+    // Type IDs are a single byte, so lookups are a plain array index.
+    private static final LType[] BY_ID = new LType[256];
     private int size, id;
+
+    static {
+        for (LType type: values()) {
+            BY_ID[type.id] = type;
+        }
+    }
+
     LType(int id, int size) {
         this.size = size;
         this.id = id;
@@ -22,16 +35,28 @@ public enum LType {
         return this.size;
     }
 
+    /**
+     * True for every type read with LReader.getLong, that is everything but STRING and FLOAT.
+     */
+    public boolean isInteger() {
+        return this != STRING && this != FLOAT;
+    }
+
+    /**
+     * True for the varint types, whose fields take between 1 and getSize() bytes.
+     */
+    public boolean isVariableLength() {
+        return this == VARINT || this == UVARINT;
+    }
+
     public int getId() {
         return this.id;
     }
 
     public static LType findType(int typeId) {
-        for (LType type: values()) {
-            if (type.id == typeId) {
-                return type;
-            }
+        if ((typeId & ~0xff) != 0) {
+            return null;
         }
-        return null;
+        return BY_ID[typeId];
     }
 }
@@ -0,0 +1,190 @@
+package uk.co.tstableford.rpc.lib.serializer;
+
+import uk.co.tstableford.rpc.lib.object.LType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reads fields straight out of a serialized buffer without building LObjects.
+ *
+ * reset() walks the type table once to find where each field starts. Values are only
+ * decoded when asked for. A reader can be reset onto new buffers as often as needed,
+ * and it holds onto the buffer so it is only valid for as long as the buffer is.
+ */
+public class LReader {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private ByteBuffer buffer;
+    private int count, first;
+    private LType[] types = new LType[255];
+    private int[] offsets = new int[255];
+    private int[] sizes = new int[255];
+
+    public LReader() {
+    }
+
+    public LReader(ByteBuffer buffer) throws LSerializer.InvalidTypeException {
+        this.reset(buffer);
+    }
+
+    /**
+     * Point the reader at a serialized object starting at index 0 of buffer.
+     */
+    public void reset(ByteBuffer buffer) throws LSerializer.InvalidTypeException {
+        this.buffer = null;
+        this.first = 0;
+        int limit = buffer.limit();
+        if (limit < 1) {
+            throw new LSerializer.InvalidTypeException("Buffer is empty.");
+        }
+        int count = buffer.get(0) & 0xff;
+        if (1 + count > limit) {
+            throw new LSerializer.InvalidTypeException("Type table is truncated.");
+        }
+
+        int numStrings = 0;
+        for (int i = 0; i < count; i++) {
+            LType type = LType.findType(buffer.get(1 + i) & 0xff);
+            if (type == null) {
+                throw new LSerializer.InvalidTypeException("Unknown type - " + (buffer.get(1 + i) & 0xff));
+            }
+            this.types[i] = type;
+            if (type == LType.STRING) {
+                numStrings++;
+            }
+        }
+
+        int stringTable = 1 + count;
+        int dataOffset = stringTable + numStrings;
+        if (dataOffset > limit) {
+            throw new LSerializer.InvalidTypeException("String table is truncated.");
+        }
+        for (int i = 0; i < count; i++) {
+            int size;
+            if (this.types[i] == LType.STRING) {
+                size = buffer.get(stringTable++) & 0xff;
+            } else if (this.types[i].isVariableLength()) {
+                size = VarInt.length(buffer, dataOffset, limit);
+                if (size < 0) {
+                    throw new LSerializer.InvalidTypeException("Data is truncated.");
+                }
+            } else {
+                size = this.types[i].getSize();
+            }
+            this.offsets[i] = dataOffset;
+            this.sizes[i] = size;
+            dataOffset += size;
+        }
+        if (dataOffset > limit) {
+            throw new LSerializer.InvalidTypeException("Data is truncated.");
+        }
+
+        this.count = count;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Hide the first field, so index 0 refers to what was index 1.
+     */
+    public void shift() {
+        if (this.first < this.count) {
+            this.first++;
+        }
+    }
+
+    public int size() {
+        return this.count - this.first;
+    }
+
+    public LType getType(int index) {
+        return this.types[this.check(index)];
+    }
+
+    /**
+     * Read any integer type as a long. Signed types are sign extended.
+     */
+    public long getLong(int index) {
+        int i = this.check(index);
+        int offset = this.offsets[i];
+        switch (this.types[i]) {
+            case INT8:
+                return this.buffer.get(offset);
+            case UINT8:
+                return this.buffer.get(offset) & 0xffL;
+            case INT16:
+                return this.buffer.getShort(offset);
+            case UINT16:
+                return this.buffer.getShort(offset) & 0xffffL;
+            case INT32:
+                return this.buffer.getInt(offset);
+            case UINT32:
+                return this.buffer.getInt(offset) & 0xffffffffL;
+            case INT64:
+            case UINT64:
+                return this.buffer.getLong(offset);
+            case VARINT:
+                return VarInt.unzigzag(VarInt.get(this.buffer, offset));
+            case UVARINT:
+                return VarInt.get(this.buffer, offset);
+            default:
+                throw new IllegalArgumentException("Field " + index + " is a " + this.types[i] + " not an integer.");
+        }
+    }
+
+    public int getInt(int index) {
+        return (int) this.getLong(index);
+    }
+
+    public float getFloat(int index) {
+        int i = this.check(index);
+        if (this.types[i] != LType.FLOAT) {
+            throw new IllegalArgumentException("Field " + index + " is a " + this.types[i] + " not a float.");
+        }
+        return this.buffer.getFloat(this.offsets[i]);
+    }
+
+    /**
+     * The length in bytes of a string field, not counting a null terminator.
+     */
+    public int getStringLength(int index) {
+        int i = this.check(index);
+        if (this.types[i] != LType.STRING) {
+            throw new IllegalArgumentException("Field " + index + " is a " + this.types[i] + " not a string.");
+        }
+        int size = this.sizes[i];
+        if (size > 0 && this.buffer.get(this.offsets[i] + size - 1) == 0x00) {
+            size--;
+        }
+        return size;
+    }
+
+    /**
+     * Copy the bytes of a string field into dest and return how many were copied.
+     */
+    public int getStringBytes(int index, byte dest[], int offset) {
+        int length = this.getStringLength(index);
+        int start = this.offsets[this.first + index];
+        for (int i = 0; i < length; i++) {
+            dest[offset + i] = this.buffer.get(start + i);
+        }
+        return length;
+    }
+
+    public String getString(int index) {
+        int length = this.getStringLength(index);
+        int start = this.offsets[this.first + index];
+        if (this.buffer.hasArray()) {
+            return new String(this.buffer.array(), this.buffer.arrayOffset() + start, length, UTF8);
+        }
+        byte data[] = new byte[length];
+        this.getStringBytes(index, data, 0);
+        return new String(data, UTF8);
+    }
+
+    private int check(int index) {
+        if (index < 0 || index >= this.size()) {
+            throw new IndexOutOfBoundsException("Field " + index + " of " + this.size());
+        }
+        return this.first + index;
+    }
+}
@@ -3,14 +3,34 @@ package uk.co.tstableford.rpc.lib.serializer;
 import uk.co.tstableford.rpc.lib.object.LObject;
 import uk.co.tstableford.rpc.lib.object.LObjects;
 import uk.co.tstableford.rpc.lib.object.LType;
+import uk.co.tstableford.rpc.lib.stream.StreamParser;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
-public class LSerializer {
+/**
+ * An ordered list of typed fields.
+ *
+ * Built from LObjects the fields are kept as a List. Unserialized from a buffer they are
+ * kept in parallel primitive arrays instead: a type tag, a numeric value (or for strings
+ * an index into one shared byte array) and the field's offset in the data section.
+ * Indexed access and sizes are then O(1) and the allocations don't depend on the
+ * number of fields. intAt/floatAt/strAt build LObjects on demand in that case, and
+ * getData() converts the fields to a List the first time it is called.
+ */
+public class LSerializer implements LWritable {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
     private List<LObject> data;
+    // Primitive storage, only used while data is null.
+    private int count, numStrings;
+    private LType[] types;
+    private long[] values;
+    private int[] offsets;
+    private byte[] stringData;
+    private boolean compact = false;
 
     public LSerializer(ByteBuffer buffer) throws InvalidTypeException {
         this();
@@ -29,11 +49,33 @@ public class LSerializer {
         this(new ArrayList<LObject>());
     }
 
+    /**
+     * When set, serialize() and writeTo() send each INT16/32/64 and UINT16/32 field as a
+     * VARINT or UVARINT instead whenever that takes fewer bytes. The receiver reads the same
+     * values but sees the varint types. Off by default, as devices that only know the fixed
+     * width types can't decode varints.
+     */
+    public void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    public boolean isCompact() {
+        return this.compact;
+    }
+
     public void setData(List<LObject> data) {
         this.data = data;
+        this.types = null;
+        this.values = null;
+        this.offsets = null;
+        this.stringData = null;
     }
 
     private int getStringOffset(int index) {
+        if (this.data == null) {
+            // Only ever asked for the total.
+            return this.numStrings;
+        }
         int count = 0;
         for (int i = 0; i < index && i < this.data.size(); i++) {
             if (this.data.get(i).getType() == LType.STRING) {
@@ -45,10 +87,25 @@ public class LSerializer {
     }
 
     public List<LObject> getData() {
+        if (this.data == null) {
+            List<LObject> list = new ArrayList<>(this.count);
+            for (int i = 0; i < this.count; i++) {
+                list.add(this.objectAt(i));
+            }
+            this.setData(list);
+        }
         return this.data;
     }
 
+    @Override
+    public int size() {
+        return this.data == null ? this.count : this.data.size();
+    }
+
     public int getDataSize() {
+        if (this.data == null) {
+            return this.offsets[this.count];
+        }
         int size = 0;
         for (LObject obj: this.data) {
             size += obj.getSize();
@@ -59,6 +116,9 @@ public class LSerializer {
     private int getDataIndexOf(int index) {
         int dataIndex = 0;
 
+        if (this.data == null) {
+            return index > this.count ? 0 : this.offsets[index];
+        }
         if(index > this.data.size()) {
             return 0;
         }
@@ -72,64 +132,278 @@ public class LSerializer {
 
     public void unserialize(ByteBuffer buffer) throws InvalidTypeException {
         // Get the number of objects in the buffer.
-        buffer.position(0);
-        LObjects.LUInt8 size = new LObjects.LUInt8(0);
-        size.parse(buffer, 0);
-        this.data = new ArrayList<>((int)size.getData());
+        int count = buffer.get(0) & 0xff;
+        LType[] types = new LType[count];
+        long[] values = new long[count];
+        int[] offsets = new int[count + 1];
 
-        // For each object calculate how many bytes it uses and count the number of strings in the string table.
+        // Find the type of each object and count the number of strings in the string table.
         int numStrings = 0;
-        int sizes[] = new int[(int) size.getData()];
-        for (int i = 0; i < size.getData(); i++) {
-            LObjects.LUInt8 typeId = new LObjects.LUInt8(0);
-            typeId.parse(buffer, i + 1);
-            LType type = LType.findType((int) typeId.getData());
-            if (type != null) {
-                sizes[i] = type.getSize();
-                if (type == LType.STRING) {
-                    LObjects.LUInt8 stringSize = new LObjects.LUInt8(0);
-                    stringSize.parse(buffer, (int) (1 + size.getData() + numStrings));
-                    sizes[i] = (int) stringSize.getData();
-                    numStrings++;
-                }
+        for (int i = 0; i < count; i++) {
+            int typeId = buffer.get(1 + i) & 0xff;
+            LType type = LType.findType(typeId);
+            if (type == null) {
+                throw new InvalidTypeException("Unknown type - " + typeId);
+            }
+            if (type == LType.UINT64) {
+                throw new InvalidTypeException("Unsupported type - " + type.toString());
+            }
+            if (type == LType.STRING) {
+                numStrings++;
             }
+            types[i] = type;
         }
 
-        // Set to the start of the data section.
-        int dataOffset = (int) (1 + size.getData() + numStrings);
+        // Work out where each object starts relative to the start of the data section.
+        int stringTable = 1 + count;
+        int dataOffset = 1 + count + numStrings;
+        int dataSize = 0;
+        int stringSize = 0;
+        for (int i = 0; i < count; i++) {
+            offsets[i] = dataSize;
+            if (types[i] == LType.STRING) {
+                int size = buffer.get(stringTable++) & 0xff;
+                values[i] = stringSize;
+                stringSize += size;
+                dataSize += size;
+            } else if (types[i].isVariableLength()) {
+                int size = VarInt.length(buffer, dataOffset + dataSize, buffer.limit());
+                if (size < 0) {
+                    throw new InvalidTypeException("Data is truncated.");
+                }
+                dataSize += size;
+            } else {
+                dataSize += types[i].getSize();
+            }
+        }
+        offsets[count] = dataSize;
 
-        // Parse each object in the buffer.
-        for (int i = 0; i < size.getData(); i++) {
-            LObjects.LUInt8 typeId = new LObjects.LUInt8(0);
-            typeId.parse(buffer, 1 + i);
-            LType type = LType.findType((int)typeId.getData());
+        byte[] stringData = new byte[stringSize];
 
-            if (type == null) {
-                throw new InvalidTypeException("Unknown type - " + typeId.getData());
-            }
-            switch (type) {
+        // Read each object in the buffer.
+        for (int i = 0; i < count; i++) {
+            int offset = dataOffset + offsets[i];
+            switch (types[i]) {
                 case STRING:
-                    this.data.add(i, LObjects.String(buffer, dataOffset, sizes[i]));
+                    for (int j = 0; j < offsets[i + 1] - offsets[i]; j++) {
+                        stringData[(int) values[i] + j] = buffer.get(offset + j);
+                    }
                     break;
                 case INT8:
                 case UINT8:
+                    values[i] = buffer.get(offset) & 0xffL;
+                    break;
                 case INT16:
+                    values[i] = buffer.getShort(offset);
+                    break;
                 case UINT16:
+                    values[i] = buffer.getShort(offset) & 0xffffL;
+                    break;
                 case INT32:
+                    values[i] = buffer.getInt(offset);
+                    break;
                 case UINT32:
+                    values[i] = buffer.getInt(offset) & 0xffffffffL;
+                    break;
                 case INT64:
-                    this.data.add(LObjects.Int(type, buffer, dataOffset));
+                    values[i] = buffer.getLong(offset);
+                    break;
+                case FLOAT:
+                    values[i] = buffer.getInt(offset);
+                    break;
+                case VARINT:
+                    values[i] = VarInt.unzigzag(VarInt.get(buffer, offset));
+                    break;
+                case UVARINT:
+                    values[i] = VarInt.get(buffer, offset);
+                    break;
+                default:
+                    throw new InvalidTypeException("Unsupported type - " + types[i].toString());
+            }
+        }
+
+        this.data = null;
+        this.count = count;
+        this.numStrings = numStrings;
+        this.types = types;
+        this.values = values;
+        this.offsets = offsets;
+        this.stringData = stringData;
+    }
+
+    /**
+     * Remove the field at index.
+     */
+    public void remove(int index) {
+        if (this.data != null) {
+            this.data.remove(index);
+            return;
+        }
+        if (index < 0 || index >= this.count) {
+            throw new IndexOutOfBoundsException("Field " + index + " of " + this.count);
+        }
+        int size = this.offsets[index + 1] - this.offsets[index];
+        if (this.types[index] == LType.STRING) {
+            this.numStrings--;
+        }
+        int after = this.count - index - 1;
+        System.arraycopy(this.types, index + 1, this.types, index, after);
+        System.arraycopy(this.values, index + 1, this.values, index, after);
+        for (int i = index; i <= this.count - 1; i++) {
+            this.offsets[i] = this.offsets[i + 1] - size;
+        }
+        this.count--;
+        this.types[this.count] = null;
+    }
+
+    public LType typeAt(int index) {
+        if (this.data != null) {
+            return this.data.get(index).getType();
+        }
+        this.checkIndex(index);
+        return this.types[index];
+    }
+
+    /**
+     * The value of an integer field, or 0 if the field isn't an integer.
+     */
+    public long longAt(int index) {
+        if (this.data != null) {
+            LObjects.LNumber number = this.intAt(index);
+            return number == null ? 0 : number.getData();
+        }
+        this.checkIndex(index);
+        LType type = this.types[index];
+        return type == LType.STRING || type == LType.FLOAT ? 0 : this.values[index];
+    }
+
+    /**
+     * The value of a float field, or 0 if the field isn't a float.
+     */
+    public float floatValueAt(int index) {
+        if (this.data != null) {
+            LObjects.LFloat number = this.floatAt(index);
+            return number == null ? 0 : number.getData();
+        }
+        this.checkIndex(index);
+        return this.types[index] == LType.FLOAT ? Float.intBitsToFloat((int) this.values[index]) : 0;
+    }
+
+    /**
+     * The value of a string field, or null if the field isn't a string.
+     */
+    public String stringAt(int index) {
+        if (this.data != null) {
+            LObjects.LString string = this.strAt(index);
+            return string == null ? null : string.getData();
+        }
+        this.checkIndex(index);
+        if (this.types[index] != LType.STRING) {
+            return null;
+        }
+        int size = this.offsets[index + 1] - this.offsets[index];
+        if (size > 0 && this.stringData[(int) this.values[index] + size - 1] == 0x00) {
+            size--;
+        }
+        return new String(this.stringData, (int) this.values[index], size, UTF8);
+    }
+
+    @Override
+    public void writeTo(LWriter writer) throws InvalidTypeException {
+        for (int i = 0; i < this.size(); i++) {
+            if (this.compact && this.isCompactable(this.typeAt(i))) {
+                writer.writeCompact(this.typeAt(i), this.longAt(i));
+                continue;
+            }
+            if (this.data != null) {
+                writer.write(this.data.get(i));
+                continue;
+            }
+            switch (this.types[i]) {
+                case STRING:
+                {
+                    int size = this.offsets[i + 1] - this.offsets[i];
+                    boolean terminated = size > 0 && this.stringData[(int) this.values[i] + size - 1] == 0x00;
+                    writer.writeString(this.stringAt(i), terminated);
                     break;
+                }
                 case FLOAT:
-                    this.data.add(i, LObjects.Float(buffer, dataOffset));
+                    writer.writeFloat(this.floatValueAt(i));
+                    break;
+                case INT8:
+                    writer.writeInt8((byte) this.values[i]);
+                    break;
+                case UINT8:
+                    writer.writeUInt8((int) this.values[i]);
+                    break;
+                case INT16:
+                    writer.writeInt16((short) this.values[i]);
+                    break;
+                case UINT16:
+                    writer.writeUInt16((int) this.values[i]);
+                    break;
+                case INT32:
+                    writer.writeInt32((int) this.values[i]);
+                    break;
+                case UINT32:
+                    writer.writeUInt32(this.values[i]);
+                    break;
+                case VARINT:
+                    writer.writeVarInt(this.values[i]);
+                    break;
+                case UVARINT:
+                    writer.writeUVarInt(this.values[i]);
+                    break;
                 default:
-                    throw new InvalidTypeException("Unsupported type - " + type.toString());
+                    writer.writeInt64(this.values[i]);
             }
-            dataOffset += this.data.get(i).getSize();
+        }
+    }
+
+    private boolean isCompactable(LType type) {
+        switch (type) {
+            case INT16:
+            case UINT16:
+            case INT32:
+            case UINT32:
+            case INT64:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private LObject objectAt(int index) {
+        if (this.data != null) {
+            return this.data.get(index);
+        }
+        switch (this.types[index]) {
+            case STRING:
+            {
+                int size = this.offsets[index + 1] - this.offsets[index];
+                boolean terminated = size > 0 && this.stringData[(int) this.values[index] + size - 1] == 0x00;
+                return LObjects.String(this.stringAt(index), terminated);
+            }
+            case FLOAT:
+                return LObjects.Float(this.floatValueAt(index));
+            default:
+                return LObjects.Int(this.types[index], this.values[index]);
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= this.count) {
+            throw new IndexOutOfBoundsException("Field " + index + " of " + this.count);
         }
     }
 
     public ByteBuffer serialize() throws InvalidTypeException {
+        if (this.compact) {
+            return this.serializeCompact();
+        }
+        if (this.data == null) {
+            return this.serializeColumns();
+        }
         if (this.data.size() > 255) {
             throw new InvalidTypeException("Too many data items!");
         }
@@ -164,6 +438,63 @@ public class LSerializer {
         return buffer;
     }
 
+    private ByteBuffer serializeCompact() throws InvalidTypeException {
+        if (this.size() > 255) {
+            throw new InvalidTypeException("Too many data items!");
+        }
+        LWriter writer = new LWriter();
+        writer.begin(0, this.size());
+        this.writeTo(writer);
+        ByteBuffer packet = writer.finish();
+        ByteBuffer buffer = ByteBuffer.allocate(packet.limit() - StreamParser.HEADER_SIZE);
+        packet.position(StreamParser.HEADER_SIZE);
+        buffer.put(packet);
+        return buffer;
+    }
+
+    private ByteBuffer serializeColumns() {
+        int dataOffset = 1 + this.count + this.numStrings;
+        ByteBuffer buffer = ByteBuffer.allocate(dataOffset + this.offsets[this.count]);
+        buffer.put((byte) this.count);
+        for (int i = 0; i < this.count; i++) {
+            buffer.put((byte) this.types[i].getId());
+        }
+        for (int i = 0; i < this.count; i++) {
+            if (this.types[i] == LType.STRING) {
+                buffer.put((byte) (this.offsets[i + 1] - this.offsets[i]));
+            }
+        }
+        for (int i = 0; i < this.count; i++) {
+            switch (this.types[i]) {
+                case STRING:
+                    buffer.put(this.stringData, (int) this.values[i], this.offsets[i + 1] - this.offsets[i]);
+                    break;
+                case INT8:
+                case UINT8:
+                    buffer.put((byte) this.values[i]);
+                    break;
+                case INT16:
+                case UINT16:
+                    buffer.putShort((short) this.values[i]);
+                    break;
+                case INT32:
+                case UINT32:
+                case FLOAT:
+                    buffer.putInt((int) this.values[i]);
+                    break;
+                case VARINT:
+                    buffer.position(VarInt.put(buffer, buffer.position(), VarInt.zigzag(this.values[i])));
+                    break;
+                case UVARINT:
+                    buffer.position(VarInt.put(buffer, buffer.position(), this.values[i]));
+                    break;
+                default:
+                    buffer.putLong(this.values[i]);
+            }
+        }
+        return buffer;
+    }
+
     private void putObject(ByteBuffer buffer, LObject object) throws InvalidTypeException {
         buffer.put(object.getBytes().array(), 0, object.getSize());
     }
@@ -171,11 +502,12 @@ public class LSerializer {
     @Override
     public String toString() {
         StringBuilder output = new StringBuilder();
-        for (int i = 0; i < this.data.size(); i++) {
+        for (int i = 0; i < this.size(); i++) {
+            LObject object = this.objectAt(i);
             output.append("[").append(i).append("](")
-                    .append(this.data.get(i).getType().toString())
+                    .append(object.getType().toString())
                     .append(") ")
-                    .append(this.data.get(i).toString())
+                    .append(object.toString())
                     .append("\n");
         }
         // Remove trailing \n.
@@ -184,33 +516,36 @@ public class LSerializer {
     }
 
     public LObjects.LNumber intAt(int index) {
-        if (index >= this.data.size()) {
+        if (index >= this.size()) {
             return null;
         }
-        if (this.data.get(index) instanceof LObjects.LNumber) {
-            return (LObjects.LNumber) this.data.get(index);
+        LObject object = this.objectAt(index);
+        if (object instanceof LObjects.LNumber) {
+            return (LObjects.LNumber) object;
         }
 
         return null;
     }
 
     public LObjects.LFloat floatAt(int index) {
-        if (index >= this.data.size()) {
+        if (index >= this.size()) {
             return null;
         }
-        if (this.data.get(index) instanceof LObjects.LFloat) {
-            return (LObjects.LFloat) this.data.get(index);
+        LObject object = this.objectAt(index);
+        if (object instanceof LObjects.LFloat) {
+            return (LObjects.LFloat) object;
         }
 
         return null;
     }
 
     public LObjects.LString strAt(int index) {
-        if (index >= this.data.size()) {
+        if (index >= this.size()) {
             return null;
         }
-        if (this.data.get(index) instanceof LObjects.LString) {
-            return (LObjects.LString) this.data.get(index);
+        LObject object = this.objectAt(index);
+        if (object instanceof LObjects.LString) {
+            return (LObjects.LString) object;
         }
 
         return null;
@@ -235,16 +570,13 @@ public class LSerializer {
             return false;
         }
         LSerializer other = (LSerializer) obj;
-        if (other.data == null || this.data == null) {
-            return false;
-        }
-        if (this.data.size() != other.data.size()) {
+        if (this.size() != other.size()) {
             return false;
         }
 
-        for (int i = 0; i < this.data.size(); i++) {
-            LObject otherObj = other.data.get(i);
-            LObject thisObj = this.data.get(i);
+        for (int i = 0; i < this.size(); i++) {
+            LObject otherObj = other.objectAt(i);
+            LObject thisObj = this.objectAt(i);
             if (!otherObj.equals(thisObj)) {
                 return false;
             }
@@ -0,0 +1,17 @@
+package uk.co.tstableford.rpc.lib.serializer;
+
+/**
+ * A list of fields that can be written to an LWriter, such as an LSerializer or the
+ * arguments of a generated stub call.
+ */
+public interface LWritable {
+    /**
+     * The number of fields writeTo will write.
+     */
+    int size();
+
+    /**
+     * Write every field to writer, which should already have been started.
+     */
+    void writeTo(LWriter writer) throws LSerializer.InvalidTypeException;
+}
@@ -0,0 +1,455 @@
+package uk.co.tstableford.rpc.lib.serializer;
+
+import uk.co.tstableford.rpc.lib.RPC;
+import uk.co.tstableford.rpc.lib.object.LObject;
+import uk.co.tstableford.rpc.lib.object.LObjects;
+import uk.co.tstableford.rpc.lib.object.LType;
+import uk.co.tstableford.rpc.lib.stream.StreamParser;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a complete packet, stream header and serialized fields, straight into a ByteBuffer.
+ *
+ * The number of fields is given up front so the type table can be filled in as values
+ * are written. String lengths are held back and slotted in by finish(), which moves
+ * the data along by one byte per string.
+ * <pre>
+ * writer.beginCall(functionId, 2);
+ * writer.writeInt64(System.currentTimeMillis());
+ * writer.writeString("hello");
+ * ByteBuffer packet = writer.finish();
+ * </pre>
+ */
+public class LWriter {
+    private static final int COUNT_OFFSET = StreamParser.HEADER_SIZE;
+    // The header holds the payload size as a UINT16.
+    private static final int MAX_PAYLOAD_SIZE = 0xffff;
+    private ByteBuffer buffer;
+    private boolean growable;
+    private int packetType, fieldCount, written, numStrings, position;
+    private int[] stringLengths = new int[255];
+
+    /**
+     * A writer that owns its buffer and grows it as needed.
+     */
+    public LWriter() {
+        this(ByteBuffer.allocate(64));
+        this.growable = true;
+    }
+
+    /**
+     * A writer over a caller supplied buffer. Writes start at index 0. Running out of
+     * space throws a BufferOverflowException.
+     */
+    public LWriter(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.growable = false;
+    }
+
+    public void setBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.growable = false;
+    }
+
+    public ByteBuffer getBuffer() {
+        return this.buffer;
+    }
+
+    public void begin(int packetType, int fieldCount) throws LSerializer.InvalidTypeException {
+        if (fieldCount > 255 || fieldCount < 0) {
+            throw new LSerializer.InvalidTypeException("Too many data items!");
+        }
+        this.packetType = packetType;
+        this.fieldCount = fieldCount;
+        this.written = 0;
+        this.numStrings = 0;
+        this.position = COUNT_OFFSET + 1 + fieldCount;
+        this.ensure(this.position);
+        this.buffer.put(COUNT_OFFSET, (byte) fieldCount);
+    }
+
+    /**
+     * Begin an RPC packet. The function ID is written as the first field, argCount doesn't include it.
+     */
+    public void beginCall(int functionId, int argCount) throws LSerializer.InvalidTypeException {
+        this.begin(RPC.RPC_PACKET_ID, argCount + 1);
+        this.writeUInt16(functionId);
+    }
+
+    public void writeInt8(byte value) {
+        this.putType(LType.INT8);
+        this.buffer.put(this.position, value);
+        this.position += 1;
+    }
+
+    public void writeUInt8(int value) throws LSerializer.InvalidTypeException {
+        if (value > 255 || value < 0) {
+            throw new LSerializer.InvalidTypeException();
+        }
+        this.putType(LType.UINT8);
+        this.buffer.put(this.position, (byte) value);
+        this.position += 1;
+    }
+
+    public void writeInt16(short value) {
+        this.putType(LType.INT16);
+        this.buffer.putShort(this.position, value);
+        this.position += 2;
+    }
+
+    public void writeUInt16(int value) throws LSerializer.InvalidTypeException {
+        if (value > 65535 || value < 0) {
+            throw new LSerializer.InvalidTypeException();
+        }
+        this.putType(LType.UINT16);
+        this.buffer.putShort(this.position, (short) value);
+        this.position += 2;
+    }
+
+    public void writeInt32(int value) {
+        this.putType(LType.INT32);
+        this.buffer.putInt(this.position, value);
+        this.position += 4;
+    }
+
+    public void writeUInt32(long value) throws LSerializer.InvalidTypeException {
+        if (value > 4294967295L || value < 0) {
+            throw new LSerializer.InvalidTypeException();
+        }
+        this.putType(LType.UINT32);
+        this.buffer.putInt(this.position, (int) value);
+        this.position += 4;
+    }
+
+    public void writeInt64(long value) {
+        this.putType(LType.INT64);
+        this.buffer.putLong(this.position, value);
+        this.position += 8;
+    }
+
+    /**
+     * Write a signed value as a zigzag varint, which takes 1 byte for -64 to 63.
+     */
+    public void writeVarInt(long value) {
+        this.writeUVarInt(LType.VARINT, VarInt.zigzag(value));
+    }
+
+    /**
+     * Write a value as an unsigned varint, which takes 1 byte for 0 to 127.
+     */
+    public void writeUVarInt(long value) {
+        this.writeUVarInt(LType.UVARINT, value);
+    }
+
+    private void writeUVarInt(LType type, long value) {
+        this.putType(type, VarInt.size(value));
+        this.position = VarInt.put(this.buffer, this.position, value);
+    }
+
+    /**
+     * Write an integer as type, or as a varint when that takes fewer bytes. Signed types
+     * become VARINT and unsigned types UVARINT, INT8 and UINT8 are always written as is.
+     * Values out of range for type throw an InvalidTypeException like the fixed writers.
+     */
+    public void writeCompact(LType type, long value) throws LSerializer.InvalidTypeException {
+        switch (type) {
+            case INT16:
+            case INT32:
+            case INT64:
+                if (fits(type, value) && VarInt.size(VarInt.zigzag(value)) < type.getSize()) {
+                    this.writeVarInt(value);
+                    return;
+                }
+                break;
+            case UINT16:
+            case UINT32:
+                if (fits(type, value) && VarInt.size(value) < type.getSize()) {
+                    this.writeUVarInt(value);
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        this.writeInteger(type, value);
+    }
+
+    /**
+     * Write value as any integer type, checking that it's in range for the type.
+     */
+    public void writeInteger(LType type, long value) throws LSerializer.InvalidTypeException {
+        switch (type) {
+            case INT8:
+                if (value > Byte.MAX_VALUE || value < Byte.MIN_VALUE) {
+                    throw new LSerializer.InvalidTypeException();
+                }
+                this.writeInt8((byte) value);
+                break;
+            case UINT8:
+                if (value > 255 || value < 0) {
+                    throw new LSerializer.InvalidTypeException();
+                }
+                this.writeUInt8((int) value);
+                break;
+            case INT16:
+                if (value > Short.MAX_VALUE || value < Short.MIN_VALUE) {
+                    throw new LSerializer.InvalidTypeException();
+                }
+                this.writeInt16((short) value);
+                break;
+            case UINT16:
+                if (value > 65535 || value < 0) {
+                    throw new LSerializer.InvalidTypeException();
+                }
+                this.writeUInt16((int) value);
+                break;
+            case INT32:
+                if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+                    throw new LSerializer.InvalidTypeException();
+                }
+                this.writeInt32((int) value);
+                break;
+            case UINT32:
+                this.writeUInt32(value);
+                break;
+            case INT64:
+                this.writeInt64(value);
+                break;
+            case VARINT:
+                this.writeVarInt(value);
+                break;
+            case UVARINT:
+                this.writeUVarInt(value);
+                break;
+            default:
+                throw new LSerializer.InvalidTypeException("Unsupported type - " + type.toString());
+        }
+    }
+
+    private static boolean fits(LType type, long value) {
+        switch (type) {
+            case INT16:
+                return value >= Short.MIN_VALUE && value <= Short.MAX_VALUE;
+            case UINT16:
+                return value >= 0 && value <= 65535;
+            case INT32:
+                return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+            case UINT32:
+                return value >= 0 && value <= 4294967295L;
+            default:
+                return true;
+        }
+    }
+
+    public void writeFloat(float value) {
+        this.putType(LType.FLOAT);
+        this.buffer.putFloat(this.position, value);
+        this.position += 4;
+    }
+
+    public void writeString(String value) throws LSerializer.InvalidTypeException {
+        this.writeString(value, false);
+    }
+
+    /**
+     * Strings are encoded as UTF-8 and may be at most 255 bytes including any null terminator.
+     * An unpaired surrogate is written as '?', as String.getBytes does.
+     */
+    public void writeString(String value, boolean nullTerminator) throws LSerializer.InvalidTypeException {
+        int start = this.position;
+        int index = this.fieldIndex();
+        int end = start;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            int codePoint = c;
+            if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                codePoint = Character.toCodePoint(c, value.charAt(++i));
+            } else if (Character.isSurrogate(c)) {
+                codePoint = '?';
+            }
+            end = this.putUtf8(end, start + 255, codePoint);
+        }
+        if (nullTerminator) {
+            if (end >= start + 255) {
+                throw new LSerializer.InvalidTypeException("String too long.");
+            }
+            this.ensure(end + 1);
+            this.buffer.put(end++, (byte) 0x00);
+        }
+        this.buffer.put(COUNT_OFFSET + 1 + index, (byte) LType.STRING.getId());
+        this.stringLengths[this.numStrings++] = end - start;
+        this.written++;
+        this.position = end;
+    }
+
+    /**
+     * Write any LObject other than UINT64.
+     */
+    public void write(LObject object) throws LSerializer.InvalidTypeException {
+        switch (object.getType()) {
+            case STRING:
+            {
+                LObjects.LString string = (LObjects.LString) object;
+                this.writeString(string.getData(), string.isNullTerminated());
+                break;
+            }
+            case FLOAT:
+                this.writeFloat(((LObjects.LFloat) object).getData());
+                break;
+            case INT8:
+            {
+                long value = ((LObjects.LNumber) object).getData();
+                if (value > Byte.MAX_VALUE || value < Byte.MIN_VALUE) {
+                    throw new LSerializer.InvalidTypeException();
+                }
+                this.writeInt8((byte) value);
+                break;
+            }
+            case UINT8:
+                this.writeUInt8((int) ((LObjects.LNumber) object).getData());
+                break;
+            case INT16:
+            {
+                long value = ((LObjects.LNumber) object).getData();
+                if (value > Short.MAX_VALUE || value < Short.MIN_VALUE) {
+                    throw new LSerializer.InvalidTypeException();
+                }
+                this.writeInt16((short) value);
+                break;
+            }
+            case UINT16:
+                this.writeUInt16((int) ((LObjects.LNumber) object).getData());
+                break;
+            case INT32:
+            {
+                long value = ((LObjects.LNumber) object).getData();
+                if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+                    throw new LSerializer.InvalidTypeException();
+                }
+                this.writeInt32((int) value);
+                break;
+            }
+            case UINT32:
+                this.writeUInt32(((LObjects.LNumber) object).getData());
+                break;
+            case INT64:
+                this.writeInt64(((LObjects.LNumber) object).getData());
+                break;
+            case VARINT:
+                this.writeVarInt(((LObjects.LNumber) object).getData());
+                break;
+            case UVARINT:
+                this.writeUVarInt(((LObjects.LNumber) object).getData());
+                break;
+            default:
+                throw new LSerializer.InvalidTypeException("Unsupported type - " + object.getType().toString());
+        }
+    }
+
+    /**
+     * Slot in the string lengths and write the stream header.
+     * @return The buffer with position 0 and limit at the end of the packet.
+     * @throws LSerializer.InvalidTypeException If the payload is too big for the header.
+     */
+    public ByteBuffer finish() throws LSerializer.InvalidTypeException {
+        if (this.written != this.fieldCount) {
+            throw new IllegalStateException("Expected " + this.fieldCount + " fields but " + this.written + " were written.");
+        }
+        if (this.position + this.numStrings - COUNT_OFFSET > MAX_PAYLOAD_SIZE) {
+            throw new LSerializer.InvalidTypeException("Payload is over " + MAX_PAYLOAD_SIZE + " bytes.");
+        }
+        int dataStart = COUNT_OFFSET + 1 + this.fieldCount;
+        if (this.numStrings > 0) {
+            this.ensure(this.position + this.numStrings);
+            int length = this.position - dataStart;
+            if (this.buffer.hasArray()) {
+                byte array[] = this.buffer.array();
+                int base = this.buffer.arrayOffset();
+                System.arraycopy(array, base + dataStart, array, base + dataStart + this.numStrings, length);
+            } else {
+                for (int i = length - 1; i >= 0; i--) {
+                    this.buffer.put(dataStart + this.numStrings + i, this.buffer.get(dataStart + i));
+                }
+            }
+            for (int i = 0; i < this.numStrings; i++) {
+                this.buffer.put(dataStart + i, (byte) this.stringLengths[i]);
+            }
+            this.position += this.numStrings;
+        }
+
+        int payloadSize = this.position - COUNT_OFFSET;
+        if (this.buffer.hasArray()) {
+            StreamParser.WriteHeader(this.buffer.array(), this.buffer.arrayOffset(), this.packetType, payloadSize);
+        } else {
+            byte header[] = new byte[StreamParser.HEADER_SIZE];
+            StreamParser.WriteHeader(header, 0, this.packetType, payloadSize);
+            for (int i = 0; i < header.length; i++) {
+                this.buffer.put(i, header[i]);
+            }
+        }
+        this.buffer.limit(this.position);
+        this.buffer.position(0);
+        return this.buffer;
+    }
+
+    private int fieldIndex() {
+        if (this.written >= this.fieldCount) {
+            throw new IllegalStateException("All " + this.fieldCount + " fields have already been written.");
+        }
+        return this.written;
+    }
+
+    private void putType(LType type) {
+        this.putType(type, type.getSize());
+    }
+
+    private void putType(LType type, int size) {
+        int index = this.fieldIndex();
+        this.ensure(this.position + size);
+        this.buffer.put(COUNT_OFFSET + 1 + index, (byte) type.getId());
+        this.written++;
+    }
+
+    private int putUtf8(int index, int max, int codePoint) throws LSerializer.InvalidTypeException {
+        int bytes = codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+        if (index + bytes > max) {
+            throw new LSerializer.InvalidTypeException("String too long.");
+        }
+        this.ensure(index + bytes);
+        switch (bytes) {
+            case 1:
+                this.buffer.put(index, (byte) codePoint);
+                break;
+            case 2:
+                this.buffer.put(index, (byte) (0xc0 | (codePoint >> 6)));
+                this.buffer.put(index + 1, (byte) (0x80 | (codePoint & 0x3f)));
+                break;
+            case 3:
+                this.buffer.put(index, (byte) (0xe0 | (codePoint >> 12)));
+                this.buffer.put(index + 1, (byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                this.buffer.put(index + 2, (byte) (0x80 | (codePoint & 0x3f)));
+                break;
+            default:
+                this.buffer.put(index, (byte) (0xf0 | (codePoint >> 18)));
+                this.buffer.put(index + 1, (byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                this.buffer.put(index + 2, (byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                this.buffer.put(index + 3, (byte) (0x80 | (codePoint & 0x3f)));
+        }
+        return index + bytes;
+    }
+
+    private void ensure(int size) {
+        if (size <= this.buffer.capacity()) {
+            this.buffer.limit(this.buffer.capacity());
+            return;
+        }
+        if (!this.growable) {
+            throw new BufferOverflowException();
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(size, this.buffer.capacity() * 2));
+        System.arraycopy(this.buffer.array(), 0, larger.array(), 0, this.buffer.capacity());
+        this.buffer = larger;
+    }
+}
@@ -0,0 +1,298 @@
+package uk.co.tstableford.rpc.lib.serializer;
+
+import uk.co.tstableford.rpc.lib.RPC;
+import uk.co.tstableford.rpc.lib.object.LType;
+import uk.co.tstableford.rpc.lib.stream.StreamParser;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A precomputed layout for a message whose fields always have the same types.
+ *
+ * Without strings or varints every field sits at a fixed offset, and the packet size, and
+ * so the whole stream header, never change. A template works these out once. Encoding copies
+ * the prebuilt prefix and writes values at their offsets. Decoding checks the size and
+ * compares the type table in one go, then reads at the same offsets.
+ * <pre>
+ * MessageTemplate reading = MessageTemplate.forCall(SENSOR_FID, LType.INT64, LType.FLOAT);
+ * ByteBuffer packet = reading.newPacket();
+ * reading.putLong(packet, 0, System.currentTimeMillis());
+ * reading.putFloat(packet, 1, 21.5f);
+ * rpc.call(packet);
+ * </pre>
+ * Field indexes don't include the function ID of a call template. Templates are immutable
+ * and can be shared between threads.
+ */
+public class MessageTemplate {
+    private final int packetType;
+    private final LType[] types;
+    // Where each field starts in the payload, after the count byte and type table.
+    private final int[] offsets;
+    // The range putLong accepts for each field, empty for floats.
+    private final long[] min, max;
+    // The field index argument 0 maps to, 1 for calls as field 0 is the function ID.
+    private final int first;
+    private final int functionId;
+    private final int payloadSize;
+    // The stream header, count, type table and for calls the function ID.
+    private final byte[] prefix;
+    // The count and type table as big endian longs, then any bytes left over.
+    private final long[] tableWords;
+    private final int tableLength;
+
+    private MessageTemplate(int packetType, int functionId, LType[] types) {
+        if (types.length > 255) {
+            throw new IllegalArgumentException("Too many data items!");
+        }
+        this.packetType = packetType;
+        this.functionId = functionId;
+        this.first = functionId < 0 ? 0 : 1;
+        this.types = types.clone();
+        this.offsets = new int[types.length];
+        this.min = new long[types.length];
+        this.max = new long[types.length];
+        int offset = 1 + types.length;
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == LType.UINT64) {
+                throw new IllegalArgumentException("Unsupported type - " + types[i]);
+            }
+            if (types[i] == LType.STRING || types[i].isVariableLength()) {
+                throw new IllegalArgumentException(types[i] + " fields don't have a fixed size.");
+            }
+            this.offsets[i] = offset;
+            offset += types[i].getSize();
+            this.setRange(i, types[i]);
+        }
+        this.payloadSize = offset;
+        if (this.payloadSize > 0xffff) {
+            throw new IllegalArgumentException("Messages can be at most 65535 bytes.");
+        }
+
+        this.tableLength = 1 + types.length;
+        this.prefix = new byte[StreamParser.HEADER_SIZE + this.tableLength];
+        StreamParser.WriteHeader(this.prefix, 0, packetType, this.payloadSize);
+        this.prefix[StreamParser.HEADER_SIZE] = (byte) types.length;
+        for (int i = 0; i < types.length; i++) {
+            this.prefix[StreamParser.HEADER_SIZE + 1 + i] = (byte) types[i].getId();
+        }
+        ByteBuffer table = ByteBuffer.wrap(this.prefix, StreamParser.HEADER_SIZE, this.tableLength).slice();
+        this.tableWords = new long[this.tableLength / 8];
+        for (int i = 0; i < this.tableWords.length; i++) {
+            this.tableWords[i] = table.getLong(i * 8);
+        }
+    }
+
+    /**
+     * A template for any packet type made up of fields of the given types.
+     */
+    public MessageTemplate(int packetType, LType... types) {
+        this(packetType, -1, types);
+    }
+
+    /**
+     * A template for an RPC call to functionId taking arguments of the given types.
+     */
+    public static MessageTemplate forCall(int functionId, LType... argTypes) {
+        if (functionId < 0 || functionId > 0xffff) {
+            throw new IllegalArgumentException("Function ID " + functionId + " is not a UINT16.");
+        }
+        LType[] types = new LType[argTypes.length + 1];
+        types[0] = LType.UINT16;
+        System.arraycopy(argTypes, 0, types, 1, argTypes.length);
+        return new MessageTemplate(RPC.RPC_PACKET_ID, functionId, types);
+    }
+
+    public int getPacketType() {
+        return this.packetType;
+    }
+
+    /**
+     * The function ID of a call template, or -1.
+     */
+    public int getFunctionId() {
+        return this.functionId;
+    }
+
+    public int size() {
+        return this.types.length - this.first;
+    }
+
+    public LType getType(int index) {
+        return this.types[this.check(index)];
+    }
+
+    public int getPayloadSize() {
+        return this.payloadSize;
+    }
+
+    public int getPacketSize() {
+        return StreamParser.HEADER_SIZE + this.payloadSize;
+    }
+
+    /**
+     * A new packet, header included, with everything but the field values filled in.
+     */
+    public ByteBuffer newPacket() {
+        ByteBuffer packet = ByteBuffer.allocate(this.getPacketSize());
+        this.reset(packet);
+        return packet;
+    }
+
+    /**
+     * Write the header, type table and any function ID into packet, which must be at least
+     * getPacketSize() bytes. Fields already written there are left alone. Leaves position 0
+     * and limit at the end of the packet, as LWriter.finish() does.
+     */
+    public void reset(ByteBuffer packet) {
+        packet.clear();
+        packet.put(this.prefix);
+        if (this.functionId >= 0) {
+            packet.putShort(StreamParser.HEADER_SIZE + this.offsets[0], (short) this.functionId);
+        }
+        packet.position(0);
+        packet.limit(this.getPacketSize());
+    }
+
+    /**
+     * Set an integer field of a packet from newPacket().
+     */
+    public void putLong(ByteBuffer packet, int index, long value) throws LSerializer.InvalidTypeException {
+        int i = this.check(index);
+        if (value < this.min[i] || value > this.max[i]) {
+            throw this.rangeError(index);
+        }
+        int offset = StreamParser.HEADER_SIZE + this.offsets[i];
+        switch (this.types[i].getSize()) {
+            case 1:
+                packet.put(offset, (byte) value);
+                break;
+            case 2:
+                packet.putShort(offset, (short) value);
+                break;
+            case 4:
+                packet.putInt(offset, (int) value);
+                break;
+            default:
+                packet.putLong(offset, value);
+                break;
+        }
+    }
+
+    public void putFloat(ByteBuffer packet, int index, float value) {
+        int i = this.check(index);
+        if (this.types[i] != LType.FLOAT) {
+            throw new IllegalArgumentException("Field " + index + " is a " + this.types[i] + " not a float.");
+        }
+        packet.putFloat(StreamParser.HEADER_SIZE + this.offsets[i], value);
+    }
+
+    /**
+     * Check whether a payload, as handed over by a StreamParser, has this template's layout.
+     * Only the size and the type table are compared, not any function ID.
+     */
+    public boolean matches(ByteBuffer payload, int size) {
+        if (size != this.payloadSize) {
+            return false;
+        }
+        int i = 0;
+        for (long word: this.tableWords) {
+            if (payload.getLong(i) != word) {
+                return false;
+            }
+            i += 8;
+        }
+        for (; i < this.tableLength; i++) {
+            if (payload.get(i) != this.prefix[StreamParser.HEADER_SIZE + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read an integer field of a payload that matches(). Signed types are sign extended.
+     */
+    public long getLong(ByteBuffer payload, int index) {
+        int i = this.check(index);
+        int offset = this.offsets[i];
+        switch (this.types[i]) {
+            case INT8:
+                return payload.get(offset);
+            case UINT8:
+                return payload.get(offset) & 0xffL;
+            case INT16:
+                return payload.getShort(offset);
+            case UINT16:
+                return payload.getShort(offset) & 0xffffL;
+            case INT32:
+                return payload.getInt(offset);
+            case UINT32:
+                return payload.getInt(offset) & 0xffffffffL;
+            case INT64:
+                return payload.getLong(offset);
+            default:
+                throw new IllegalArgumentException("Field " + index + " is a " + this.types[i] + " not an integer.");
+        }
+    }
+
+    public int getInt(ByteBuffer payload, int index) {
+        return (int) this.getLong(payload, index);
+    }
+
+    public float getFloat(ByteBuffer payload, int index) {
+        int i = this.check(index);
+        if (this.types[i] != LType.FLOAT) {
+            throw new IllegalArgumentException("Field " + index + " is a " + this.types[i] + " not a float.");
+        }
+        return payload.getFloat(this.offsets[i]);
+    }
+
+    // Kept out of putLong so it stays small enough to inline.
+    private LSerializer.InvalidTypeException rangeError(int index) {
+        LType type = this.getType(index);
+        if (!type.isInteger()) {
+            throw new IllegalArgumentException("Field " + index + " is a " + type + " not an integer.");
+        }
+        return new LSerializer.InvalidTypeException();
+    }
+
+    private void setRange(int i, LType type) {
+        switch (type) {
+            case INT8:
+                this.min[i] = Byte.MIN_VALUE;
+                this.max[i] = Byte.MAX_VALUE;
+                break;
+            case UINT8:
+                this.max[i] = 255;
+                break;
+            case INT16:
+                this.min[i] = Short.MIN_VALUE;
+                this.max[i] = Short.MAX_VALUE;
+                break;
+            case UINT16:
+                this.max[i] = 65535;
+                break;
+            case INT32:
+                this.min[i] = Integer.MIN_VALUE;
+                this.max[i] = Integer.MAX_VALUE;
+                break;
+            case UINT32:
+                this.max[i] = 4294967295L;
+                break;
+            case INT64:
+                this.min[i] = Long.MIN_VALUE;
+                this.max[i] = Long.MAX_VALUE;
+                break;
+            default:
+                this.min[i] = 1;
+                break;
+        }
+    }
+
+    private int check(int index) {
+        if (index < 0 || index >= this.size()) {
+            throw new IndexOutOfBoundsException("Field " + index + " of " + this.size());
+        }
+        return this.first + index;
+    }
+}
@@ -0,0 +1,66 @@
+package uk.co.tstableford.rpc.lib.serializer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Base 128 varints, least significant group first, with the top bit of each byte set
+ * when another byte follows. Signed values are zigzag encoded first so small negative
+ * numbers stay small: 0, -1, 1, -2 become 0, 1, 2, 3.
+ *
+ * Everything works on absolute buffer indexes and nothing allocates.
+ */
+public class VarInt {
+    public static final int MAX_SIZE = 10;
+
+    public static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * The number of bytes value takes as an unsigned varint.
+     */
+    public static int size(long value) {
+        return 1 + (63 - Long.numberOfLeadingZeros(value | 1)) / 7;
+    }
+
+    /**
+     * @return The index after the last byte written.
+     */
+    public static int put(ByteBuffer buffer, int index, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put(index++, (byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put(index++, (byte) value);
+        return index;
+    }
+
+    public static long get(ByteBuffer buffer, int index) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get(index++);
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * The length of the varint starting at index, or -1 if it runs past limit or is longer
+     * than MAX_SIZE.
+     */
+    public static int length(ByteBuffer buffer, int index, int limit) {
+        for (int i = 0; i < MAX_SIZE && index + i < limit; i++) {
+            if (buffer.get(index + i) >= 0) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,28 @@
+package uk.co.tstableford.rpc.lib.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A StreamConnector that can hand over several bytes per call.
+ *
+ * Both read methods return the number of bytes read, or one of
+ * StreamConnector.NO_DATA / StreamConnector.ERROR_EXIT. They never return 0.
+ * Block writes let a packet be sent from a larger buffer without trimming it first.
+ */
+public interface BlockStreamConnector extends StreamConnector {
+    /**
+     * Read up to length bytes into buffer starting at offset.
+     */
+    int readData(byte buffer[], int offset, int length);
+
+    /**
+     * Read up to buffer.remaining() bytes into buffer, advancing its position.
+     */
+    int readData(ByteBuffer buffer);
+
+    /**
+     * Write length bytes of data starting at offset.
+     * @return The number of bytes written.
+     */
+    int writeData(byte data[], int offset, int length);
+}
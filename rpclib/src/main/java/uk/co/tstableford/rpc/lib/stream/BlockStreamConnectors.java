@@ -0,0 +1,60 @@
+package uk.co.tstableford.rpc.lib.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Block reads and writes on any StreamConnector, for connectors that wrap another one.
+ *
+ * A BlockStreamConnector is called directly. Anything else reads one byte per call and is
+ * written from an exactly sized copy of the data, made only when the data isn't one already.
+ */
+public class BlockStreamConnectors {
+    private BlockStreamConnectors() {
+    }
+
+    /**
+     * Read up to length bytes from connector, as BlockStreamConnector.readData does.
+     */
+    public static int readData(StreamConnector connector, byte[] buffer, int offset, int length) {
+        if (connector instanceof BlockStreamConnector) {
+            return ((BlockStreamConnector) connector).readData(buffer, offset, length);
+        }
+        int read = connector.readData();
+        if (read < 0) {
+            return read;
+        }
+        buffer[offset] = (byte) read;
+        return 1;
+    }
+
+    /**
+     * Read up to buffer.remaining() bytes from connector, as BlockStreamConnector.readData does.
+     */
+    public static int readData(StreamConnector connector, ByteBuffer buffer) {
+        if (connector instanceof BlockStreamConnector) {
+            return ((BlockStreamConnector) connector).readData(buffer);
+        }
+        int read = connector.readData();
+        if (read < 0) {
+            return read;
+        }
+        buffer.put((byte) read);
+        return 1;
+    }
+
+    /**
+     * Write length bytes of data starting at offset to connector.
+     * @return Whatever the connector returned.
+     */
+    public static int writeData(StreamConnector connector, byte[] data, int offset, int length) {
+        if (connector instanceof BlockStreamConnector) {
+            return ((BlockStreamConnector) connector).writeData(data, offset, length);
+        }
+        if (offset == 0 && length == data.length) {
+            return connector.writeData(data);
+        }
+        byte copy[] = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        return connector.writeData(copy);
+    }
+}
@@ -0,0 +1,85 @@
+package uk.co.tstableford.rpc.lib.stream;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A pool of heap ByteBuffers in power of two size classes. Safe to acquire and
+ * release from different threads.
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 4;
+    private final ArrayBlockingQueue<ByteBuffer>[] classes;
+    private final int maxSize;
+
+    /**
+     * @param maxSize The largest buffer that will be pooled. Larger requests are allocated and not kept.
+     * @param buffersPerClass How many free buffers to keep per size class.
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(int maxSize, int buffersPerClass) {
+        this.maxSize = maxSize;
+        int count = Math.max(1, sizeClass(maxSize) + 1);
+        this.classes = (ArrayBlockingQueue<ByteBuffer>[]) new ArrayBlockingQueue<?>[count];
+        for (int i = 0; i < count; i++) {
+            this.classes[i] = new ArrayBlockingQueue<>(buffersPerClass);
+        }
+    }
+
+    public BufferPool(int maxSize) {
+        this(maxSize, 8);
+    }
+
+    /**
+     * Get a buffer with position 0 and limit size. Its capacity may be larger than size.
+     */
+    public ByteBuffer acquire(int size) {
+        if (size > this.maxSize) {
+            return ByteBuffer.allocate(size);
+        }
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = this.classes[sizeClass].poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(1 << (sizeClass + MIN_SHIFT));
+        }
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Return a buffer from acquire to the pool. It must not be used afterwards.
+     * Pooled buffers aren't tagged, so any writable heap buffer that fills its whole array and
+     * whose capacity is one of the pool's sizes is taken. Others are ignored, as is a buffer
+     * that is already in the pool.
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (buffer.isReadOnly() || !buffer.hasArray() || buffer.arrayOffset() != 0 || buffer.array().length != capacity
+                || Integer.bitCount(capacity) != 1 || capacity < (1 << MIN_SHIFT)) {
+            return;
+        }
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass >= this.classes.length) {
+            return;
+        }
+        ArrayBlockingQueue<ByteBuffer> free = this.classes[sizeClass];
+        // ByteBuffer.equals compares contents, so look for this very buffer. The queues are
+        // short, and the lock stops two threads releasing the same buffer at once.
+        synchronized (free) {
+            for (ByteBuffer pooled: free) {
+                if (pooled == buffer) {
+                    return;
+                }
+            }
+            buffer.clear();
+            free.offer(buffer);
+        }
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= (1 << MIN_SHIFT)) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+}
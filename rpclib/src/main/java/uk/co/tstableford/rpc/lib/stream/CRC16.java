@@ -1,22 +1,66 @@
 package uk.co.tstableford.rpc.lib.stream;
 
+import java.nio.ByteBuffer;
+
+/**
+ * CRC16 CCITT (polynomial 0x1021, initial value 0xFFFF, not reflected).
+ *
+ * A running CRC can be built up over several calls:
+ * <pre>
+ * int crc = CRC16.update(CRC16.INITIAL, a, 0, a.length);
+ * crc = CRC16.update(crc, b, 0, b.length);
+ * </pre>
+ */
 public class CRC16 {
+    public static final int INITIAL = 0xFFFF;
+    private static final int POLYNOMIAL = 0x1021;   // 0001 0000 0010 0001  (0, 5, 12)
+    private static final char[] TABLE = new char[256];
 
-    public static int CRC(final byte[] buffer) {
-        int crc = 0xFFFF;
-        int polynomial = 0x1021;   // 0001 0000 0010 0001  (0, 5, 12)
-
-        for (byte b : buffer) {
-            for (int i = 0; i < 8; i++) {
-                boolean bit = ((b   >> (7-i) & 1) == 1);
-                boolean c15 = ((crc >> 15    & 1) == 1);
-                crc <<= 1;
-                if (c15 ^ bit) crc ^= polynomial;
+    static {
+        for (int i = 0; i < TABLE.length; i++) {
+            int crc = i << 8;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ POLYNOMIAL : crc << 1;
             }
+            TABLE[i] = (char) crc;
         }
+    }
 
-        crc &= 0xffff;
-        return crc;
+    public static int CRC(final byte[] buffer) {
+        return update(INITIAL, buffer, 0, buffer.length);
+    }
+
+    public static int update(int crc, byte b) {
+        return ((crc << 8) ^ TABLE[((crc >>> 8) ^ b) & 0xff]) & 0xffff;
+    }
+
+    public static int update(int crc, final byte[] buffer, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            crc = (crc << 8) ^ TABLE[((crc >>> 8) ^ buffer[i]) & 0xff];
+        }
+        return crc & 0xffff;
+    }
+
+    /**
+     * Absolute reads, the position and limit of buffer are left alone.
+     */
+    public static int update(int crc, final ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray()) {
+            return update(crc, buffer.array(), buffer.arrayOffset() + offset, length);
+        }
+        for (int i = offset; i < offset + length; i++) {
+            crc = (crc << 8) ^ TABLE[((crc >>> 8) ^ buffer.get(i)) & 0xff];
+        }
+        return crc & 0xffff;
     }
 
-}
\ No newline at end of file
+    /**
+     * Consumes buffer from its position to its limit.
+     */
+    public static int update(int crc, final ByteBuffer buffer) {
+        int length = buffer.remaining();
+        crc = update(crc, buffer, buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        return crc;
+    }
+}
@@ -0,0 +1,204 @@
+package uk.co.tstableford.rpc.lib.stream;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Wraps a connector and records every byte read and written to a capture file, to be played
+ * back later with ReplayConnector.
+ *
+ * The file is written through a memory mapped window, so recording a chunk is a copy into
+ * the page cache and nothing more. It starts with a FILE_HEADER_SIZE header: MAGIC, VERSION
+ * and the wall clock time the capture began in milliseconds. Each chunk follows as the
+ * nanoseconds since the capture began as an INT64, the direction, READ or WRITE, as a UINT8,
+ * the length as a UINT32 and then the bytes, all big endian. close() trims the file to the
+ * last chunk. A capture that was never closed, say after a crash, ends at the first chunk
+ * with a direction of 0.
+ *
+ * Bytes read one at a time are gathered into chunks of up to PENDING_SIZE, which are written
+ * out as soon as the connector has nothing more to read. Transports that don't read through a
+ * connector, like NioSession, can call record themselves.
+ */
+public class CaptureConnector implements BlockStreamConnector, Closeable {
+    public static final int MAGIC = 0x4c435046;
+    public static final int VERSION = 1;
+    public static final int FILE_HEADER_SIZE = 16;
+    public static final int CHUNK_HEADER_SIZE = 13;
+    public static final int READ = 1;
+    public static final int WRITE = 2;
+    public static final int PENDING_SIZE = 256;
+    public static final int DEFAULT_WINDOW_SIZE = 1 << 20;
+    private final StreamConnector connector;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int windowSize;
+    private final long startNanos;
+    private MappedByteBuffer window;
+    private final byte[] pending = new byte[PENDING_SIZE];
+    private int pendingLength = 0;
+    private long pendingNanos;
+    private long chunks = 0;
+    private long length = FILE_HEADER_SIZE;
+    private boolean closed = false, failed = false;
+
+    /**
+     * @param windowSize How much of the file is mapped at once. Chunks larger than this get a
+     * window of their own.
+     */
+    public CaptureConnector(StreamConnector connector, File file, int windowSize) throws IOException {
+        this.connector = connector;
+        this.windowSize = windowSize;
+        this.file = new RandomAccessFile(file, "rw");
+        this.file.setLength(0);
+        this.channel = this.file.getChannel();
+        this.startNanos = System.nanoTime();
+        this.map(0, FILE_HEADER_SIZE);
+        this.window.putInt(MAGIC);
+        this.window.putInt(VERSION);
+        this.window.putLong(System.currentTimeMillis());
+    }
+
+    public CaptureConnector(StreamConnector connector, File file) throws IOException {
+        this(connector, file, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * The number of chunks written to the file so far.
+     */
+    public synchronized long getChunks() {
+        return this.chunks;
+    }
+
+    /**
+     * The size of the capture so far.
+     */
+    public synchronized long getLength() {
+        return this.length;
+    }
+
+    /**
+     * Add a chunk to the capture.
+     * @param direction READ or WRITE.
+     */
+    public synchronized void record(int direction, byte[] data, int offset, int length) {
+        // Keep chunks in time order.
+        this.flushPending();
+        this.append(System.nanoTime() - this.startNanos, direction, data, offset, length);
+    }
+
+    @Override
+    public int readData() {
+        int read = this.connector.readData();
+        synchronized (this) {
+            if (read >= 0) {
+                if (this.pendingLength == 0) {
+                    this.pendingNanos = System.nanoTime() - this.startNanos;
+                }
+                this.pending[this.pendingLength++] = (byte) read;
+                if (this.pendingLength == PENDING_SIZE) {
+                    this.flushPending();
+                }
+            } else {
+                this.flushPending();
+            }
+        }
+        return read;
+    }
+
+    @Override
+    public int readData(byte[] buffer, int offset, int length) {
+        int read = BlockStreamConnectors.readData(this.connector, buffer, offset, length);
+        if (read > 0) {
+            this.record(READ, buffer, offset, read);
+        }
+        return read;
+    }
+
+    @Override
+    public int readData(ByteBuffer buffer) {
+        int start = buffer.position();
+        int read = BlockStreamConnectors.readData(this.connector, buffer);
+        if (read > 0) {
+            if (buffer.hasArray()) {
+                this.record(READ, buffer.array(), buffer.arrayOffset() + start, read);
+            } else {
+                byte[] copy = new byte[read];
+                ByteBuffer view = buffer.duplicate();
+                view.position(start);
+                view.get(copy);
+                this.record(READ, copy, 0, read);
+            }
+        }
+        return read;
+    }
+
+    @Override
+    public int writeData(byte[] data) {
+        this.record(WRITE, data, 0, data.length);
+        return this.connector.writeData(data);
+    }
+
+    @Override
+    public int writeData(byte[] data, int offset, int length) {
+        this.record(WRITE, data, offset, length);
+        return BlockStreamConnectors.writeData(this.connector, data, offset, length);
+    }
+
+    /**
+     * Write out any gathered bytes and trim the file to the end of the capture. Reads and
+     * writes still go through to the wrapped connector afterwards, but aren't recorded.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.closed) {
+            return;
+        }
+        this.flushPending();
+        this.closed = true;
+        this.window.force();
+        // The mapping stays until the buffer is collected, which Linux and macOS don't mind.
+        this.window = null;
+        this.channel.truncate(this.length);
+        this.file.close();
+    }
+
+    private void flushPending() {
+        if (this.pendingLength > 0) {
+            int length = this.pendingLength;
+            this.pendingLength = 0;
+            this.append(this.pendingNanos, READ, this.pending, 0, length);
+        }
+    }
+
+    private void append(long nanos, int direction, byte[] data, int offset, int length) {
+        if (this.closed || this.failed) {
+            return;
+        }
+        int size = CHUNK_HEADER_SIZE + length;
+        if (this.window.remaining() < size) {
+            try {
+                this.map(this.length, size);
+            } catch (IOException e) {
+                // Stop recording rather than break the link.
+                System.err.println("Capture failed: " + e.getMessage());
+                this.failed = true;
+                return;
+            }
+        }
+        this.window.putLong(nanos);
+        this.window.put((byte) direction);
+        this.window.putInt(length);
+        this.window.put(data, offset, length);
+        this.length += size;
+        this.chunks++;
+    }
+
+    private void map(long position, int size) throws IOException {
+        this.window = this.channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(size, this.windowSize));
+    }
+}
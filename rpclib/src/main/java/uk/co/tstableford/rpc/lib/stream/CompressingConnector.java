@@ -0,0 +1,108 @@
+package uk.co.tstableford.rpc.lib.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Wraps a connector and compresses packets on their way out. Packets with a payload of at
+ * least threshold bytes are sent as COMPRESSED_PACKET_ID packets when that makes them smaller,
+ * everything else goes through untouched. The other end needs a FrameDecompressor with the
+ * same dictionary, peers without one just ignore the compressed packets.
+ *
+ * A compressed payload starts with the original packet type, the original payload size and
+ * the codec's dictionary ID, all big endian UINT16s, followed by the LZCodec output.
+ *
+ * Each writeData call must hold exactly one whole packet, as RPC, LWriter and Fragmenter write
+ * them. Anything else is passed through. Writes are serialized, and reuse one output buffer.
+ */
+public class CompressingConnector implements BlockStreamConnector {
+    public static final int COMPRESSED_PACKET_ID = 12;
+    public static final int COMPRESSED_HEADER_SIZE = 6;
+    public static final int DEFAULT_THRESHOLD = 64;
+    private final StreamConnector connector;
+    private final LZCodec codec;
+    private final int threshold;
+    private final byte[] frame;
+    private long compressed = 0, bytesSaved = 0;
+
+    public CompressingConnector(StreamConnector connector, byte dictionary[], int threshold) {
+        this.connector = connector;
+        this.codec = new LZCodec(dictionary);
+        this.threshold = threshold;
+        this.frame = new byte[StreamParser.HEADER_SIZE + COMPRESSED_HEADER_SIZE + LZCodec.MAX_INPUT];
+    }
+
+    public CompressingConnector(StreamConnector connector) {
+        this(connector, new byte[0], DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * The number of packets that were sent compressed.
+     */
+    public synchronized long getCompressed() {
+        return this.compressed;
+    }
+
+    /**
+     * How many fewer bytes were written thanks to compression.
+     */
+    public synchronized long getBytesSaved() {
+        return this.bytesSaved;
+    }
+
+    @Override
+    public int writeData(byte[] data) {
+        return this.writeData(data, 0, data.length);
+    }
+
+    @Override
+    public synchronized int writeData(byte[] data, int offset, int length) {
+        int payload = length - StreamParser.HEADER_SIZE;
+        if (payload < this.threshold || payload > LZCodec.MAX_INPUT) {
+            return BlockStreamConnectors.writeData(this.connector, data, offset, length);
+        }
+        int type = ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+        int size = ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+        if (size != payload || type == COMPRESSED_PACKET_ID) {
+            return BlockStreamConnectors.writeData(this.connector, data, offset, length);
+        }
+
+        int start = StreamParser.HEADER_SIZE + COMPRESSED_HEADER_SIZE;
+        // Only worth it if it saves more than the extra header.
+        int packed = this.codec.compress(data, offset + StreamParser.HEADER_SIZE, payload, this.frame, start, payload - COMPRESSED_HEADER_SIZE - 1);
+        if (packed < 0) {
+            return BlockStreamConnectors.writeData(this.connector, data, offset, length);
+        }
+        int dictionaryId = this.codec.getDictionaryId();
+        byte[] frame = this.frame;
+        frame[StreamParser.HEADER_SIZE] = (byte) (type >> 8);
+        frame[StreamParser.HEADER_SIZE + 1] = (byte) type;
+        frame[StreamParser.HEADER_SIZE + 2] = (byte) (size >> 8);
+        frame[StreamParser.HEADER_SIZE + 3] = (byte) size;
+        frame[StreamParser.HEADER_SIZE + 4] = (byte) (dictionaryId >> 8);
+        frame[StreamParser.HEADER_SIZE + 5] = (byte) dictionaryId;
+        StreamParser.WriteHeader(frame, 0, COMPRESSED_PACKET_ID, COMPRESSED_HEADER_SIZE + packed);
+        int total = start + packed;
+        int written = BlockStreamConnectors.writeData(this.connector, frame, 0, total);
+        if (written != total) {
+            return written < 0 ? written : 0;
+        }
+        this.compressed++;
+        this.bytesSaved += length - total;
+        return length;
+    }
+
+    @Override
+    public int readData() {
+        return this.connector.readData();
+    }
+
+    @Override
+    public int readData(byte[] buffer, int offset, int length) {
+        return BlockStreamConnectors.readData(this.connector, buffer, offset, length);
+    }
+
+    @Override
+    public int readData(ByteBuffer buffer) {
+        return BlockStreamConnectors.readData(this.connector, buffer);
+    }
+}
@@ -0,0 +1,75 @@
+package uk.co.tstableford.rpc.lib.stream;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A map from UINT16 IDs to values with constant time, lock free lookups.
+ *
+ * IDs are split into 256 pages of 256 entries and pages are only allocated once
+ * something is registered in them. Entries can be changed from any thread while
+ * another thread is looking them up.
+ */
+public class DispatchTable<T> {
+    private final AtomicReferenceArray<AtomicReferenceArray<T>> pages = new AtomicReferenceArray<>(256);
+
+    public T get(int id) {
+        if ((id & ~0xffff) != 0) {
+            return null;
+        }
+        AtomicReferenceArray<T> page = this.pages.get(id >>> 8);
+        return page == null ? null : page.get(id & 0xff);
+    }
+
+    /**
+     * @return The value previously registered for id, or null.
+     */
+    public T put(int id, T value) {
+        if ((id & ~0xffff) != 0) {
+            throw new IllegalArgumentException("ID " + id + " is not a UINT16.");
+        }
+        return this.page(id).getAndSet(id & 0xff, value);
+    }
+
+    /**
+     * Register value only if nothing is registered for id.
+     * @return True if value was registered.
+     */
+    public boolean putIfAbsent(int id, T value) {
+        if ((id & ~0xffff) != 0) {
+            throw new IllegalArgumentException("ID " + id + " is not a UINT16.");
+        }
+        return this.page(id).compareAndSet(id & 0xff, null, value);
+    }
+
+    /**
+     * Remove id only if it is registered to value.
+     * @return True if it was removed.
+     */
+    public boolean remove(int id, T value) {
+        if ((id & ~0xffff) != 0) {
+            return false;
+        }
+        AtomicReferenceArray<T> page = this.pages.get(id >>> 8);
+        return page != null && page.compareAndSet(id & 0xff, value, null);
+    }
+
+    /**
+     * @return The value previously registered for id, or null.
+     */
+    public T remove(int id) {
+        if ((id & ~0xffff) != 0) {
+            return null;
+        }
+        AtomicReferenceArray<T> page = this.pages.get(id >>> 8);
+        return page == null ? null : page.getAndSet(id & 0xff, null);
+    }
+
+    private AtomicReferenceArray<T> page(int id) {
+        AtomicReferenceArray<T> page = this.pages.get(id >>> 8);
+        if (page == null) {
+            this.pages.compareAndSet(id >>> 8, null, new AtomicReferenceArray<T>(256));
+            page = this.pages.get(id >>> 8);
+        }
+        return page;
+    }
+}
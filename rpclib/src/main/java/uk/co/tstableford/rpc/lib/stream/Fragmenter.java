@@ -0,0 +1,147 @@
+package uk.co.tstableford.rpc.lib.stream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits payloads too big for a single packet into FRAGMENT_PACKET_ID packets, to be put back
+ * together by a Reassembler on the other side.
+ *
+ * Every fragment starts with the message ID (UINT16), the chunk index (UINT32) and a flags byte,
+ * all big endian. Chunk 0 also carries the stream ID (UINT16) and the total length (UINT32,
+ * UNKNOWN_LENGTH if not known up front). The rest of the packet is data.
+ *
+ * Only one chunk is held in memory at a time, so data can be streamed from an InputStream.
+ * Fragments of different messages can be interleaved with each other and with other packets.
+ */
+public class Fragmenter {
+    public static final int FRAGMENT_PACKET_ID = 11;
+    public static final int FLAG_LAST = 0x1;
+    public static final int FLAG_ABORT = 0x2;
+    public static final long UNKNOWN_LENGTH = 0xffffffffL;
+    public static final int CHUNK_HEADER_SIZE = 7;
+    public static final int FIRST_CHUNK_HEADER_SIZE = CHUNK_HEADER_SIZE + 6;
+    private final StreamConnector connector;
+    private final byte[] frame;
+    private final AtomicInteger nextMessageId = new AtomicInteger();
+
+    /**
+     * @param frameSize The largest packet payload to send. Must not be larger than the
+     * buffer the receiving StreamParser was built with.
+     */
+    public Fragmenter(StreamConnector connector, int frameSize) {
+        if (frameSize <= FIRST_CHUNK_HEADER_SIZE || frameSize > 0xffff) {
+            throw new IllegalArgumentException("Frame size must be between " + (FIRST_CHUNK_HEADER_SIZE + 1) + " and 65535.");
+        }
+        this.connector = connector;
+        this.frame = new byte[StreamParser.HEADER_SIZE + frameSize];
+    }
+
+    /**
+     * Send data in as many fragments as it takes.
+     * @return The message ID used.
+     */
+    public int send(int streamId, byte data[], int offset, int length) throws IOException {
+        int messageId = this.nextMessageId.getAndIncrement() & 0xffff;
+        long index = 0;
+        int sent = 0;
+        do {
+            int count = Math.min(length - sent, this.capacity(index));
+            boolean last = sent + count == length;
+            synchronized (this) {
+                int at = this.begin(messageId, index, last ? FLAG_LAST : 0, streamId, length);
+                System.arraycopy(data, offset + sent, this.frame, at, count);
+                this.write(at + count);
+            }
+            sent += count;
+            index++;
+        } while (sent < length);
+        return messageId;
+    }
+
+    public int send(int streamId, byte data[]) throws IOException {
+        return this.send(streamId, data, 0, data.length);
+    }
+
+    /**
+     * Send everything left in an InputStream. The stream isn't closed.
+     * If reading fails the receiver is told to drop the message and the exception is rethrown.
+     * @param length The number of bytes that will be read, or UNKNOWN_LENGTH.
+     * @return The message ID used.
+     */
+    public int send(int streamId, InputStream in, long length) throws IOException {
+        int messageId = this.nextMessageId.getAndIncrement() & 0xffff;
+        long index = 0;
+        long sent = 0;
+        boolean last = false;
+        while (!last) {
+            synchronized (this) {
+                int at = this.begin(messageId, index, 0, streamId, length);
+                int capacity = this.capacity(index);
+                if (length != UNKNOWN_LENGTH && length - sent <= capacity) {
+                    capacity = (int) (length - sent);
+                    last = true;
+                }
+                int count = 0;
+                try {
+                    while (count < capacity) {
+                        int read = in.read(this.frame, at + count, capacity - count);
+                        if (read < 0) {
+                            last = true;
+                            break;
+                        }
+                        count += read;
+                    }
+                } catch (IOException e) {
+                    this.write(this.begin(messageId, index, FLAG_ABORT, streamId, length));
+                    throw e;
+                }
+                if (last) {
+                    this.frame[StreamParser.HEADER_SIZE + 6] = FLAG_LAST;
+                }
+                this.write(at + count);
+                sent += count;
+            }
+            index++;
+        }
+        return messageId;
+    }
+
+    private int capacity(long index) {
+        return this.frame.length - StreamParser.HEADER_SIZE - (index == 0 ? FIRST_CHUNK_HEADER_SIZE : CHUNK_HEADER_SIZE);
+    }
+
+    /**
+     * Write the chunk header after the packet header.
+     * @return Where the data goes.
+     */
+    private int begin(int messageId, long index, int flags, int streamId, long length) {
+        int at = StreamParser.HEADER_SIZE;
+        this.frame[at++] = (byte) (messageId >> 8);
+        this.frame[at++] = (byte) messageId;
+        at = putUInt32(this.frame, at, index);
+        this.frame[at++] = (byte) flags;
+        if (index == 0) {
+            this.frame[at++] = (byte) (streamId >> 8);
+            this.frame[at++] = (byte) streamId;
+            at = putUInt32(this.frame, at, length);
+        }
+        return at;
+    }
+
+    private void write(int end) throws IOException {
+        StreamParser.WriteHeader(this.frame, 0, FRAGMENT_PACKET_ID, end - StreamParser.HEADER_SIZE);
+        if (BlockStreamConnectors.writeData(this.connector, this.frame, 0, end) != end) {
+            throw new IOException("Connector didn't take the whole fragment.");
+        }
+    }
+
+    private static int putUInt32(byte out[], int at, long value) {
+        out[at] = (byte) (value >> 24);
+        out[at + 1] = (byte) (value >> 16);
+        out[at + 2] = (byte) (value >> 8);
+        out[at + 3] = (byte) value;
+        return at + 4;
+    }
+}
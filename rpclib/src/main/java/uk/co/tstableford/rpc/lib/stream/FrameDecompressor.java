@@ -0,0 +1,92 @@
+package uk.co.tstableford.rpc.lib.stream;
+
+import uk.co.tstableford.rpc.lib.metrics.MetricsListener;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives packets compressed by a CompressingConnector and hands the original packets back
+ * to the parser's handlers, as if they had been read off the stream.
+ *
+ * Packets are decompressed into one reusable buffer on the parsing thread. Packets made with
+ * a different dictionary, or that don't decompress to the size they claim, are dropped and
+ * reported to the parser's metrics as decode errors. In POOLED mode the compressed packet's
+ * buffer is released once it has been decompressed.
+ */
+public class FrameDecompressor implements StreamParser.StreamHandler {
+    private final LZCodec codec;
+    private final byte[] input;
+    private StreamParser parser;
+
+    public FrameDecompressor(byte dictionary[]) {
+        this.codec = new LZCodec(dictionary);
+        this.input = new byte[LZCodec.MAX_INPUT];
+    }
+
+    public FrameDecompressor() {
+        this(new byte[0]);
+    }
+
+    /**
+     * Decompress packets read by parser and dispatch them back through it.
+     */
+    public void attach(StreamParser parser) {
+        this.parser = parser;
+        parser.addHandler(CompressingConnector.COMPRESSED_PACKET_ID, this);
+    }
+
+    @Override
+    public void onPacket(int type, int size, ByteBuffer buffer) {
+        int innerType = size < CompressingConnector.COMPRESSED_HEADER_SIZE ? 0 : buffer.getShort(0) & 0xffff;
+        int innerSize = this.decompress(size, buffer);
+        if (this.parser.getDeliveryMode() == StreamParser.DeliveryMode.POOLED) {
+            this.parser.getBufferPool().release(buffer);
+        }
+        if (innerSize < 0) {
+            this.failed(type);
+            return;
+        }
+        this.parser.dispatch(innerType, this.codec.getOutput(), this.codec.getOutputOffset(), innerSize);
+    }
+
+    /**
+     * @return The size of the packet decompressed into the codec's output, or -1 if it couldn't be.
+     */
+    private int decompress(int size, ByteBuffer buffer) {
+        if (size < CompressingConnector.COMPRESSED_HEADER_SIZE) {
+            return -1;
+        }
+        int innerType = buffer.getShort(0) & 0xffff;
+        int innerSize = buffer.getShort(2) & 0xffff;
+        int dictionaryId = buffer.getShort(4) & 0xffff;
+        if (dictionaryId != this.codec.getDictionaryId() || innerType == CompressingConnector.COMPRESSED_PACKET_ID) {
+            return -1;
+        }
+
+        int length = size - CompressingConnector.COMPRESSED_HEADER_SIZE;
+        byte[] src;
+        int offset;
+        if (buffer.hasArray()) {
+            src = buffer.array();
+            offset = buffer.arrayOffset() + CompressingConnector.COMPRESSED_HEADER_SIZE;
+        } else {
+            ByteBuffer source = buffer.duplicate();
+            source.clear();
+            source.position(CompressingConnector.COMPRESSED_HEADER_SIZE);
+            source.get(this.input, 0, length);
+            src = this.input;
+            offset = 0;
+        }
+        if (this.codec.decompress(src, offset, length, innerSize) != innerSize) {
+            return -1;
+        }
+        return innerSize;
+    }
+
+    private void failed(int type) {
+        MetricsListener metrics = this.parser.getMetrics();
+        if (metrics != null) {
+            metrics.onDecodeError(type);
+        }
+    }
+}
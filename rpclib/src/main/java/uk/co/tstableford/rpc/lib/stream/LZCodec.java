@@ -0,0 +1,226 @@
+package uk.co.tstableford.rpc.lib.stream;
+
+import java.util.Arrays;
+
+/**
+ * A small LZ77 codec in the style of LZ4, for packet payloads.
+ *
+ * The output is a list of sequences. Each starts with a token byte holding the number of
+ * literals in the top four bits and the match length minus 4 in the bottom four, where 15 means
+ * more bytes of length follow (each adding up to 255). The literals come next, then a little
+ * endian UINT16 offset back to the match and any extra match length. The last sequence is
+ * literals only.
+ *
+ * An optional preset dictionary is treated as data that came just before every payload, so
+ * matches can point into it. Both ends must use the same dictionary.
+ *
+ * A codec keeps its hash table and history between calls so nothing is allocated per payload.
+ * It isn't thread safe.
+ */
+public class LZCodec {
+    public static final int MAX_INPUT = 0xffff;
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xffff;
+    private static final int HASH_BITS = 12;
+    private final byte[] dictionary;
+    private final int dictionaryId;
+    // The dictionary followed by the payload being worked on.
+    private final byte[] history;
+    private final int[] table = new int[1 << HASH_BITS];
+    private final int[] primed = new int[1 << HASH_BITS];
+
+    public LZCodec() {
+        this(new byte[0]);
+    }
+
+    /**
+     * @param dictionary Data that payloads are likely to share, such as a typical message.
+     * Only the last 65535 bytes can be matched.
+     */
+    public LZCodec(byte dictionary[]) {
+        if (dictionary.length > MAX_OFFSET) {
+            dictionary = Arrays.copyOfRange(dictionary, dictionary.length - MAX_OFFSET, dictionary.length);
+        }
+        this.dictionary = dictionary;
+        this.dictionaryId = dictionary.length == 0 ? 0 : CRC16.CRC(dictionary);
+        this.history = new byte[dictionary.length + MAX_INPUT];
+        System.arraycopy(dictionary, 0, this.history, 0, dictionary.length);
+        Arrays.fill(this.primed, -1);
+        for (int i = 0; i + MIN_MATCH <= dictionary.length; i++) {
+            this.primed[hash(readInt(this.history, i))] = i;
+        }
+    }
+
+    /**
+     * A CRC16 of the dictionary, or 0 if there isn't one. Sent with compressed frames so a
+     * peer with a different dictionary drops them instead of decoding garbage.
+     */
+    public int getDictionaryId() {
+        return this.dictionaryId;
+    }
+
+    /**
+     * Compress length bytes of src into dst.
+     * @return The compressed length, or -1 if it wouldn't fit in maxOutput bytes.
+     */
+    public int compress(byte src[], int offset, int length, byte dst[], int dstOffset, int maxOutput) {
+        if (length > MAX_INPUT) {
+            throw new IllegalArgumentException("Can't compress more than " + MAX_INPUT + " bytes at once.");
+        }
+        int base = this.dictionary.length;
+        byte[] in = this.history;
+        System.arraycopy(src, offset, in, base, length);
+        System.arraycopy(this.primed, 0, this.table, 0, this.table.length);
+
+        int end = base + length;
+        int limit = dstOffset + maxOutput;
+        int op = dstOffset;
+        int anchor = base;
+        int pos = base;
+        while (pos + MIN_MATCH <= end) {
+            int sequence = readInt(in, pos);
+            int h = hash(sequence);
+            int candidate = this.table[h];
+            this.table[h] = pos;
+            if (candidate < 0 || pos - candidate > MAX_OFFSET || readInt(in, candidate) != sequence) {
+                pos++;
+                continue;
+            }
+            int matchLength = MIN_MATCH;
+            while (pos + matchLength < end && in[candidate + matchLength] == in[pos + matchLength]) {
+                matchLength++;
+            }
+            op = this.putSequence(in, anchor, pos - anchor, pos - candidate, matchLength - MIN_MATCH, dst, op, limit);
+            if (op < 0) {
+                return -1;
+            }
+            pos += matchLength;
+            anchor = pos;
+        }
+        op = this.putSequence(in, anchor, end - anchor, 0, -1, dst, op, limit);
+        return op < 0 ? -1 : op - dstOffset;
+    }
+
+    /**
+     * Decompress into this codec's history buffer. The output starts at getOutputOffset().
+     * @return The decompressed length, or -1 if src is corrupt or decompresses to more than
+     * maxLength bytes.
+     */
+    public int decompress(byte src[], int offset, int length, int maxLength) {
+        maxLength = Math.min(maxLength, MAX_INPUT);
+        byte[] out = this.history;
+        int base = this.dictionary.length;
+        int end = base + maxLength;
+        int ip = offset;
+        int inEnd = offset + length;
+        int op = base;
+        while (ip < inEnd) {
+            int token = src[ip++] & 0xff;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int b;
+                do {
+                    if (ip >= inEnd) {
+                        return -1;
+                    }
+                    b = src[ip++] & 0xff;
+                    literals += b;
+                } while (b == 255);
+            }
+            if (ip + literals > inEnd || op + literals > end) {
+                return -1;
+            }
+            System.arraycopy(src, ip, out, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip == inEnd) {
+                break;
+            }
+
+            if (ip + 2 > inEnd) {
+                return -1;
+            }
+            int distance = (src[ip] & 0xff) | ((src[ip + 1] & 0xff) << 8);
+            ip += 2;
+            int matchLength = token & 0xf;
+            if (matchLength == 15) {
+                int b;
+                do {
+                    if (ip >= inEnd) {
+                        return -1;
+                    }
+                    b = src[ip++] & 0xff;
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            int match = op - distance;
+            if (distance == 0 || match < 0 || op + matchLength > end) {
+                return -1;
+            }
+            // Byte by byte, as the match can overlap what it is writing.
+            for (int i = 0; i < matchLength; i++) {
+                out[op + i] = out[match + i];
+            }
+            op += matchLength;
+        }
+        return op - base;
+    }
+
+    /**
+     * The array decompress() writes to.
+     */
+    public byte[] getOutput() {
+        return this.history;
+    }
+
+    public int getOutputOffset() {
+        return this.dictionary.length;
+    }
+
+    /**
+     * @param matchLength The match length minus MIN_MATCH, or -1 for the final literal only sequence.
+     * @return The index after the sequence, or -1 if it didn't fit.
+     */
+    private int putSequence(byte in[], int anchor, int literals, int distance, int matchLength, byte dst[], int op, int limit) {
+        // Worst case for the token, both lengths, the literals and the offset.
+        if (op + 1 + literals / 255 + 1 + literals + 2 + (matchLength < 0 ? 0 : matchLength / 255 + 1) > limit) {
+            return -1;
+        }
+        int token = Math.min(literals, 15) << 4;
+        if (matchLength >= 0) {
+            token |= Math.min(matchLength, 15);
+        }
+        dst[op++] = (byte) token;
+        op = putLength(literals, dst, op);
+        System.arraycopy(in, anchor, dst, op, literals);
+        op += literals;
+        if (matchLength >= 0) {
+            dst[op++] = (byte) distance;
+            dst[op++] = (byte) (distance >>> 8);
+            op = putLength(matchLength, dst, op);
+        }
+        return op;
+    }
+
+    private static int putLength(int length, byte dst[], int op) {
+        if (length < 15) {
+            return op;
+        }
+        length -= 15;
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte data[], int index) {
+        return (data[index] & 0xff) | ((data[index + 1] & 0xff) << 8) | ((data[index + 2] & 0xff) << 16) | (data[index + 3] << 24);
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_BITS);
+    }
+}
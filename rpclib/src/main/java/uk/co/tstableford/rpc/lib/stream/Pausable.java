@@ -0,0 +1,14 @@
+package uk.co.tstableford.rpc.lib.stream;
+
+/**
+ * Something that reads from a link and can stop for a while, so that the far end is held
+ * back by the link's own flow control instead of data piling up in memory.
+ *
+ * Pauses are counted, reading only carries on once every pauseReading has been matched
+ * by a resumeReading. Both can be called from any thread.
+ */
+public interface Pausable {
+    void pauseReading();
+
+    void resumeReading();
+}
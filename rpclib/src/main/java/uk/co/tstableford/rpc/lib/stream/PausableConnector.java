@@ -0,0 +1,98 @@
+package uk.co.tstableford.rpc.lib.stream;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Wraps a connector so reading can be paused, leaving unread bytes with the connector, the
+ * serial port or the socket, until reading is resumed.
+ *
+ * While paused the read methods wait up to MAX_WAIT_MILLIS to be resumed and then return
+ * NO_DATA, so a loop calling StreamParser.parse doesn't spin. Writes are never paused.
+ */
+public class PausableConnector implements BlockStreamConnector, Pausable {
+    public static final long MAX_WAIT_MILLIS = 10;
+    private final StreamConnector connector;
+    // Guarded by this.
+    private int pauses = 0;
+    private long pausedReads = 0;
+
+    public PausableConnector(StreamConnector connector) {
+        this.connector = connector;
+    }
+
+    @Override
+    public synchronized void pauseReading() {
+        this.pauses++;
+    }
+
+    @Override
+    public synchronized void resumeReading() {
+        if (this.pauses > 0 && --this.pauses == 0) {
+            this.notifyAll();
+        }
+    }
+
+    public synchronized boolean isPaused() {
+        return this.pauses > 0;
+    }
+
+    /**
+     * The number of reads that returned NO_DATA because reading was paused.
+     */
+    public synchronized long getPausedReads() {
+        return this.pausedReads;
+    }
+
+    @Override
+    public int readData() {
+        if (this.waitForResume()) {
+            return StreamConnector.NO_DATA;
+        }
+        return this.connector.readData();
+    }
+
+    @Override
+    public int readData(byte[] buffer, int offset, int length) {
+        if (this.waitForResume()) {
+            return StreamConnector.NO_DATA;
+        }
+        return BlockStreamConnectors.readData(this.connector, buffer, offset, length);
+    }
+
+    @Override
+    public int readData(ByteBuffer buffer) {
+        if (this.waitForResume()) {
+            return StreamConnector.NO_DATA;
+        }
+        return BlockStreamConnectors.readData(this.connector, buffer);
+    }
+
+    @Override
+    public int writeData(byte[] data) {
+        return this.connector.writeData(data);
+    }
+
+    @Override
+    public int writeData(byte[] data, int offset, int length) {
+        return BlockStreamConnectors.writeData(this.connector, data, offset, length);
+    }
+
+    /**
+     * @return True if reading is still paused after waiting.
+     */
+    private synchronized boolean waitForResume() {
+        if (this.pauses == 0) {
+            return false;
+        }
+        try {
+            this.wait(MAX_WAIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.pauses > 0) {
+            this.pausedReads++;
+            return true;
+        }
+        return false;
+    }
+}
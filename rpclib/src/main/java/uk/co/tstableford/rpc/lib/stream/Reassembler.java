@@ -0,0 +1,221 @@
+package uk.co.tstableford.rpc.lib.stream;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receives messages sent by a Fragmenter and streams them to a FragmentHandler chunk by chunk,
+ * so nothing is buffered here beyond the packet the parser is already holding.
+ *
+ * Chunks must arrive in order. A missing chunk, a sender abort or a message that goes quiet for
+ * longer than the timeout aborts the message. At most maxMessages can be in progress at once,
+ * the first chunk of any more is dropped. A message the handler rejects in onStart holds its
+ * slot until its last chunk, so the rest of its chunks can be skipped quietly.
+ * All methods are called on the parsing thread.
+ */
+public class Reassembler implements StreamParser.StreamHandler {
+    public static final int DEFAULT_MAX_MESSAGES = 8;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+    private final DispatchTable<FragmentHandler> handlers;
+    private final Transfer[] transfers;
+    private final long timeoutNanos;
+    private long dropped = 0, rejected = 0;
+
+    public Reassembler(int maxMessages, long timeout, TimeUnit unit) {
+        this.handlers = new DispatchTable<>();
+        this.transfers = new Transfer[maxMessages];
+        this.timeoutNanos = unit.toNanos(timeout);
+    }
+
+    public Reassembler() {
+        this(DEFAULT_MAX_MESSAGES, DEFAULT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Handle messages sent to streamId. Replaces any handler already registered for it.
+     */
+    public void addHandler(int streamId, FragmentHandler handler) {
+        this.handlers.put(streamId, handler);
+    }
+
+    public void removeHandler(int streamId) {
+        this.handlers.remove(streamId);
+    }
+
+    public void attach(StreamParser parser) {
+        parser.addHandler(Fragmenter.FRAGMENT_PACKET_ID, this);
+    }
+
+    /**
+     * The number of fragments thrown away because they didn't belong to a message in progress,
+     * or started a message when maxMessages were already in progress.
+     */
+    public long getDropped() {
+        return this.dropped;
+    }
+
+    /**
+     * The number of messages a handler rejected in onStart.
+     */
+    public long getRejected() {
+        return this.rejected;
+    }
+
+    /**
+     * Abort any message that has gone quiet for longer than the timeout. This also happens
+     * whenever a fragment arrives.
+     */
+    public void expire() {
+        long now = System.nanoTime();
+        for (int i = 0; i < this.transfers.length; i++) {
+            Transfer transfer = this.transfers[i];
+            if (transfer != null && now - transfer.lastSeen > this.timeoutNanos) {
+                this.abort(i, "Timed out.");
+            }
+        }
+    }
+
+    @Override
+    public void onPacket(int type, int size, ByteBuffer buffer) {
+        this.expire();
+        if (size < Fragmenter.CHUNK_HEADER_SIZE) {
+            this.dropped++;
+            return;
+        }
+        int messageId = buffer.getShort(0) & 0xffff;
+        long index = buffer.getInt(2) & 0xffffffffL;
+        int flags = buffer.get(6) & 0xff;
+        int slot = this.find(messageId);
+        int dataStart = Fragmenter.CHUNK_HEADER_SIZE;
+
+        if (index == 0) {
+            if (slot >= 0) {
+                this.abort(slot, "Restarted.");
+            }
+            if (size < Fragmenter.FIRST_CHUNK_HEADER_SIZE) {
+                this.dropped++;
+                return;
+            }
+            int streamId = buffer.getShort(7) & 0xffff;
+            long length = buffer.getInt(9) & 0xffffffffL;
+            dataStart = Fragmenter.FIRST_CHUNK_HEADER_SIZE;
+            FragmentHandler handler = this.handlers.get(streamId);
+            slot = this.find(-1);
+            if (handler == null || slot < 0 || (flags & Fragmenter.FLAG_ABORT) != 0) {
+                this.dropped++;
+                return;
+            }
+            Transfer transfer = new Transfer();
+            transfer.messageId = messageId;
+            transfer.handler = handler;
+            transfer.length = length;
+            transfer.rejected = !handler.onStart(messageId, streamId, length);
+            this.transfers[slot] = transfer;
+            if (transfer.rejected) {
+                this.rejected++;
+                this.skip(slot, flags);
+                return;
+            }
+        } else if (slot < 0) {
+            this.dropped++;
+            return;
+        } else if (this.transfers[slot].rejected) {
+            this.skip(slot, flags);
+            return;
+        } else if (this.transfers[slot].nextIndex != index) {
+            this.abort(slot, "Missing chunk " + this.transfers[slot].nextIndex + ".");
+            return;
+        }
+
+        Transfer transfer = this.transfers[slot];
+        if ((flags & Fragmenter.FLAG_ABORT) != 0) {
+            this.abort(slot, "Aborted by sender.");
+            return;
+        }
+        transfer.nextIndex = index + 1;
+        transfer.lastSeen = System.nanoTime();
+        transfer.received += size - dataStart;
+        if (transfer.length != Fragmenter.UNKNOWN_LENGTH && transfer.received > transfer.length) {
+            this.abort(slot, "Longer than announced.");
+            return;
+        }
+        if (size > dataStart) {
+            ByteBuffer data = buffer.duplicate();
+            data.limit(size);
+            data.position(dataStart);
+            transfer.handler.onChunk(messageId, data);
+        }
+        if ((flags & Fragmenter.FLAG_LAST) != 0) {
+            if (transfer.length != Fragmenter.UNKNOWN_LENGTH && transfer.received != transfer.length) {
+                this.abort(slot, "Shorter than announced.");
+                return;
+            }
+            this.transfers[slot] = null;
+            transfer.handler.onEnd(messageId);
+        }
+    }
+
+    /**
+     * @param messageId Or -1 to find a free slot.
+     */
+    private int find(int messageId) {
+        for (int i = 0; i < this.transfers.length; i++) {
+            Transfer transfer = this.transfers[i];
+            if (messageId < 0 ? transfer == null : transfer != null && transfer.messageId == messageId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Pass over a chunk of a rejected message, forgetting the message once it's over.
+     */
+    private void skip(int slot, int flags) {
+        if ((flags & (Fragmenter.FLAG_LAST | Fragmenter.FLAG_ABORT)) != 0) {
+            this.transfers[slot] = null;
+        } else {
+            this.transfers[slot].lastSeen = System.nanoTime();
+        }
+    }
+
+    private void abort(int slot, String reason) {
+        Transfer transfer = this.transfers[slot];
+        this.transfers[slot] = null;
+        if (!transfer.rejected) {
+            transfer.handler.onAbort(transfer.messageId, reason);
+        }
+    }
+
+    private static class Transfer {
+        private int messageId;
+        private FragmentHandler handler;
+        private long length;
+        private long nextIndex = 0;
+        private long received = 0;
+        private long lastSeen = System.nanoTime();
+        private boolean rejected = false;
+    }
+
+    public interface FragmentHandler {
+        /**
+         * A new message has started.
+         * @param length The total length, or Fragmenter.UNKNOWN_LENGTH.
+         * @return False to ignore the rest of the message.
+         */
+        boolean onStart(int messageId, int streamId, long length);
+
+        /**
+         * The next piece of the message, between data's position and limit. It's only valid
+         * until this returns, in the same way as the parser's packet buffers.
+         */
+        void onChunk(int messageId, ByteBuffer data);
+
+        void onEnd(int messageId);
+
+        /**
+         * The message won't be finished. Chunks already delivered should be thrown away.
+         */
+        void onAbort(int messageId, String reason);
+    }
+}
@@ -0,0 +1,235 @@
+package uk.co.tstableford.rpc.lib.stream;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays back the bytes read in a CaptureConnector capture, so a StreamParser sees exactly
+ * what it saw on the original link.
+ *
+ * At ORIGINAL_SPEED each chunk becomes readable when as much time has passed since the
+ * first read as had passed in the capture. Other speeds scale that, and FULL_SPEED hands
+ * chunks over as fast as they're read. Reads block for at most MAX_WAIT_MILLIS waiting for
+ * the next chunk and then return NO_DATA, and ERROR_EXIT once the capture is used up.
+ *
+ * Chunks that were written are skipped, writes to this connector are thrown away.
+ */
+public class ReplayConnector implements BlockStreamConnector, Closeable {
+    public static final double ORIGINAL_SPEED = 1;
+    public static final double FULL_SPEED = Double.POSITIVE_INFINITY;
+    public static final long MAX_WAIT_MILLIS = 10;
+    private static final int WINDOW_SIZE = 1 << 24;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileLength;
+    private final double speed;
+    private final long startMillis;
+    private MappedByteBuffer window;
+    private long windowStart;
+    // Where the next chunk header is in the file.
+    private long next = CaptureConnector.FILE_HEADER_SIZE;
+    // The chunk being read, which starts at chunkOffset in window.
+    private int chunkOffset, chunkRemaining = 0;
+    private long chunkNanos;
+    private long replayStart = -1;
+    private long bytesRead = 0;
+    private boolean finished = false;
+
+    /**
+     * @param speed A multiple of the original rate, or FULL_SPEED.
+     */
+    public ReplayConnector(File file, double speed) throws IOException {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("Speed must be above 0.");
+        }
+        this.speed = speed;
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        this.fileLength = this.channel.size();
+        if (this.fileLength < CaptureConnector.FILE_HEADER_SIZE) {
+            this.close();
+            throw new IOException("Not a capture, too short.");
+        }
+        this.map(WINDOW_SIZE);
+        if (this.window.getInt(0) != CaptureConnector.MAGIC || this.window.getInt(4) != CaptureConnector.VERSION) {
+            this.close();
+            throw new IOException("Not a capture, or an unsupported version.");
+        }
+        this.startMillis = this.window.getLong(8);
+    }
+
+    /**
+     * The wall clock time the capture began, in milliseconds.
+     */
+    public long getStartMillis() {
+        return this.startMillis;
+    }
+
+    public synchronized long getBytesRead() {
+        return this.bytesRead;
+    }
+
+    /**
+     * True once every chunk has been read.
+     */
+    public synchronized boolean isFinished() {
+        return this.finished;
+    }
+
+    @Override
+    public synchronized int readData() {
+        int available = this.available();
+        if (available <= 0) {
+            return available;
+        }
+        int read = this.window.get(this.chunkOffset) & 0xff;
+        this.consume(1);
+        return read;
+    }
+
+    @Override
+    public synchronized int readData(byte[] buffer, int offset, int length) {
+        int available = this.available();
+        if (available <= 0) {
+            return available;
+        }
+        if (length <= 0) {
+            return StreamConnector.NO_DATA;
+        }
+        int read = Math.min(available, length);
+        ByteBuffer view = this.window.duplicate();
+        view.position(this.chunkOffset);
+        view.get(buffer, offset, read);
+        this.consume(read);
+        return read;
+    }
+
+    @Override
+    public synchronized int readData(ByteBuffer buffer) {
+        int available = this.available();
+        if (available <= 0) {
+            return available;
+        }
+        if (!buffer.hasRemaining()) {
+            return StreamConnector.NO_DATA;
+        }
+        int read = Math.min(available, buffer.remaining());
+        ByteBuffer view = this.window.duplicate();
+        view.position(this.chunkOffset);
+        view.limit(this.chunkOffset + read);
+        buffer.put(view);
+        this.consume(read);
+        return read;
+    }
+
+    @Override
+    public int writeData(byte[] data) {
+        return data.length;
+    }
+
+    @Override
+    public int writeData(byte[] data, int offset, int length) {
+        return length;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.window = null;
+        this.file.close();
+    }
+
+    /**
+     * How many bytes of the current chunk can be read now, moving on to the next read chunk
+     * and waiting for it to be due if needed.
+     * @return The bytes available, or NO_DATA or ERROR_EXIT.
+     */
+    private int available() {
+        if (this.chunkRemaining == 0 && !this.nextChunk()) {
+            this.finished = true;
+            return StreamConnector.ERROR_EXIT;
+        }
+        if (this.replayStart < 0) {
+            this.replayStart = System.nanoTime() - this.scaled(this.chunkNanos);
+        }
+        if (this.speed != FULL_SPEED) {
+            long wait = this.replayStart + this.scaled(this.chunkNanos) - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(Math.min(wait, MAX_WAIT_MILLIS * 1000000L));
+                if (this.replayStart + this.scaled(this.chunkNanos) > System.nanoTime()) {
+                    return StreamConnector.NO_DATA;
+                }
+            }
+        }
+        return this.chunkRemaining;
+    }
+
+    private long scaled(long nanos) {
+        return this.speed == FULL_SPEED ? 0 : (long) (nanos / this.speed);
+    }
+
+    private void consume(int count) {
+        this.chunkOffset += count;
+        this.chunkRemaining -= count;
+        this.bytesRead += count;
+    }
+
+    /**
+     * Find the next chunk that was read and map it in.
+     * @return False at the end of the capture.
+     */
+    private boolean nextChunk() {
+        while (this.next + CaptureConnector.CHUNK_HEADER_SIZE <= this.fileLength) {
+            if (!this.ensure(this.next, CaptureConnector.CHUNK_HEADER_SIZE)) {
+                return false;
+            }
+            int header = (int) (this.next - this.windowStart);
+            long nanos = this.window.getLong(header);
+            int direction = this.window.get(header + 8);
+            long length = this.window.getInt(header + 9) & 0xffffffffL;
+            long data = this.next + CaptureConnector.CHUNK_HEADER_SIZE;
+            if (direction == 0 || data + length > this.fileLength || length > Integer.MAX_VALUE - CaptureConnector.CHUNK_HEADER_SIZE) {
+                // The end of a capture that wasn't closed, or a damaged one.
+                return false;
+            }
+            this.next = data + length;
+            if (direction == CaptureConnector.READ && length > 0) {
+                if (!this.ensure(data, (int) length)) {
+                    return false;
+                }
+                this.chunkNanos = nanos;
+                this.chunkOffset = (int) (data - this.windowStart);
+                this.chunkRemaining = (int) length;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Make sure length bytes from position are in the window.
+     */
+    private boolean ensure(long position, int length) {
+        if (position >= this.windowStart && position + length <= this.windowStart + this.window.capacity()) {
+            return true;
+        }
+        try {
+            this.windowStart = position;
+            this.map(Math.max(length, WINDOW_SIZE));
+            return true;
+        } catch (IOException e) {
+            System.err.println("Replay failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void map(int size) throws IOException {
+        long length = Math.min(size, this.fileLength - this.windowStart);
+        this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, this.windowStart, length);
+    }
+}
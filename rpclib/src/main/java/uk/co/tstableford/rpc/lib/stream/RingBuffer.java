@@ -0,0 +1,272 @@
+package uk.co.tstableford.rpc.lib.stream;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single producer, single consumer byte ring in a direct ByteBuffer, for handing received
+ * bytes from an I/O thread to a parsing thread without locks and without the data ever
+ * being on the Java heap.
+ *
+ * The producer calls fill or write, usually from the thread started by startFilling. The
+ * consumer is normally StreamParser.parse(RingBuffer), which dispatches packets straight
+ * out of the ring. A packet that wraps past the end of the ring is made contiguous by copying
+ * just its wrapped tail into a slack area after the end, so it needs at most maxFrame bytes
+ * of slack. Each side only writes its own index, and publishes it with a lazy set.
+ *
+ * Waiting sides park with a timeout and are unparked when the other side moves, without
+ * a full fence, so a wake up can occasionally be missed and cost the rest of the timeout.
+ */
+public class RingBuffer {
+    private final ByteBuffer buffer;
+    // The producer's view, and the consumer's for handing out read only slices, copying
+    // out and filling the slack.
+    private final ByteBuffer writeView, readView, copyView, slackView;
+    private final int capacity, mask, maxFrame;
+    // Bytes are written at tail and read from head, both count up forever.
+    private final AtomicLong head = new AtomicLong(), tail = new AtomicLong();
+    // The producer's last look at head, only read again when the ring seems full.
+    private long cachedHead = 0;
+    private volatile Thread waitingConsumer, waitingProducer;
+    private volatile boolean closed = false;
+
+    /**
+     * @param capacity The size of the ring, rounded up to a power of two.
+     * @param maxFrame The largest packet that can be handed out in one piece.
+     */
+    public RingBuffer(int capacity, int maxFrame) {
+        if (capacity < 1 || capacity > (1 << 30) || maxFrame < 0) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30.");
+        }
+        this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.maxFrame = maxFrame;
+        this.buffer = ByteBuffer.allocateDirect(this.capacity + maxFrame);
+        this.writeView = this.buffer.duplicate();
+        this.readView = this.buffer.asReadOnlyBuffer();
+        this.copyView = this.buffer.duplicate();
+        this.slackView = this.buffer.duplicate();
+    }
+
+    public int capacity() {
+        return this.capacity;
+    }
+
+    public int getMaxFrame() {
+        return this.maxFrame;
+    }
+
+    /**
+     * Read once from connector into the free space of the ring. Producer only.
+     * @return The number of bytes read, 0 if the ring is full, or NO_DATA or ERROR_EXIT.
+     */
+    public int fill(BlockStreamConnector connector) {
+        long tail = this.tail.get();
+        int free = this.free(tail);
+        if (free == 0) {
+            return 0;
+        }
+        int index = (int) (tail & this.mask);
+        this.writeView.limit(index + Math.min(free, this.capacity - index));
+        this.writeView.position(index);
+        int read = connector.readData(this.writeView);
+        if (read > 0) {
+            this.publish(tail + read);
+        }
+        return read;
+    }
+
+    /**
+     * Copy as much of data as fits into the ring. Producer only.
+     * @return The number of bytes copied.
+     */
+    public int write(byte[] data, int offset, int length) {
+        long tail = this.tail.get();
+        int count = Math.min(length, this.free(tail));
+        if (count == 0) {
+            return 0;
+        }
+        int index = (int) (tail & this.mask);
+        int first = Math.min(count, this.capacity - index);
+        this.writeView.limit(this.capacity);
+        this.writeView.position(index);
+        this.writeView.put(data, offset, first);
+        if (first < count) {
+            this.writeView.position(0);
+            this.writeView.put(data, offset + first, count - first);
+        }
+        this.publish(tail + count);
+        return count;
+    }
+
+    /**
+     * Wait up to nanos for space to write into. Producer only.
+     * @return True if there is space.
+     */
+    public boolean awaitSpace(long nanos) {
+        if (this.free(this.tail.get()) > 0) {
+            return true;
+        }
+        this.waitingProducer = Thread.currentThread();
+        try {
+            this.cachedHead = this.head.get();
+            if (this.free(this.tail.get()) == 0) {
+                LockSupport.parkNanos(this, nanos);
+            }
+        } finally {
+            this.waitingProducer = null;
+        }
+        return this.free(this.tail.get()) > 0;
+    }
+
+    /**
+     * Start a daemon thread that fills the ring from connector until the connector returns
+     * ERROR_EXIT, the thread is interrupted or close is called, and then closes the ring.
+     */
+    public Thread startFilling(final BlockStreamConnector connector, String name) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!closed && !Thread.currentThread().isInterrupted()) {
+                    int read = fill(connector);
+                    if (read == StreamConnector.ERROR_EXIT) {
+                        break;
+                    } else if (read == 0) {
+                        awaitSpace(1000000);
+                    } else if (read < 0) {
+                        // Blocking connectors wait in readData, this is for ones that don't.
+                        LockSupport.parkNanos(50000);
+                    }
+                }
+                close();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Mark the end of the data. The consumer can still read what's in the ring.
+     */
+    public void close() {
+        this.closed = true;
+        Thread waiting = this.waitingConsumer;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * The index of the next byte to read. Consumer only.
+     */
+    public long readIndex() {
+        return this.head.get();
+    }
+
+    /**
+     * The number of bytes waiting to be read. Consumer only.
+     */
+    public int available() {
+        return (int) (this.tail.get() - this.head.get());
+    }
+
+    /**
+     * Wait up to nanos for something to read. Consumer only.
+     * @return True if there is something to read.
+     */
+    public boolean awaitData(long nanos) {
+        if (this.available() > 0) {
+            return true;
+        }
+        this.waitingConsumer = Thread.currentThread();
+        try {
+            if (this.available() == 0 && !this.closed) {
+                LockSupport.parkNanos(this, nanos);
+            }
+        } finally {
+            this.waitingConsumer = null;
+        }
+        return this.available() > 0;
+    }
+
+    /**
+     * The byte at index, which must be between readIndex() and readIndex() + available().
+     */
+    public byte get(long index) {
+        return this.buffer.get((int) (index & this.mask));
+    }
+
+    /**
+     * Copy length bytes from index into out. Consumer only.
+     */
+    public void get(long index, byte[] out, int offset, int length) {
+        int start = (int) (index & this.mask);
+        int first = Math.min(length, this.capacity - start);
+        ByteBuffer view = this.copyView;
+        view.limit(start + first);
+        view.position(start);
+        view.get(out, offset, first);
+        if (first < length) {
+            view.limit(length - first);
+            view.position(0);
+            view.get(out, offset + first, length - first);
+        }
+    }
+
+    /**
+     * A read only buffer over length bytes from index with position 0 and limit length,
+     * valid until the bytes are released. A range that wraps is made contiguous by copying
+     * the wrapped part into the slack, so length must be no more than getMaxFrame() unless
+     * the range doesn't wrap. Consumer only.
+     */
+    public ByteBuffer view(long index, int length) {
+        int start = (int) (index & this.mask);
+        int wrapped = start + length - this.capacity;
+        if (wrapped > 0) {
+            if (wrapped > this.maxFrame) {
+                throw new IllegalArgumentException("Range wraps by more than the slack.");
+            }
+            ByteBuffer source = this.copyView;
+            source.limit(wrapped);
+            source.position(0);
+            this.slackView.clear();
+            this.slackView.position(this.capacity);
+            this.slackView.put(source);
+        }
+        this.readView.limit(start + length);
+        this.readView.position(start);
+        return this.readView.slice();
+    }
+
+    /**
+     * Hand count bytes back to the producer. Consumer only.
+     */
+    public void release(int count) {
+        this.head.lazySet(this.head.get() + count);
+        Thread waiting = this.waitingProducer;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+
+    private int free(long tail) {
+        if (tail - this.cachedHead >= this.capacity) {
+            this.cachedHead = this.head.get();
+        }
+        return this.capacity - (int) (tail - this.cachedHead);
+    }
+
+    private void publish(long tail) {
+        this.tail.lazySet(tail);
+        Thread waiting = this.waitingConsumer;
+        if (waiting != null) {
+            LockSupport.unpark(waiting);
+        }
+    }
+}
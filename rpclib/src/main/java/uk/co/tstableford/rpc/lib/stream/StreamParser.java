@@ -1,175 +1,422 @@
 package uk.co.tstableford.rpc.lib.stream;
 
-import uk.co.tstableford.rpc.lib.object.LObject;
-import uk.co.tstableford.rpc.lib.object.LObjects;
+import uk.co.tstableford.rpc.lib.metrics.MetricsListener;
 import uk.co.tstableford.rpc.lib.object.LType;
-import uk.co.tstableford.rpc.lib.serializer.LSerializer;
 
 import java.nio.ByteBuffer;
-import java.util.HashMap;
 
+/**
+ * Splits a byte stream into packets. Each packet is preceded by a header of three
+ * big endian UINT16s: the packet type, the payload size and a CRC16 of the first two.
+ */
 public class StreamParser {
-    private static final int HEADER_SIZE = LType.UINT16.getSize() * 3;
+    public static final int HEADER_SIZE = LType.UINT16.getSize() * 3;
     private StreamConnector connector;
     private State state;
-    private byte[] headerBytes = new byte[HEADER_SIZE];
-    private Header header = null;
+    // Circular window over the last HEADER_SIZE bytes seen while looking for a header.
+    // windowStart is the index of the oldest byte.
+    private byte[] window = new byte[HEADER_SIZE];
+    private int windowStart = 0;
+    private int headerType, headerSize;
     private byte[] buffer;
     private int bufferIndex;
-    private HashMap<Integer, StreamHandler> handlers;
+    private byte[] readBuffer = null;
+    private DispatchTable<StreamHandler> handlers;
+    private DeliveryMode deliveryMode = DeliveryMode.COPY;
+    private ByteBuffer view = null;
+    // A view over the last array passed to dispatch(), from the offset it was given.
+    private ByteBuffer foreignView = null;
+    private byte[] foreignArray = null;
+    private int foreignOffset;
+    private BufferPool bufferPool = null;
+    private MetricsListener metrics = null;
+    // Bytes scanned since the last packet ended, and whether there has been a packet yet.
+    private int scanned = 0;
+    private boolean synced = false;
 
     private enum State {
         IDLE,
         PARSING;
     }
 
+    /**
+     * How packets are handed to a StreamHandler.
+     */
+    public enum DeliveryMode {
+        /**
+         * A newly allocated copy of the payload. The handler may keep it.
+         */
+        COPY,
+        /**
+         * A read only view of the parser's own buffer with position 0 and limit size.
+         * The same view object is reused and its contents are only valid until onPacket returns.
+         * Handlers that need the data later must copy it.
+         */
+        VIEW,
+        /**
+         * A copy in a buffer leased from the parser's BufferPool with position 0 and limit size.
+         * The handler owns it until it calls getBufferPool().release(buffer).
+         * Buffers that aren't released are left to the garbage collector.
+         */
+        POOLED;
+    }
+
     public StreamParser(StreamConnector connector, byte buffer[]) {
         this.connector = connector;
         this.state = State.IDLE;
         this.buffer = buffer;
-        this.handlers = new HashMap<>();
+        this.handlers = new DispatchTable<>();
+    }
+
+    /**
+     * Create a parser that reads up to blockSize bytes per call to parse() when the
+     * connector is a BlockStreamConnector. Several packets may be dispatched per call.
+     * Plain StreamConnectors are still read one byte at a time.
+     */
+    public StreamParser(StreamConnector connector, byte buffer[], int blockSize) {
+        this(connector, buffer);
+        this.readBuffer = new byte[blockSize];
+    }
+
+    public void setDeliveryMode(DeliveryMode mode) {
+        if (mode == DeliveryMode.POOLED && this.bufferPool == null) {
+            this.bufferPool = new BufferPool(this.buffer.length);
+        }
+        this.deliveryMode = mode;
+    }
+
+    public DeliveryMode getDeliveryMode() {
+        return this.deliveryMode;
+    }
+
+    /**
+     * Use the given pool for packet buffers. This also switches to POOLED delivery.
+     */
+    public void setBufferPool(BufferPool pool) {
+        this.bufferPool = pool;
+        this.deliveryMode = DeliveryMode.POOLED;
+    }
+
+    public BufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+
+    /**
+     * Report frames, bytes read, resync and dropped headers to metrics. Pass null, the
+     * default, to report nothing.
+     */
+    public void setMetrics(MetricsListener metrics) {
+        this.metrics = metrics;
     }
 
+    public MetricsListener getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Handlers can be added and removed while another thread is parsing.
+     */
     public void addHandler(int type, StreamHandler handler) {
         this.handlers.put(type, handler);
     }
 
     public void removeHandler(int type) {
-        if (this.handlers.containsKey(type)) {
-            this.handlers.remove(type);
-        }
+        this.handlers.remove(type);
     }
 
+    /**
+     * Read from the connector and run the parser.
+     * @return The byte read, or in block mode the number of bytes read. Negative values are
+     * the StreamConnector NO_DATA/ERROR_EXIT codes.
+     */
     public int parse() {
+        if (this.readBuffer != null && this.connector instanceof BlockStreamConnector) {
+            int read = ((BlockStreamConnector) this.connector).readData(this.readBuffer, 0, this.readBuffer.length);
+            if (read > 0) {
+                this.parse(this.readBuffer, 0, read);
+            }
+            return read;
+        }
+
         int readByte = connector.readData();
         if (readByte >= 0) {
-            switch (state) {
-                case IDLE:
-                {
-                    for (int i = 0; i < HEADER_SIZE - 1; i++) {
-                        headerBytes[i] = headerBytes[i + 1];
-                    }
-                    headerBytes[HEADER_SIZE - 1] = (byte) (readByte & 0xff);
+            if (this.metrics != null) {
+                this.metrics.onBytesRead(1);
+            }
+            if (this.state == State.PARSING) {
+                this.buffer[this.bufferIndex++] = (byte) (readByte & 0xff);
+                if (this.bufferIndex == this.headerSize) {
+                    this.dispatch();
+                }
+            } else {
+                this.scan((byte) (readByte & 0xff));
+            }
+        }
 
-                    try {
-                        this.header = new Header(headerBytes);
-                    } catch (LSerializer.InvalidTypeException e) {
-                        this.header = null;
-                        break;
-                    }
-                    this.bufferIndex = 0;
-                    this.state = State.PARSING;
-                    break;
+        return readByte;
+    }
+
+    /**
+     * Run the parser over a chunk of data that has already been read.
+     * @return The number of packets dispatched to handlers.
+     */
+    public int parse(byte data[], int offset, int length) {
+        if (this.metrics != null) {
+            this.metrics.onBytesRead(length);
+        }
+        int packets = 0;
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            if (this.state == State.PARSING) {
+                int count = Math.min(this.headerSize - this.bufferIndex, end - i);
+                System.arraycopy(data, i, this.buffer, this.bufferIndex, count);
+                this.bufferIndex += count;
+                i += count;
+                if (this.bufferIndex == this.headerSize && this.dispatch()) {
+                    packets++;
                 }
-                case PARSING:
-                {
-                    if (this.header.getSize() > this.buffer.length) {
-                        this.state = State.IDLE;
+            } else if (this.scan(data[i++])) {
+                packets++;
+            }
+        }
+        return packets;
+    }
+
+    /**
+     * Run the parser over whatever is waiting in a ring filled by another thread, and hand
+     * the bytes back to it. Packets that fit in the ring and its slack are dispatched from the
+     * ring itself, waiting in it until all their bytes have arrived, so in VIEW mode handlers
+     * see the off heap data directly. Larger packets are copied into the parser's buffer.
+     * @return The number of packets dispatched to handlers.
+     */
+    public int parse(RingBuffer ring) {
+        long start = ring.readIndex();
+        long end = start + ring.available();
+        long i = start;
+        int packets = 0;
+        while (i < end) {
+            if (this.state == State.PARSING) {
+                if (this.bufferIndex == 0 && this.headerSize <= ring.capacity() && this.headerSize <= ring.getMaxFrame()) {
+                    if (end - i < this.headerSize) {
                         break;
                     }
-                    this.buffer[this.bufferIndex] = (byte) (readByte & 0xff);
-                    this.bufferIndex++;
-
-                    if ((this.bufferIndex + 1) > this.header.getSize()) {
-                        if (this.handlers.containsKey(this.header.getType())) {
-                            ByteBuffer buffer = ByteBuffer.allocate(this.header.getSize());
-                            buffer.put(this.buffer, 0, this.header.getSize());
-                            this.handlers.get(this.header.getType()).onPacket(this.header.getType(), this.header.getSize(), buffer);
-                        }
-                        this.state = State.IDLE;
+                    this.state = State.IDLE;
+                    if (this.metrics != null) {
+                        this.metrics.onFrame(this.headerType, this.headerSize);
+                    }
+                    if (this.dispatch(this.headerType, ring.view(i, this.headerSize), this.headerSize)) {
+                        packets++;
+                    }
+                    i += this.headerSize;
+                } else {
+                    int count = (int) Math.min(this.headerSize - this.bufferIndex, end - i);
+                    ring.get(i, this.buffer, this.bufferIndex, count);
+                    this.bufferIndex += count;
+                    i += count;
+                    if (this.bufferIndex == this.headerSize && this.dispatch()) {
+                        packets++;
                     }
                 }
+            } else if (this.scan(ring.get(i++))) {
+                packets++;
             }
         }
-
-        return readByte;
+        if (i > start) {
+            if (this.metrics != null) {
+                this.metrics.onBytesRead((int) (i - start));
+            }
+            ring.release((int) (i - start));
+        }
+        return packets;
     }
 
-    public interface StreamHandler {
-        void onPacket(int type, int size, ByteBuffer buffer);
-    }
+    /**
+     * Push a byte into the header window and check whether the window now holds a valid header.
+     * Moves to PARSING when it does, unless the payload is empty or too large for the buffer.
+     * @return True if an empty packet was dispatched.
+     */
+    private boolean scan(byte readByte) {
+        this.window[this.windowStart] = readByte;
+        this.windowStart = (this.windowStart + 1) % HEADER_SIZE;
+        this.scanned++;
 
-    public static byte[] WrapBuffer(int type, ByteBuffer buffer) {
-        Header header = new Header(type, buffer.capacity());
-        ByteBuffer outBuffer = ByteBuffer.allocate(header.getBytes().length + buffer.capacity());
-        outBuffer.put(header.getBytes());
-        outBuffer.put(buffer.array());
-        return outBuffer.array();
-    }
-
-    private static class Header {
-        private int type, size, crc;
-        public Header(int type, int size) {
-            this.type = type;
-            this.size = size;
-            try {
-                this.crc = CRC16.CRC(this.getTopBytes());
-            } catch (LSerializer.InvalidTypeException e) {
-                // As we know the input data this should never throw an exception.
-                // If it has then it's cause for a fatal shutdown.
-                throw new RuntimeException(e);
-            }
+        int type = (this.windowByte(0) << 8) | this.windowByte(1);
+        if (type == 0) {
+            return this.invalidHeader();
+        }
+        int crc = CRC16.INITIAL;
+        for (int i = 0; i < 4; i++) {
+            crc = CRC16.update(crc, this.window[(this.windowStart + i) % HEADER_SIZE]);
+        }
+        if (crc != ((this.windowByte(4) << 8) | this.windowByte(5))) {
+            return this.invalidHeader();
         }
 
-        public int getType() {
-            return this.type;
+        int size = (this.windowByte(2) << 8) | this.windowByte(3);
+        if (size > this.buffer.length) {
+            if (this.metrics != null) {
+                this.metrics.onOversize(type, size);
+            }
+            return false;
         }
+        if (this.metrics != null && this.scanned > HEADER_SIZE) {
+            this.metrics.onResyncSkipped(this.scanned - HEADER_SIZE);
+        }
+        this.scanned = 0;
+        this.synced = true;
+        this.headerType = type;
+        this.headerSize = size;
+        this.bufferIndex = 0;
+        this.state = State.PARSING;
+        if (size == 0) {
+            return this.dispatch();
+        }
+        return false;
+    }
 
-        public int getSize() {
-            return this.size;
+    /**
+     * Only the window that lines up with the end of the last packet counts as a CRC failure,
+     * the windows after it are part of the resync. Nothing is counted before the first packet
+     * as the stream may have been joined part way through one.
+     */
+    private boolean invalidHeader() {
+        if (this.metrics != null && this.synced && this.scanned == HEADER_SIZE) {
+            this.metrics.onCrcFailure();
         }
+        return false;
+    }
 
-        public Header(byte bytes[]) throws LSerializer.InvalidTypeException {
-            if (bytes.length < 6) {
-                throw new LSerializer.InvalidTypeException("Input data length too short.");
-            }
-            ByteBuffer buffer = ByteBuffer.allocate(LType.UINT16.getSize() * 3);
-            buffer.put(bytes, 0, LType.UINT16.getSize() * 3);
+    private int windowByte(int index) {
+        return this.window[(this.windowStart + index) % HEADER_SIZE] & 0xff;
+    }
 
-            int[] headerInts = new int[3];
-            for (int i = 0; i < headerInts.length; i++) {
-                headerInts[i] = (int) LObjects.Int(LType.UINT16, buffer, LType.UINT16.getSize() * i).getData();
-            }
-            this.type = (int) LObjects.Int(LType.UINT16, buffer, LType.UINT16.getSize() * 0).getData();
-            this.size = (int) LObjects.Int(LType.UINT16, buffer, LType.UINT16.getSize() * 1).getData();
-            this.crc = (int) LObjects.Int(LType.UINT16, buffer, LType.UINT16.getSize() * 2).getData();
+    private boolean dispatch() {
+        this.state = State.IDLE;
+        if (this.metrics != null) {
+            this.metrics.onFrame(this.headerType, this.headerSize);
+        }
+        return this.dispatch(this.headerType, this.buffer, 0, this.headerSize);
+    }
 
-            if (this.type == 0) {
-                throw new LSerializer.InvalidTypeException("Invalid type 0.");
-            }
+    /**
+     * Hand a packet that didn't come straight off the stream, such as one that was sent
+     * compressed, to the handler for its type. It's delivered according to the DeliveryMode
+     * just like packets read by the parser, so in VIEW mode data must stay untouched until
+     * this returns. It isn't reported to the metrics as a frame, the packet it came in was.
+     * @return True if a handler was found.
+     */
+    public boolean dispatch(int type, byte data[], int offset, int size) {
+        StreamHandler handler = this.handlers.get(type);
+        if (handler != null) {
+            handler.onPacket(type, size, this.packetBuffer(data, offset, size));
+            return true;
+        }
+        return false;
+    }
 
-            if (this.crc != CRC16.CRC(this.getTopBytes())) {
-                throw new LSerializer.InvalidTypeException("CRC's do not match.");
+    /**
+     * Hand a packet held in a ByteBuffer, from index 0 to size, to the handler for its type.
+     * In VIEW mode the handler gets a read only view of data, which is data itself when that
+     * is already read only with position 0 and limit size.
+     * @return True if a handler was found.
+     */
+    public boolean dispatch(int type, ByteBuffer data, int size) {
+        StreamHandler handler = this.handlers.get(type);
+        if (handler == null) {
+            return false;
+        }
+        ByteBuffer buffer;
+        if (this.deliveryMode == DeliveryMode.VIEW) {
+            ByteBuffer view = data;
+            if (!data.isReadOnly() || data.position() != 0 || data.limit() != size) {
+                view = data.asReadOnlyBuffer();
+                view.clear();
+                view.limit(size);
             }
+            handler.onPacket(type, size, view);
+            return true;
+        }
+        ByteBuffer source = data.duplicate();
+        source.clear();
+        source.limit(size);
+        switch (this.deliveryMode) {
+            case POOLED:
+                buffer = this.bufferPool.acquire(size);
+                buffer.put(source);
+                buffer.flip();
+                break;
+            default:
+                buffer = ByteBuffer.allocate(size);
+                buffer.put(source);
         }
+        handler.onPacket(type, size, buffer);
+        return true;
+    }
 
-        public byte[] getBytes() {
-            ByteBuffer buffer = ByteBuffer.allocate(LType.UINT16.getSize() * 3);
-            try {
-                buffer.put(this.getTopBytes(), 0, LType.UINT16.getSize() * 2);
-                LObject crc = LObjects.Int(LType.UINT16, this.crc);
-                buffer.put(crc.getBytes().array(), 0, crc.getSize());
-            } catch (LSerializer.InvalidTypeException e) {
-                // As we know the input data this should never throw an exception.
-                // If it has then it's cause for a fatal shutdown.
-                throw new RuntimeException(e);
+    private ByteBuffer packetBuffer(byte data[], int offset, int size) {
+        switch (this.deliveryMode) {
+            case VIEW:
+            {
+                ByteBuffer view;
+                if (data == this.buffer && offset == 0) {
+                    if (this.view == null) {
+                        this.view = ByteBuffer.wrap(this.buffer).asReadOnlyBuffer();
+                    }
+                    view = this.view;
+                } else {
+                    if (data != this.foreignArray || offset != this.foreignOffset) {
+                        this.foreignView = ByteBuffer.wrap(data, offset, data.length - offset).slice().asReadOnlyBuffer();
+                        this.foreignArray = data;
+                        this.foreignOffset = offset;
+                    }
+                    view = this.foreignView;
+                }
+                view.clear();
+                view.limit(size);
+                return view;
+            }
+            case POOLED:
+            {
+                ByteBuffer buffer = this.bufferPool.acquire(size);
+                buffer.put(data, offset, size);
+                buffer.flip();
+                return buffer;
+            }
+            default:
+            {
+                ByteBuffer buffer = ByteBuffer.allocate(size);
+                buffer.put(data, offset, size);
+                return buffer;
             }
-
-            return buffer.array();
         }
+    }
 
-        public boolean equals(Header other) {
-            return this.crc == other.crc;
-        }
+    public interface StreamHandler {
+        /**
+         * Called on the parsing thread for each packet of a registered type.
+         * How long buffer stays valid depends on the parser's DeliveryMode.
+         */
+        void onPacket(int type, int size, ByteBuffer buffer);
+    }
 
-        private byte[] getTopBytes() throws LSerializer.InvalidTypeException {
-            LObject type = LObjects.Int(LType.UINT16, this.type);
-            LObject size = LObjects.Int(LType.UINT16, this.size);
-            ByteBuffer buffer = ByteBuffer.allocate(type.getSize() + size.getSize());
-            buffer.put(type.getBytes().array(), 0, type.getSize());
-            buffer.put(size.getBytes().array(), 0, size.getSize());
+    public static byte[] WrapBuffer(int type, ByteBuffer buffer) {
+        byte out[] = new byte[HEADER_SIZE + buffer.capacity()];
+        WriteHeader(out, 0, type, buffer.capacity());
+        System.arraycopy(buffer.array(), 0, out, HEADER_SIZE, buffer.capacity());
+        return out;
+    }
 
-            return buffer.array();
-        }
+    /**
+     * Write a packet header for a payload of size bytes into out at offset.
+     */
+    public static void WriteHeader(byte out[], int offset, int type, int size) {
+        out[offset] = (byte) (type >> 8);
+        out[offset + 1] = (byte) type;
+        out[offset + 2] = (byte) (size >> 8);
+        out[offset + 3] = (byte) size;
+        int crc = CRC16.update(CRC16.INITIAL, out, offset, 4);
+        out[offset + 4] = (byte) (crc >> 8);
+        out[offset + 5] = (byte) crc;
     }
 }
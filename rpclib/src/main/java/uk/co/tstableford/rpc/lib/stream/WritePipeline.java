@@ -0,0 +1,273 @@
+package uk.co.tstableford.rpc.lib.stream;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps a connector so that writes are queued and sent by a single writer thread.
+ *
+ * writeData copies the data into a pooled buffer and returns straight away, so any number
+ * of threads can write without waiting on the link or each other. The writer thread joins
+ * whatever frames are waiting into one buffer and sends them with a single write. Frames the
+ * wrapped connector fails to write, or throws on, are counted by getLost and the writer thread
+ * carries on. Reads go straight to the wrapped connector.
+ */
+public class WritePipeline implements BlockStreamConnector {
+    /**
+     * What writeData does when the queue is full.
+     */
+    public enum Backpressure {
+        /**
+         * Wait for space.
+         */
+        BLOCK,
+        /**
+         * Drop the new frame and return 0.
+         */
+        FAIL,
+        /**
+         * Drop the oldest queued frame to make space.
+         */
+        DROP_OLDEST;
+    }
+
+    private final StreamConnector connector;
+    private final ArrayBlockingQueue<ByteBuffer> queue;
+    private final Backpressure backpressure;
+    private final BufferPool pool;
+    private final byte[] batch;
+    private final Thread thread;
+    private final Object flushLock = new Object();
+    // Frames accepted and frames finished with, written or dropped. Guarded by flushLock.
+    private long queued = 0, done = 0;
+    private volatile boolean running = true;
+    private volatile long dropped = 0, lost = 0;
+
+    /**
+     * @param queueSize The most frames that can wait to be written.
+     * @param batchSize The most bytes joined into one write. Larger frames are written on their own.
+     */
+    public WritePipeline(StreamConnector connector, int queueSize, int batchSize, Backpressure backpressure) {
+        this.connector = connector;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.backpressure = backpressure;
+        this.pool = new BufferPool(batchSize);
+        this.batch = new byte[batchSize];
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "WritePipeline");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public WritePipeline(StreamConnector connector) {
+        this(connector, 256, 4096, Backpressure.BLOCK);
+    }
+
+    @Override
+    public int writeData(byte[] data) {
+        return this.writeData(data, 0, data.length);
+    }
+
+    /**
+     * Queue a frame to be written.
+     * @return length, or 0 if the frame was dropped because the queue was full or the
+     * pipeline is closed.
+     */
+    @Override
+    public int writeData(byte[] data, int offset, int length) {
+        if (!this.running) {
+            return 0;
+        }
+        ByteBuffer frame = this.pool.acquire(length);
+        frame.put(data, offset, length);
+        frame.flip();
+
+        synchronized (this.flushLock) {
+            this.queued++;
+        }
+        try {
+            switch (this.backpressure) {
+                case BLOCK:
+                    this.queue.put(frame);
+                    break;
+                case FAIL:
+                    if (!this.queue.offer(frame)) {
+                        this.drop(frame);
+                        return 0;
+                    }
+                    break;
+                default:
+                    while (!this.queue.offer(frame)) {
+                        ByteBuffer oldest = this.queue.poll();
+                        if (oldest != null) {
+                            this.drop(oldest);
+                        }
+                    }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.drop(frame);
+            return 0;
+        }
+        if (!this.running) {
+            // Closed while queueing, nothing will write it now.
+            this.dropQueued();
+            return 0;
+        }
+        return length;
+    }
+
+    /**
+     * Wait until every frame queued before this call has been written or dropped.
+     * @return False if the timeout passed first.
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        return this.flushUntil(System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /**
+     * Write out what is queued, waiting up to timeout, and stop the writer thread. Frames
+     * still queued after that are dropped.
+     */
+    public void close(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        this.flushUntil(deadline);
+        this.running = false;
+        this.thread.interrupt();
+        long remaining = deadline - System.nanoTime();
+        if (remaining > 0) {
+            TimeUnit.NANOSECONDS.timedJoin(this.thread, remaining);
+        }
+        this.dropQueued();
+    }
+
+    private boolean flushUntil(long deadline) throws InterruptedException {
+        synchronized (this.flushLock) {
+            long target = this.queued;
+            while (this.done < target) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this.flushLock, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The number of frames dropped because the queue was full or the pipeline was closed.
+     */
+    public long getDropped() {
+        return this.dropped;
+    }
+
+    /**
+     * The number of frames the wrapped connector failed to write.
+     */
+    public long getLost() {
+        return this.lost;
+    }
+
+    public int getQueueDepth() {
+        return this.queue.size();
+    }
+
+    private void dropQueued() {
+        ByteBuffer frame;
+        while ((frame = this.queue.poll()) != null) {
+            this.drop(frame);
+        }
+    }
+
+    private void drop(ByteBuffer frame) {
+        this.pool.release(frame);
+        synchronized (this.flushLock) {
+            this.dropped++;
+            this.done++;
+            this.flushLock.notifyAll();
+        }
+    }
+
+    private void writeLoop() {
+        ByteBuffer next = null;
+        while (this.running) {
+            try {
+                if (next == null) {
+                    next = this.queue.take();
+                }
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            if (next.remaining() > this.batch.length) {
+                // Too big to join with anything else.
+                boolean written = this.write(next.array(), next.arrayOffset() + next.position(), next.remaining());
+                this.finished(next, 1, written);
+                next = null;
+                continue;
+            }
+
+            int length = 0;
+            int frames = 0;
+            while (next != null && length + next.remaining() <= this.batch.length) {
+                int size = next.remaining();
+                next.get(this.batch, length, size);
+                length += size;
+                frames++;
+                this.pool.release(next);
+                next = this.queue.poll();
+            }
+            boolean written = this.write(this.batch, 0, length);
+            this.finished(null, frames, written);
+        }
+        if (next != null) {
+            this.drop(next);
+        }
+    }
+
+    /**
+     * @return False if the connector didn't take all of it or threw.
+     */
+    private boolean write(byte[] data, int offset, int length) {
+        try {
+            return BlockStreamConnectors.writeData(this.connector, data, offset, length) == length;
+        } catch (RuntimeException e) {
+            System.err.println("WritePipeline failed to write: " + e);
+            return false;
+        }
+    }
+
+    private void finished(ByteBuffer frame, int frames, boolean written) {
+        if (frame != null) {
+            this.pool.release(frame);
+        }
+        synchronized (this.flushLock) {
+            if (!written) {
+                this.lost += frames;
+            }
+            this.done += frames;
+            this.flushLock.notifyAll();
+        }
+    }
+
+    @Override
+    public int readData() {
+        return this.connector.readData();
+    }
+
+    @Override
+    public int readData(byte[] buffer, int offset, int length) {
+        return BlockStreamConnectors.readData(this.connector, buffer, offset, length);
+    }
+
+    @Override
+    public int readData(ByteBuffer buffer) {
+        return BlockStreamConnectors.readData(this.connector, buffer);
+    }
+}
@@ -42,37 +42,33 @@ public class SerialConnectorPing {
 
         SerialConnector serialConnector = new SerialConnector(serialPort);
         this.rpc = new RPC(serialConnector);
-        this.rpc.addHandler(new RPC.Handler() {
+        this.rpc.registerFunction(PING_FID, new RPC.Handler() {
             @Override
             public boolean onRPC(int functionId, LSerializer object) {
-                switch (functionId) {
-                    case PING_FID:
-                    {
-                        LSerializer response = new LSerializer(LObjects.Int(LType.INT64, System.currentTimeMillis()));
-                        System.out.println("Received ping");
-                        System.out.println(object.toString());
-                        try {
-                            rpc.call(PONG_FID, response);
-                        } catch (LSerializer.InvalidTypeException e) {
-                            e.printStackTrace();
-                        }
-                        return true;
-                    }
-                    case PONG_FID:
-                    {
-                        long time = System.currentTimeMillis();
-                        System.out.println("Local time is " + time);
-                        System.out.println("Time from device is " + object.intAt(0));
-                        return true;
-                    }
-                    default:
-                        return false;
+                LSerializer response = new LSerializer(LObjects.Int(LType.INT64, System.currentTimeMillis()));
+                System.out.println("Received ping");
+                System.out.println(object.toString());
+                try {
+                    rpc.call(PONG_FID, response);
+                } catch (LSerializer.InvalidTypeException e) {
+                    e.printStackTrace();
                 }
+                return true;
+            }
+        });
+        this.rpc.registerFunction(PONG_FID, new RPC.Handler() {
+            @Override
+            public boolean onRPC(int functionId, LSerializer object) {
+                long time = System.currentTimeMillis();
+                System.out.println("Local time is " + time);
+                System.out.println("Time from device is " + object.intAt(0));
+                return true;
             }
         });
 
-        this.parser = new StreamParser(serialConnector, new byte[1024]);
-        this.parser.addHandler(RPC.RPC_PACKET_ID, rpc);
+        this.parser = new StreamParser(serialConnector, new byte[1024], 256);
+        this.parser.setDeliveryMode(StreamParser.DeliveryMode.VIEW);
+        this.rpc.attach(this.parser);
     }
 
     private void start() {
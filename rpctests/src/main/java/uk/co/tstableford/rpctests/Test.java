@@ -1,13 +1,57 @@
 package uk.co.tstableford.rpctests;
 
+import uk.co.tstableford.rpc.connectors.nio.NioSession;
+import uk.co.tstableford.rpc.connectors.nio.NioTransport;
+import uk.co.tstableford.rpc.connectors.nio.SessionHandler;
+import uk.co.tstableford.rpc.lib.BatchingConnector;
+import uk.co.tstableford.rpc.lib.CallQueue;
+import uk.co.tstableford.rpc.lib.HandlerExecutors;
+import uk.co.tstableford.rpc.lib.metrics.Metrics;
 import uk.co.tstableford.rpc.lib.RPC;
+import uk.co.tstableford.rpc.lib.WriteScheduler;
 import uk.co.tstableford.rpc.lib.object.LObjects;
 import uk.co.tstableford.rpc.lib.object.LType;
+import uk.co.tstableford.rpc.lib.serializer.LReader;
 import uk.co.tstableford.rpc.lib.serializer.LSerializer;
+import uk.co.tstableford.rpc.lib.serializer.LWriter;
+import uk.co.tstableford.rpc.lib.serializer.MessageTemplate;
+import uk.co.tstableford.rpc.lib.stream.BlockStreamConnector;
+import uk.co.tstableford.rpc.lib.stream.BufferPool;
+import uk.co.tstableford.rpc.lib.stream.CRC16;
+import uk.co.tstableford.rpc.lib.stream.CaptureConnector;
+import uk.co.tstableford.rpc.lib.stream.CompressingConnector;
+import uk.co.tstableford.rpc.lib.stream.FrameDecompressor;
+import uk.co.tstableford.rpc.lib.stream.LZCodec;
+import uk.co.tstableford.rpc.lib.stream.PausableConnector;
+import uk.co.tstableford.rpc.lib.stream.Fragmenter;
+import uk.co.tstableford.rpc.lib.stream.Reassembler;
+import uk.co.tstableford.rpc.lib.stream.ReplayConnector;
+import uk.co.tstableford.rpc.lib.stream.RingBuffer;
 import uk.co.tstableford.rpc.lib.stream.StreamConnector;
 import uk.co.tstableford.rpc.lib.stream.StreamParser;
+import uk.co.tstableford.rpc.lib.stream.WritePipeline;
+import uk.co.tstableford.rpctests.sim.SimulatedLink;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 public class Test {
     public static void main(String args[]) {
@@ -16,6 +60,74 @@ public class Test {
 
         testStreamParser();
         System.out.println();
+
+        testBlockStreamParser();
+        System.out.println();
+
+        testCRC16();
+        System.out.println();
+
+        testReaderHandler();
+        System.out.println();
+
+        testWriter();
+        System.out.println();
+
+        testUnserializedFields();
+        System.out.println();
+
+        testCallAsync();
+        System.out.println();
+
+        testWritePipeline();
+        System.out.println();
+
+        testOrderedLanes();
+        System.out.println();
+
+        testNioTransport();
+        System.out.println();
+
+        testSimulatedLink();
+        System.out.println();
+
+        testMetrics();
+        System.out.println();
+
+        testFragmentation();
+        System.out.println();
+
+        testVarInt();
+        System.out.println();
+
+        testCompression();
+        System.out.println();
+
+        testGeneratedService();
+        System.out.println();
+
+        testMessageTemplate();
+        System.out.println();
+
+        testBatching();
+        System.out.println();
+
+        testWriteScheduler();
+        System.out.println();
+
+        testCaptureReplay();
+        System.out.println();
+
+        testRingBuffer();
+        System.out.println();
+
+        testCallQueue();
+        System.out.println();
+
+        testBufferPool();
+        System.out.println();
+        testDeliveryModes();
+        System.out.println();
     }
 
     public static void testBasicObject() {
@@ -35,8 +147,9 @@ public class Test {
         }
     }
 
+    private static final byte testCallBuffer[] = { 0x0, 0x8, 0x0, 0x19, (byte) 0xae, 0x79, 0x5, 0x5, 0x2, 0x3, 0x4, 0x1, 0xc, 0x0, 0xa, (byte) 0xf6, 0xa, 0x1, 0x40, 0x68, 0x65, 0x6c, 0x6c, 0x6f, 0x20, 0x77, 0x6f, 0x72, 0x6c, 0x64, 0x0 };
+
     public static void testStreamParser() {
-        final byte testCallBuffer[] = { 0x0, 0x8, 0x0, 0x19, (byte) 0xae, 0x79, 0x5, 0x5, 0x2, 0x3, 0x4, 0x1, 0xc, 0x0, 0xa, (byte) 0xf6, 0xa, 0x1, 0x40, 0x68, 0x65, 0x6c, 0x6c, 0x6f, 0x20, 0x77, 0x6f, 0x72, 0x6c, 0x64, 0x0 };
 
         StreamConnector connector = new StreamConnector() {
             int testCallIndex = 0;
@@ -79,4 +192,1621 @@ public class Test {
 
         while (parser.parse() >= 0);
     }
+
+    public static void testBlockStreamParser() {
+        // Three copies of the test call with some garbage in between.
+        final ByteBuffer stream = ByteBuffer.allocate(testCallBuffer.length * 3 + 4);
+        stream.put(testCallBuffer).put((byte) 0x55).put((byte) 0x08).put(testCallBuffer);
+        stream.put((byte) 0x00).put((byte) 0xff).put(testCallBuffer);
+        stream.flip();
+
+        BlockStreamConnector connector = new BlockStreamConnector() {
+            @Override
+            public int readData(byte[] buffer, int offset, int length) {
+                if (!stream.hasRemaining()) {
+                    return StreamConnector.NO_DATA;
+                }
+                int read = Math.min(length, stream.remaining());
+                stream.get(buffer, offset, read);
+                return read;
+            }
+
+            @Override
+            public int readData(ByteBuffer buffer) {
+                if (!stream.hasRemaining()) {
+                    return StreamConnector.NO_DATA;
+                }
+                int read = Math.min(buffer.remaining(), stream.remaining());
+                for (int i = 0; i < read; i++) {
+                    buffer.put(stream.get());
+                }
+                return read;
+            }
+
+            @Override
+            public int readData() {
+                return stream.hasRemaining() ? (stream.get() & 0xff) : StreamConnector.NO_DATA;
+            }
+
+            @Override
+            public int writeData(byte[] data) {
+                return 0;
+            }
+
+            @Override
+            public int writeData(byte[] data, int offset, int length) {
+                return 0;
+            }
+        };
+
+        final int received[] = { 0 };
+        RPC rpc = new RPC(connector);
+        rpc.addHandler(new RPC.Handler() {
+            @Override
+            public boolean onRPC(int functionId, LSerializer obj) {
+                if (functionId == 10 && LObjects.String("hello world").equals(obj.getData().get(3))) {
+                    received[0]++;
+                    return true;
+                }
+                return false;
+            }
+        });
+
+        StreamParser parser = new StreamParser(connector, new byte[1024], 64);
+        // RPC decodes the packet before returning so it doesn't need its own copy.
+        parser.setDeliveryMode(StreamParser.DeliveryMode.VIEW);
+        parser.addHandler(RPC.RPC_PACKET_ID, rpc);
+
+        int calls = 0;
+        while (parser.parse() >= 0) {
+            calls++;
+        }
+        System.out.println("Block stream parser read " + calls + " chunks.");
+        System.out.println("Block stream parser test PASS = " + (received[0] == 3));
+    }
+
+    public static void testCRC16() {
+        byte check[] = "123456789".getBytes(Charset.forName("UTF-8"));
+        int crc = CRC16.update(CRC16.INITIAL, check, 0, 4);
+        crc = CRC16.update(crc, ByteBuffer.wrap(check, 4, 5));
+        boolean pass = CRC16.CRC(check) == 0x29b1 && crc == 0x29b1;
+        System.out.println("CRC16 check value test PASS = " + pass);
+    }
+
+    public static void testReaderHandler() {
+        final ByteBuffer stream = ByteBuffer.wrap(testCallBuffer);
+        StreamConnector connector = new StreamConnector() {
+            @Override
+            public int readData() {
+                return stream.hasRemaining() ? (stream.get() & 0xff) : StreamConnector.NO_DATA;
+            }
+
+            @Override
+            public int writeData(byte[] data) {
+                return 0;
+            }
+        };
+
+        // The registered function reads the call and passes it on to the handler chain.
+        final boolean[] pass = {false, false};
+        RPC rpc = new RPC(connector);
+        rpc.registerReaderFunction(10, new RPC.ReaderHandler() {
+            @Override
+            public boolean onRPC(int functionId, LReader reader) {
+                pass[0] = functionId == 10 && reader.size() == 4 && reader.getLong(0) == -10;
+                return false;
+            }
+        });
+        rpc.addReaderHandler(new RPC.ReaderHandler() {
+            @Override
+            public boolean onRPC(int functionId, LReader reader) {
+                if (functionId == 10) {
+                    pass[1] = reader.size() == 4 &&
+                            reader.getLong(0) == -10 &&
+                            reader.getInt(1) == 10 &&
+                            reader.getInt(2) == 320 &&
+                            "hello world".equals(reader.getString(3)) &&
+                            reader.getType(3) == LType.STRING;
+                    return true;
+                }
+                return false;
+            }
+        });
+
+        StreamParser parser = new StreamParser(connector, new byte[1024]);
+        parser.setDeliveryMode(StreamParser.DeliveryMode.VIEW);
+        parser.addHandler(RPC.RPC_PACKET_ID, rpc);
+
+        while (parser.parse() >= 0);
+        System.out.println("Reader handler test PASS = " + (pass[0] && pass[1]));
+    }
+
+    public static void testWriter() {
+        try {
+            LSerializer obj = new LSerializer(
+                    LObjects.Int(LType.UINT16, 10),
+                    LObjects.Int(LType.INT64, -5),
+                    LObjects.String("hello world", true),
+                    LObjects.Int(LType.UINT8, 200),
+                    LObjects.String("caf\u00e9"));
+            byte expected[] = StreamParser.WrapBuffer(RPC.RPC_PACKET_ID, obj.serialize());
+
+            LWriter writer = new LWriter(ByteBuffer.allocate(128));
+            writer.beginCall(10, 4);
+            writer.writeInt64(-5);
+            writer.writeString("hello world", true);
+            writer.writeUInt8(200);
+            writer.writeString("caf\u00e9");
+            ByteBuffer packet = writer.finish();
+            byte actual[] = new byte[packet.limit()];
+            packet.get(actual);
+
+            LReader reader = new LReader(ByteBuffer.wrap(actual, StreamParser.HEADER_SIZE, actual.length - StreamParser.HEADER_SIZE).slice());
+            boolean pass = Arrays.equals(expected, actual) &&
+                    reader.getLong(1) == -5 &&
+                    "hello world".equals(reader.getString(2)) &&
+                    "caf\u00e9".equals(reader.getString(4));
+
+            // A lone surrogate is a '?' however the string is written or measured.
+            String lone = "a\ud800b";
+            writer.begin(RPC.RPC_PACKET_ID, 1);
+            writer.writeString(lone);
+            packet = writer.finish();
+            ByteBuffer bytes = LObjects.String(lone).getBytes();
+            pass = pass && LObjects.utf8Length(lone) == 3 && bytes.position() == 3 && packet.limit() == StreamParser.HEADER_SIZE + 3 + 3
+                    && packet.get(StreamParser.HEADER_SIZE + 3 + 1) == '?' && bytes.get(1) == '?';
+
+            // 255 strings of 255 bytes don't fit the header's UINT16 size.
+            char[] text = new char[255];
+            Arrays.fill(text, 'x');
+            LWriter large = new LWriter();
+            large.begin(RPC.RPC_PACKET_ID, 255);
+            for (int i = 0; i < 255; i++) {
+                large.writeString(new String(text));
+            }
+            try {
+                large.finish();
+                pass = false;
+            } catch (LSerializer.InvalidTypeException e) {
+                // Expected.
+            }
+            System.out.println("Writer test PASS = " + pass);
+        } catch (LSerializer.InvalidTypeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void testUnserializedFields() {
+        try {
+            LSerializer obj = new LSerializer(
+                    LObjects.Int(LType.UINT16, 8),
+                    LObjects.String("Hello world!", true),
+                    LObjects.Float(1.5f),
+                    LObjects.Int(LType.INT32, -70000));
+            LSerializer rebuiltObj = new LSerializer(obj.serialize());
+            boolean pass = obj.equals(rebuiltObj) &&
+                    rebuiltObj.getDataSize() == obj.getDataSize() &&
+                    rebuiltObj.floatValueAt(2) == 1.5f &&
+                    rebuiltObj.longAt(3) == -70000 &&
+                    "Hello world!".equals(rebuiltObj.strAt(1).getData());
+
+            rebuiltObj.remove(0);
+            LSerializer expected = new LSerializer(obj.getData().subList(1, 4));
+            pass = pass && Arrays.equals(expected.serialize().array(), rebuiltObj.serialize().array());
+            System.out.println("Unserialized fields test PASS = " + pass);
+        } catch (LSerializer.InvalidTypeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static class LoopbackConnector implements StreamConnector {
+        private StreamParser remote;
+
+        @Override
+        public int readData() {
+            return StreamConnector.NO_DATA;
+        }
+
+        @Override
+        public int writeData(byte[] data) {
+            remote.parse(data, 0, data.length);
+            return data.length;
+        }
+    }
+
+    public static void testCallAsync() {
+        LoopbackConnector clientConnector = new LoopbackConnector();
+        LoopbackConnector serverConnector = new LoopbackConnector();
+        RPC client = new RPC(clientConnector);
+        RPC server = new RPC(serverConnector);
+        StreamParser clientParser = new StreamParser(clientConnector, new byte[1024]);
+        StreamParser serverParser = new StreamParser(serverConnector, new byte[1024]);
+        client.attach(clientParser);
+        server.attach(serverParser);
+        clientConnector.remote = serverParser;
+        serverConnector.remote = clientParser;
+
+        server.registerRequestFunction(1, new RPC.RequestHandler() {
+            @Override
+            public LSerializer onRequest(int functionId, LSerializer object) {
+                return new LSerializer(LObjects.Int(LType.INT64, object.longAt(0) + 1));
+            }
+        });
+
+        try {
+            CompletableFuture<LSerializer> reply = client.callAsync(1, new LSerializer(LObjects.Int(LType.INT64, 41)), 1, TimeUnit.SECONDS);
+            boolean pass = reply.get(1, TimeUnit.SECONDS).longAt(0) == 42;
+
+            // Nothing replies to function 2.
+            CompletableFuture<LSerializer> timeout = client.callAsync(2, new LSerializer(), 50, TimeUnit.MILLISECONDS);
+            try {
+                timeout.get(1, TimeUnit.SECONDS);
+                pass = false;
+            } catch (ExecutionException e) {
+                pass = pass && e.getCause() instanceof TimeoutException;
+            }
+
+            // The slot is free by the time callbacks run, so a callback can call again.
+            client.setMaxInFlight(1);
+            final RPC caller = client;
+            CompletableFuture<LSerializer> chained = client.callAsync(2, new LSerializer(), 20, TimeUnit.MILLISECONDS).handle(
+                    new BiFunction<LSerializer, Throwable, CompletableFuture<LSerializer>>() {
+                        @Override
+                        public CompletableFuture<LSerializer> apply(LSerializer result, Throwable error) {
+                            return caller.callAsync(1, new LSerializer(LObjects.Int(LType.INT64, 1)), 1, TimeUnit.SECONDS);
+                        }
+                    }).thenCompose(Function.<CompletableFuture<LSerializer>>identity());
+            pass = pass && chained.get(1, TimeUnit.SECONDS).longAt(0) == 2;
+            try {
+                client.setMaxInFlight(0x10001);
+                pass = false;
+            } catch (IllegalArgumentException e) {
+                // Expected, there are only 65536 call IDs.
+            }
+            System.out.println("Async call test PASS = " + pass);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            e.printStackTrace();
+        }
+        client.shutdown();
+        server.shutdown();
+    }
+
+    public static void testWritePipeline() {
+        final ByteBuffer written = ByteBuffer.allocate(64 * 1024);
+        final int writes[] = { 0 };
+        StreamConnector slowLink = new StreamConnector() {
+            @Override
+            public int readData() {
+                return StreamConnector.NO_DATA;
+            }
+
+            @Override
+            public synchronized int writeData(byte[] data) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                written.put(data);
+                writes[0]++;
+                return data.length;
+            }
+        };
+
+        final WritePipeline pipeline = new WritePipeline(slowLink, 64, 1024, WritePipeline.Backpressure.BLOCK);
+        Thread producers[] = new Thread[4];
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 250; j++) {
+                        pipeline.writeData(testCallBuffer);
+                    }
+                }
+            });
+            producers[i].start();
+        }
+
+        try {
+            for (Thread producer: producers) {
+                producer.join();
+            }
+            boolean pass = pipeline.flush(10, TimeUnit.SECONDS);
+            pipeline.close(1, TimeUnit.SECONDS);
+            synchronized (slowLink) {
+                pass = pass && written.position() == testCallBuffer.length * 1000 && writes[0] < 1000;
+                System.out.println("Write pipeline joined 1000 frames into " + writes[0] + " writes.");
+            }
+
+            // A write that throws or falls short is counted as lost and the writer carries on.
+            final int[] attempts = { 0 };
+            final CountDownLatch stuck = new CountDownLatch(1);
+            WritePipeline failing = new WritePipeline(new StreamConnector() {
+                @Override
+                public int readData() {
+                    return StreamConnector.NO_DATA;
+                }
+
+                @Override
+                public int writeData(byte[] data) {
+                    attempts[0]++;
+                    if (attempts[0] == 1) {
+                        throw new IllegalStateException("Link failed.");
+                    }
+                    if (attempts[0] == 4) {
+                        try {
+                            stuck.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return attempts[0] == 2 ? 0 : data.length;
+                }
+            }, 4, 1024, WritePipeline.Backpressure.BLOCK);
+            for (int i = 0; i < 3; i++) {
+                failing.writeData(testCallBuffer);
+                pass = pass && failing.flush(5, TimeUnit.SECONDS);
+            }
+            pass = pass && failing.getLost() == 2;
+            // A sub millisecond close doesn't wait for a writer stuck on the link, and what's
+            // still queued is dropped so a later flush doesn't wait for it.
+            failing.writeData(testCallBuffer);
+            while (attempts[0] < 4) {
+                Thread.sleep(1);
+            }
+            failing.writeData(testCallBuffer);
+            long closeStart = System.nanoTime();
+            failing.close(100, TimeUnit.MICROSECONDS);
+            pass = pass && System.nanoTime() - closeStart < TimeUnit.SECONDS.toNanos(1) &&
+                    failing.writeData(testCallBuffer) == 0 && failing.getDropped() == 1;
+            stuck.countDown();
+            pass = pass && failing.flush(5, TimeUnit.SECONDS) && failing.getLost() == 2;
+            System.out.println("Write pipeline test PASS = " + pass);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void testOrderedLanes() {
+        LoopbackConnector clientConnector = new LoopbackConnector();
+        LoopbackConnector serverConnector = new LoopbackConnector();
+        RPC client = new RPC(clientConnector);
+        RPC server = new RPC(serverConnector);
+        StreamParser serverParser = new StreamParser(serverConnector, new byte[1024]);
+        serverParser.setDeliveryMode(StreamParser.DeliveryMode.VIEW);
+        server.attach(serverParser);
+        clientConnector.remote = serverParser;
+        server.setHandlerExecutor(HandlerExecutors.orderedLanes(4));
+        Metrics metrics = new Metrics();
+        server.setMetrics(metrics);
+
+        final Thread parsingThread = Thread.currentThread();
+        final List<Long> received = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch done = new CountDownLatch(100);
+        final boolean offThread[] = { true };
+        server.registerReaderFunction(3, new RPC.ReaderHandler() {
+            @Override
+            public boolean onRPC(int functionId, LReader reader) {
+                if (Thread.currentThread() == parsingThread) {
+                    offThread[0] = false;
+                }
+                received.add(reader.getLong(0));
+                done.countDown();
+                return true;
+            }
+        });
+
+        try {
+            for (int i = 0; i < 100; i++) {
+                client.call(3, new LSerializer(LObjects.Int(LType.INT64, i)));
+            }
+            boolean pass = done.await(5, TimeUnit.SECONDS) && offThread[0];
+            for (int i = 0; i < received.size(); i++) {
+                pass = pass && received.get(i) == i;
+            }
+            // A negative ID still picks a lane, and one on the wire is a decode error.
+            final CountDownLatch negative = new CountDownLatch(1);
+            server.getHandlerExecutor().execute(-1, new Runnable() {
+                @Override
+                public void run() {
+                    negative.countDown();
+                }
+            });
+            LWriter writer = new LWriter();
+            writer.begin(RPC.RPC_PACKET_ID, 1);
+            writer.writeInt8((byte) -1);
+            ByteBuffer packet = writer.finish();
+            serverParser.parse(packet.array(), 0, packet.limit());
+            pass = pass && negative.await(5, TimeUnit.SECONDS) && metrics.getDecodeErrors() == 1;
+            // Once shut down the executor rejects calls, which are counted as unhandled.
+            server.shutdown();
+            client.call(3, new LSerializer(LObjects.Int(LType.INT64, 100)));
+            pass = pass && server.getHandlerQueueDepth() == 0 && metrics.getUnhandledCalls() == 1;
+            System.out.println("Ordered lanes test PASS = " + pass);
+        } catch (LSerializer.InvalidTypeException | InterruptedException e) {
+            e.printStackTrace();
+        }
+        client.shutdown();
+        server.shutdown();
+    }
+
+    public static void testNioTransport() {
+        SessionHandler echoIncrement = new SessionHandler() {
+            @Override
+            public void onOpen(NioSession session) {
+                session.getRPC().registerRequestFunction(1, new RPC.RequestHandler() {
+                    @Override
+                    public LSerializer onRequest(int functionId, LSerializer object) {
+                        return new LSerializer(LObjects.Int(LType.INT64, object.longAt(0) + 1));
+                    }
+                });
+                session.getRPC().registerFunction(2, new RPC.Handler() {
+                    @Override
+                    public boolean onRPC(int functionId, LSerializer object) {
+                        throw new IllegalStateException("Handler failed.");
+                    }
+                });
+            }
+
+            @Override
+            public void onClose(NioSession session) {
+            }
+        };
+        SessionHandler nothing = new SessionHandler() {
+            @Override
+            public void onOpen(NioSession session) {
+            }
+
+            @Override
+            public void onClose(NioSession session) {
+            }
+        };
+
+        NioTransport server = null;
+        NioTransport client = null;
+        try {
+            server = new NioTransport(2, echoIncrement);
+            client = new NioTransport(2, nothing);
+            server.start();
+            client.start();
+            ServerSocketChannel listener = server.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            // Several sessions, each with many calls in flight at once.
+            List<CompletableFuture<LSerializer>> replies = new ArrayList<>();
+            List<NioSession> sessions = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                NioSession session = client.connect(listener.getLocalAddress());
+                sessions.add(session);
+                for (int j = 0; j < 50; j++) {
+                    replies.add(session.getRPC().callAsync(1, new LSerializer(LObjects.Int(LType.INT64, i * 1000 + j)), 5, TimeUnit.SECONDS));
+                }
+            }
+            boolean pass = true;
+            for (int i = 0; i < replies.size(); i++) {
+                long expected = (i / 50) * 1000 + (i % 50) + 1;
+                pass = pass && replies.get(i).get(5, TimeUnit.SECONDS).longAt(0) == expected;
+            }
+
+            // A handler that throws closes its own session, the others on its selector carry on.
+            NioSession failing = sessions.get(0);
+            failing.getRPC().call(2, new LSerializer());
+            long deadline = System.currentTimeMillis() + 5000;
+            while (failing.isOpen() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            pass = pass && !failing.isOpen();
+            for (int i = 1; i < sessions.size(); i++) {
+                CompletableFuture<LSerializer> reply = sessions.get(i).getRPC().callAsync(1, new LSerializer(LObjects.Int(LType.INT64, i)), 5, TimeUnit.SECONDS);
+                pass = pass && reply.get(5, TimeUnit.SECONDS).longAt(0) == i + 1;
+            }
+            System.out.println("NIO transport test PASS = " + pass);
+        } catch (IOException | InterruptedException | ExecutionException | TimeoutException | LSerializer.InvalidTypeException e) {
+            e.printStackTrace();
+        } finally {
+            if (client != null) {
+                client.close();
+            }
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    public static void testSimulatedLink() {
+        SimulatedLink link = new SimulatedLink(new SimulatedLink.Config().baudRate(9600).readTimeoutMillis(500));
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+        StreamParser parser = new StreamParser(link.getB(), new byte[256], 64);
+        parser.addHandler(RPC.RPC_PACKET_ID, new StreamParser.StreamHandler() {
+            @Override
+            public void onPacket(int type, int size, ByteBuffer buffer) {
+                received.add(size);
+            }
+        });
+
+        byte[] packet = testCallBuffer;
+        long start = System.nanoTime();
+        // Garbage ahead of the packet has to be skipped by the parser.
+        link.injectGarbage(20);
+        link.getA().writeData(packet, 0, packet.length);
+        while (received.isEmpty() && parser.parse() != StreamConnector.NO_DATA);
+        long elapsed = System.nanoTime() - start;
+
+        // 10 bits per byte at 9600 baud.
+        long minimum = TimeUnit.SECONDS.toNanos(1) * 10 * (20 + packet.length) / 9600;
+        boolean pass = received.size() == 1 && received.get(0) == packet.length - StreamParser.HEADER_SIZE && elapsed >= minimum;
+        link.close();
+        System.out.println("Simulated link test PASS = " + pass);
+    }
+
+    public static void testMetrics() {
+        Metrics metrics = new Metrics();
+        LoopbackConnector connector = new LoopbackConnector();
+        connector.remote = new StreamParser(new LoopbackConnector(), new byte[64]);
+        StreamParser parser = new StreamParser(connector, new byte[64]);
+        RPC rpc = new RPC(connector);
+        rpc.attach(parser);
+        parser.setMetrics(metrics);
+        rpc.setMetrics(metrics);
+        rpc.registerFunction(10, new RPC.Handler() {
+            @Override
+            public boolean onRPC(int functionId, LSerializer object) {
+                return true;
+            }
+        });
+
+        byte[] garbage = { 0x1, 0x2, 0x3 };
+        byte[] oversize = new byte[StreamParser.HEADER_SIZE];
+        StreamParser.WriteHeader(oversize, 0, RPC.RPC_PACKET_ID, 65);
+        byte[] corrupt = testCallBuffer.clone();
+        corrupt[5] ^= 1;
+        // An empty payload with no function ID.
+        byte[] undecodable = new byte[StreamParser.HEADER_SIZE + 1];
+        StreamParser.WriteHeader(undecodable, 0, RPC.RPC_PACKET_ID, 1);
+        // Function 12 isn't registered.
+        byte[] unhandled = testCallBuffer.clone();
+        unhandled[14] = 0xc;
+
+        parser.parse(garbage, 0, garbage.length);
+        parser.parse(testCallBuffer, 0, testCallBuffer.length);
+        parser.parse(oversize, 0, oversize.length);
+        parser.parse(testCallBuffer, 0, testCallBuffer.length);
+        parser.parse(corrupt, 0, corrupt.length);
+        parser.parse(testCallBuffer, 0, testCallBuffer.length);
+        parser.parse(undecodable, 0, undecodable.length);
+        parser.parse(unhandled, 0, unhandled.length);
+        try {
+            rpc.call(2, new LSerializer());
+        } catch (LSerializer.InvalidTypeException e) {
+            e.printStackTrace();
+        }
+
+        boolean pass = metrics.getFrames(RPC.RPC_PACKET_ID) == 5 &&
+                metrics.getBytesRead() == garbage.length + oversize.length + corrupt.length + undecodable.length + 4 * testCallBuffer.length &&
+                metrics.getOversizeDrops() == 1 &&
+                metrics.getCrcFailures() == 1 &&
+                metrics.getResyncSkippedBytes() == garbage.length + oversize.length + corrupt.length &&
+                metrics.getDecodeErrors() == 1 &&
+                metrics.getUnhandledByFunction().get("12") == 1 &&
+                metrics.getBytesWritten() == StreamParser.HEADER_SIZE + 4 &&
+                metrics.getHandlerTimes(10).getCount() == 3;
+
+        // Function IDs that aren't a UINT16 are decode errors, not a reason to stop parsing.
+        try {
+            LWriter writer = new LWriter();
+            writer.begin(RPC.RPC_PACKET_ID, 1);
+            writer.writeInt8((byte) -1);
+            ByteBuffer negative = writer.finish();
+            parser.parse(negative.array(), 0, negative.limit());
+            writer.begin(RPC.RPC_PACKET_ID, 1);
+            writer.writeInt32(70000);
+            ByteBuffer wide = writer.finish();
+            parser.parse(wide.array(), 0, wide.limit());
+            pass = pass && metrics.getDecodeErrors() == 3 && metrics.getUnhandledCalls() == 1;
+        } catch (RuntimeException | LSerializer.InvalidTypeException e) {
+            e.printStackTrace();
+            pass = false;
+        }
+        System.out.println("Metrics test PASS = " + pass);
+    }
+
+    public static void testFragmentation() {
+        final LoopbackConnector connector = new LoopbackConnector();
+        StreamParser parser = new StreamParser(new LoopbackConnector(), new byte[64]);
+        connector.remote = parser;
+        Reassembler reassembler = new Reassembler();
+        reassembler.attach(parser);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final List<String> events = new ArrayList<>();
+        reassembler.addHandler(3, new Reassembler.FragmentHandler() {
+            @Override
+            public boolean onStart(int messageId, int streamId, long length) {
+                out.reset();
+                events.add("start " + length);
+                return true;
+            }
+
+            @Override
+            public void onChunk(int messageId, ByteBuffer data) {
+                while (data.hasRemaining()) {
+                    out.write(data.get());
+                }
+            }
+
+            @Override
+            public void onEnd(int messageId) {
+                events.add("end " + out.size());
+            }
+
+            @Override
+            public void onAbort(int messageId, String reason) {
+                events.add("abort");
+            }
+        });
+
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 7);
+        }
+        Fragmenter fragmenter = new Fragmenter(connector, 64);
+        boolean pass = true;
+        try {
+            fragmenter.send(3, data);
+            pass = Arrays.equals(out.toByteArray(), data);
+            fragmenter.send(3, new ByteArrayInputStream(data), Fragmenter.UNKNOWN_LENGTH);
+            pass = pass && Arrays.equals(out.toByteArray(), data);
+
+            // Lose the third fragment.
+            StreamParser lossy = new StreamParser(new LoopbackConnector(), new byte[64]) {
+                private int packets = 0;
+
+                @Override
+                public int parse(byte[] data, int offset, int length) {
+                    return ++packets == 3 ? 0 : super.parse(data, offset, length);
+                }
+            };
+            reassembler.attach(lossy);
+            connector.remote = lossy;
+            fragmenter.send(3, data);
+            pass = pass && reassembler.getDropped() > 0;
+
+            // A rejected message is counted once and the rest of its chunks aren't dropped.
+            connector.remote = parser;
+            Reassembler rejecting = new Reassembler();
+            rejecting.attach(parser);
+            final List<Integer> started = new ArrayList<>();
+            rejecting.addHandler(4, new Reassembler.FragmentHandler() {
+                @Override
+                public boolean onStart(int messageId, int streamId, long length) {
+                    started.add(messageId);
+                    return started.size() > 1;
+                }
+
+                @Override
+                public void onChunk(int messageId, ByteBuffer data) {
+                    out.write(data.get());
+                }
+
+                @Override
+                public void onEnd(int messageId) {
+                    events.add("end 4");
+                }
+
+                @Override
+                public void onAbort(int messageId, String reason) {
+                    events.add("abort 4");
+                }
+            });
+            out.reset();
+            fragmenter.send(4, data);
+            pass = pass && rejecting.getRejected() == 1 && rejecting.getDropped() == 0 && out.size() == 0;
+            fragmenter.send(4, data);
+            pass = pass && rejecting.getRejected() == 1 && rejecting.getDropped() == 0 && out.size() > 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            pass = false;
+        }
+        pass = pass && events.equals(Arrays.asList("start 1000", "end 1000", "start 4294967295", "end 1000", "start 1000", "abort", "end 4"));
+        System.out.println("Fragmentation test PASS = " + pass);
+    }
+
+    public static void testVarInt() {
+        long[] values = { 0, 1, -1, 63, -64, 64, 300, -300, Integer.MAX_VALUE, Long.MAX_VALUE, Long.MIN_VALUE };
+        boolean pass = true;
+        try {
+            LWriter writer = new LWriter();
+            writer.begin(RPC.RPC_PACKET_ID, values.length * 2);
+            for (long value: values) {
+                writer.writeVarInt(value);
+                writer.writeUVarInt(value);
+            }
+            ByteBuffer packet = writer.finish();
+            packet.position(StreamParser.HEADER_SIZE);
+            LReader reader = new LReader(packet.slice());
+            LSerializer object = new LSerializer(packet.slice());
+            for (int i = 0; i < values.length; i++) {
+                pass = pass && reader.getLong(i * 2) == values[i] && reader.getLong(i * 2 + 1) == values[i] &&
+                        object.longAt(i * 2) == values[i] && object.longAt(i * 2 + 1) == values[i] &&
+                        reader.getType(i * 2) == LType.VARINT && reader.getType(i * 2 + 1) == LType.UVARINT;
+            }
+            pass = pass && Arrays.equals(object.serialize().array(), new LSerializer(object.getData()).serialize().array());
+
+            // A typical telemetry frame shrinks in compact mode and reads back the same.
+            LSerializer telemetry = new LSerializer(
+                    LObjects.Int(LType.INT64, 1500),
+                    LObjects.Int(LType.UINT32, 42),
+                    LObjects.Int(LType.INT16, -5),
+                    LObjects.Float(21.5f),
+                    LObjects.Int(LType.UINT32, 4000000000L));
+            int fixedSize = telemetry.serialize().capacity();
+            telemetry.setCompact(true);
+            ByteBuffer compact = telemetry.serialize();
+            LSerializer decoded = new LSerializer(ByteBuffer.wrap(compact.array()));
+            pass = pass && compact.capacity() == fixedSize - 10 &&
+                    decoded.longAt(0) == 1500 && decoded.longAt(1) == 42 && decoded.longAt(2) == -5 &&
+                    decoded.floatValueAt(3) == 21.5f && decoded.longAt(4) == 4000000000L &&
+                    decoded.typeAt(0) == LType.VARINT && decoded.typeAt(4) == LType.UINT32;
+        } catch (LSerializer.InvalidTypeException e) {
+            e.printStackTrace();
+            pass = false;
+        }
+        System.out.println("VarInt test PASS = " + pass);
+    }
+
+    public static void testCompression() {
+        boolean pass = true;
+        // Round trip random and repetitive data through the codec.
+        java.util.Random random = new java.util.Random(1);
+        LZCodec codec = new LZCodec();
+        byte[] packed = new byte[2000];
+        for (int i = 0; i < 50; i++) {
+            byte[] data = new byte[random.nextInt(1000)];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte) (i % 2 == 0 ? random.nextInt(256) : random.nextInt(4));
+            }
+            int length = codec.compress(data, 0, data.length, packed, 0, packed.length);
+            int unpacked = codec.decompress(packed, 0, length, data.length);
+            pass = pass && unpacked == data.length &&
+                    Arrays.equals(Arrays.copyOfRange(codec.getOutput(), codec.getOutputOffset(), codec.getOutputOffset() + unpacked), data);
+        }
+
+        byte[] dictionary = "status report temperature humidity battery firmware".getBytes(Charset.forName("UTF-8"));
+        LoopbackConnector loopback = new LoopbackConnector();
+        CompressingConnector connector = new CompressingConnector(loopback, dictionary, 32);
+        StreamParser parser = new StreamParser(new LoopbackConnector(), new byte[1024]);
+        parser.setDeliveryMode(StreamParser.DeliveryMode.VIEW);
+        loopback.remote = parser;
+        Metrics metrics = new Metrics();
+        parser.setMetrics(metrics);
+        new FrameDecompressor(dictionary).attach(parser);
+        // A peer with another dictionary drops the compressed packets.
+        StreamParser other = new StreamParser(new LoopbackConnector(), new byte[1024]);
+        new FrameDecompressor().attach(other);
+
+        RPC client = new RPC(connector);
+        RPC server = new RPC(loopback);
+        server.attach(parser);
+        final List<String> received = new ArrayList<>();
+        server.addHandler(new RPC.Handler() {
+            @Override
+            public boolean onRPC(int functionId, LSerializer object) {
+                received.add(object.stringAt(0) + object.stringAt(1));
+                return true;
+            }
+        });
+        final List<Integer> otherReceived = new ArrayList<>();
+        other.addHandler(RPC.RPC_PACKET_ID, new StreamParser.StreamHandler() {
+            @Override
+            public void onPacket(int type, int size, ByteBuffer buffer) {
+                otherReceived.add(size);
+            }
+        });
+        // In POOLED mode the compressed packet's buffer goes back to the pool once decompressed.
+        final List<ByteBuffer> released = new ArrayList<>();
+        StreamParser pooled = new StreamParser(new LoopbackConnector(), new byte[1024]);
+        pooled.setBufferPool(new BufferPool(1024) {
+            @Override
+            public void release(ByteBuffer buffer) {
+                released.add(buffer);
+                super.release(buffer);
+            }
+        });
+        new FrameDecompressor(dictionary).attach(pooled);
+        final List<ByteBuffer> pooledReceived = new ArrayList<>();
+        pooled.addHandler(RPC.RPC_PACKET_ID, new StreamParser.StreamHandler() {
+            @Override
+            public void onPacket(int type, int size, ByteBuffer buffer) {
+                pooledReceived.add(buffer);
+            }
+        });
+        try {
+            client.call(1, new LSerializer(LObjects.String("status report temperature 21 humidity 40"), LObjects.String(" battery 80 firmware 1.2 status report")));
+            client.call(2, new LSerializer(LObjects.String("a"), LObjects.String("b")));
+            loopback.remote = other;
+            client.call(1, new LSerializer(LObjects.String("status report temperature 21 humidity 40"), LObjects.String(" battery 80 firmware 1.2 status report")));
+            loopback.remote = pooled;
+            client.call(1, new LSerializer(LObjects.String("status report temperature 21 humidity 40"), LObjects.String(" battery 80 firmware 1.2 status report")));
+        } catch (LSerializer.InvalidTypeException e) {
+            e.printStackTrace();
+            pass = false;
+        }
+        pass = pass && received.equals(Arrays.asList("status report temperature 21 humidity 40 battery 80 firmware 1.2 status report", "ab")) &&
+                connector.getCompressed() == 3 && connector.getBytesSaved() > 20 && otherReceived.isEmpty();
+        // Each packet read counts as one frame, the decompressed one isn't counted again.
+        pass = pass && metrics.getFrames() == 2 && metrics.getFrames(CompressingConnector.COMPRESSED_PACKET_ID) == 1 &&
+                metrics.getFrames(RPC.RPC_PACKET_ID) == 1;
+        pass = pass && pooledReceived.size() == 1 && released.size() == 1 && released.get(0) != pooledReceived.get(0);
+        System.out.println("Compression test PASS = " + pass);
+    }
+
+    public static void testGeneratedService() {
+        LoopbackConnector clientConnector = new LoopbackConnector();
+        LoopbackConnector serverConnector = new LoopbackConnector();
+        RPC client = new RPC(clientConnector);
+        RPC server = new RPC(serverConnector);
+        StreamParser clientParser = new StreamParser(clientConnector, new byte[1024]);
+        StreamParser serverParser = new StreamParser(serverConnector, new byte[1024]);
+        client.attach(clientParser);
+        server.attach(serverParser);
+        clientConnector.remote = serverParser;
+        serverConnector.remote = clientParser;
+
+        final List<String> calls = new ArrayList<>();
+        // Replied to later, the skeleton mustn't wait for it on the handler thread.
+        final CompletableFuture<Long> uptime = new CompletableFuture<>();
+        new ThermostatSkeleton(new Thermostat() {
+            @Override
+            public void setTarget(int tenthsOfDegree, String zone, boolean heating) {
+                calls.add(tenthsOfDegree + " " + zone + " " + heating);
+            }
+
+            @Override
+            public CompletableFuture<Float> getTemperature(String zone) {
+                return CompletableFuture.completedFuture(zone.equals("hall") ? 19.5f : 21.0f);
+            }
+
+            @Override
+            public CompletableFuture<Long> getUptime() {
+                return uptime;
+            }
+        }).register(server);
+
+        Thermostat thermostat = new ThermostatStub(client);
+        boolean pass;
+        try {
+            thermostat.setTarget(-15, "garage", true);
+            CompletableFuture<Long> reply = thermostat.getUptime();
+            uptime.complete(86400L);
+            pass = calls.equals(Collections.singletonList("-15 garage true")) &&
+                    thermostat.getTemperature("hall").get(1, TimeUnit.SECONDS) == 19.5f &&
+                    reply.get(1, TimeUnit.SECONDS) == 86400L;
+            // An INT32 isn't the INT16 the signature asks for, even though this one would fit.
+            client.call(20, new LSerializer(LObjects.Int(LType.INT32, 100), LObjects.String("garage"), LObjects.Int(LType.UINT8, 1)));
+            try {
+                // 40000 doesn't fit the INT16 the signature asks for.
+                thermostat.setTarget(40000, "garage", false);
+                pass = false;
+            } catch (IllegalArgumentException e) {
+                pass = pass && calls.size() == 1;
+            }
+        } catch (InterruptedException | ExecutionException | TimeoutException | LSerializer.InvalidTypeException e) {
+            e.printStackTrace();
+            pass = false;
+        }
+        client.shutdown();
+        server.shutdown();
+        System.out.println("Generated service test PASS = " + pass);
+    }
+
+    public static void testMessageTemplate() {
+        boolean pass = true;
+        LoopbackConnector connector = new LoopbackConnector();
+        StreamParser parser = new StreamParser(new LoopbackConnector(), new byte[1024]);
+        parser.setDeliveryMode(StreamParser.DeliveryMode.VIEW);
+        connector.remote = parser;
+        RPC client = new RPC(connector);
+        final RPC server = new RPC(new LoopbackConnector());
+        server.attach(parser);
+
+        final MessageTemplate reading = MessageTemplate.forCall(30, LType.INT64, LType.FLOAT, LType.UINT8);
+        final List<String> received = new ArrayList<>();
+        server.registerFunction(30, reading, new RPC.TemplateHandler() {
+            @Override
+            public void onRPC(int functionId, MessageTemplate template, ByteBuffer payload) {
+                received.add("template " + template.getLong(payload, 0) + " " + template.getFloat(payload, 1) + " " + template.getInt(payload, 2));
+            }
+        });
+        server.registerFunction(30, new RPC.Handler() {
+            @Override
+            public boolean onRPC(int functionId, LSerializer object) {
+                received.add("fallback " + object.size());
+                return true;
+            }
+        });
+        try {
+            ByteBuffer packet = reading.newPacket();
+            reading.putLong(packet, 0, -1234567890123L);
+            reading.putFloat(packet, 1, 21.5f);
+            reading.putLong(packet, 2, 200);
+
+            // The template builds exactly what LWriter would.
+            LWriter writer = new LWriter();
+            writer.beginCall(30, 3);
+            writer.writeInt64(-1234567890123L);
+            writer.writeFloat(21.5f);
+            writer.writeUInt8(200);
+            pass = Arrays.equals(Arrays.copyOf(packet.array(), packet.limit()), Arrays.copyOf(writer.finish().array(), reading.getPacketSize()));
+
+            client.call(packet);
+            // Calls built the usual way match too, different signatures fall back.
+            client.call(30, new LSerializer(LObjects.Int(LType.INT64, 5), LObjects.Float(1.5f), LObjects.Int(LType.UINT8, 7)));
+            client.call(30, new LSerializer(LObjects.Int(LType.INT32, 5), LObjects.Float(1.5f), LObjects.Int(LType.UINT8, 7)));
+            server.setHandlerExecutor(HandlerExecutors.orderedLanes(1));
+            client.call(packet);
+            long deadline = System.currentTimeMillis() + 1000;
+            while (server.getHandlerCalls() < 4 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            try {
+                reading.putLong(packet, 2, 256);
+                pass = false;
+            } catch (LSerializer.InvalidTypeException e) {
+                // Doesn't fit a UINT8.
+            }
+            try {
+                MessageTemplate.forCall(31, LType.STRING);
+                pass = false;
+            } catch (IllegalArgumentException e) {
+                // Strings don't have a fixed size.
+            }
+        } catch (LSerializer.InvalidTypeException | InterruptedException e) {
+            e.printStackTrace();
+            pass = false;
+        }
+        pass = pass && received.equals(Arrays.asList("template -1234567890123 21.5 200", "template 5 1.5 7", "fallback 3", "template -1234567890123 21.5 200")) &&
+                LType.findType(0x0e) == LType.UVARINT && LType.findType(0x10e) == null;
+        server.shutdown();
+        System.out.println("Message template test PASS = " + pass);
+    }
+
+    public static void testBatching() {
+        LoopbackConnector clientConnector = new LoopbackConnector();
+        LoopbackConnector serverConnector = new LoopbackConnector();
+        final LoopbackConnector wire = clientConnector;
+        final long[] written = new long[2];
+        StreamConnector counting = new StreamConnector() {
+            @Override
+            public int readData() {
+                return StreamConnector.NO_DATA;
+            }
+
+            @Override
+            public int writeData(byte[] data) {
+                written[0] += data.length;
+                written[1]++;
+                return wire.writeData(data);
+            }
+        };
+        BatchingConnector batching = new BatchingConnector(counting, 64, 50, TimeUnit.MILLISECONDS);
+        RPC client = new RPC(batching);
+        RPC server = new RPC(serverConnector);
+        StreamParser clientParser = new StreamParser(clientConnector, new byte[1024]);
+        StreamParser serverParser = new StreamParser(serverConnector, new byte[1024]);
+        serverParser.setDeliveryMode(StreamParser.DeliveryMode.VIEW);
+        client.attach(clientParser);
+        server.attach(serverParser);
+        clientConnector.remote = serverParser;
+        serverConnector.remote = clientParser;
+
+        final List<Long> received = Collections.synchronizedList(new ArrayList<Long>());
+        server.registerReaderFunction(1, new RPC.ReaderHandler() {
+            @Override
+            public boolean onRPC(int functionId, LReader reader) {
+                received.add(reader.getLong(0));
+                return true;
+            }
+        });
+        server.registerRequestFunction(2, new RPC.RequestHandler() {
+            @Override
+            public LSerializer onRequest(int functionId, LSerializer object) {
+                return new LSerializer(LObjects.Int(LType.INT32, object.longAt(0) * 2));
+            }
+        });
+
+        boolean pass = true;
+        int unbatched = 0;
+        try {
+            // The first call goes straight out, the rest share batches of up to 64 bytes.
+            for (long i = 0; i < 20; i++) {
+                LSerializer call = new LSerializer(LObjects.Int(LType.INT32, i));
+                unbatched += StreamParser.HEADER_SIZE + call.serialize().capacity() + 3;
+                client.call(1, call);
+            }
+            pass = received.size() < 20;
+            batching.flush();
+            pass = pass && received.size() == 20 && batching.getBatches() >= 2 &&
+                    written[0] == unbatched - batching.getBytesSaved() && written[1] < 10;
+
+            // Held calls go out on their own after the delay.
+            client.call(1, new LSerializer(LObjects.Int(LType.INT32, 20)));
+            client.call(1, new LSerializer(LObjects.Int(LType.INT32, 21)));
+            long deadline = System.currentTimeMillis() + 1000;
+            while (received.size() < 22 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            // A request batched with a call still gets its reply.
+            client.call(1, new LSerializer(LObjects.Int(LType.INT32, 22)));
+            CompletableFuture<LSerializer> reply = client.callAsync(2, new LSerializer(LObjects.Int(LType.INT32, 21)), 1, TimeUnit.SECONDS);
+            pass = pass && reply.get(1, TimeUnit.SECONDS).longAt(0) == 42;
+            for (int i = 0; i < received.size(); i++) {
+                pass = pass && received.get(i) == i;
+            }
+            pass = pass && received.size() == 23 && batching.getLostCalls() == 0;
+
+            // Held calls the wrapped connector fails to write are counted, not silently dropped.
+            BatchingConnector failing = new BatchingConnector(new StreamConnector() {
+                @Override
+                public int readData() {
+                    return StreamConnector.NO_DATA;
+                }
+
+                @Override
+                public int writeData(byte[] data) {
+                    return 0;
+                }
+            }, 64, 1, TimeUnit.SECONDS);
+            RPC lost = new RPC(failing);
+            for (long i = 0; i < 3; i++) {
+                lost.call(1, new LSerializer(LObjects.Int(LType.INT32, i)));
+            }
+            pass = pass && failing.getLostCalls() == 0 && !failing.flush() && failing.getLostCalls() == 2
+                    && failing.getBatches() == 0 && failing.flush();
+            failing.close();
+            lost.shutdown();
+        } catch (LSerializer.InvalidTypeException | InterruptedException | ExecutionException | TimeoutException e) {
+            e.printStackTrace();
+            pass = false;
+        }
+        batching.close();
+        client.shutdown();
+        server.shutdown();
+        System.out.println("Batching test PASS = " + pass);
+    }
+
+    public static void testWriteScheduler() {
+        // The link holds the first packet until released, so everything after it queues up.
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> types = Collections.synchronizedList(new ArrayList<Integer>());
+        StreamConnector link = new StreamConnector() {
+            @Override
+            public int readData() {
+                return StreamConnector.NO_DATA;
+            }
+
+            @Override
+            public int writeData(byte[] data) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                types.add(((data[0] & 0xff) << 8) | (data[1] & 0xff));
+                return data.length;
+            }
+        };
+        final int control = 0, telemetry = 1, bulk = 2;
+        WriteScheduler scheduler = new WriteScheduler(link,
+                WriteScheduler.TrafficClass.strict("control"),
+                WriteScheduler.TrafficClass.weighted("telemetry", 3),
+                WriteScheduler.TrafficClass.weighted("bulk", 1));
+        scheduler.assignType(Fragmenter.FRAGMENT_PACKET_ID, bulk);
+        scheduler.assignType(20, telemetry);
+        scheduler.assignFunction(5, control);
+        Metrics metrics = new Metrics();
+        scheduler.setMetrics(metrics);
+        RPC rpc = new RPC(scheduler);
+
+        boolean pass;
+        try {
+            byte[] frame = new byte[StreamParser.HEADER_SIZE + 200];
+            // Wait for the writer to pick up a first bulk packet and get stuck on the link.
+            StreamParser.WriteHeader(frame, 0, Fragmenter.FRAGMENT_PACKET_ID, 200);
+            scheduler.writeData(frame);
+            while (scheduler.getQueueDepth(bulk) > 0) {
+                Thread.sleep(1);
+            }
+            for (int i = 0; i < 40; i++) {
+                StreamParser.WriteHeader(frame, 0, Fragmenter.FRAGMENT_PACKET_ID, 200);
+                scheduler.writeData(frame);
+                StreamParser.WriteHeader(frame, 0, 20, 200);
+                scheduler.writeData(frame);
+            }
+            // Calls to other functions take the default class, the last one.
+            rpc.call(6, new LSerializer(LObjects.Int(LType.UINT8, 1)));
+            rpc.call(5, new LSerializer(LObjects.Int(LType.UINT8, 1)));
+            release.countDown();
+            pass = scheduler.flush(5, TimeUnit.SECONDS) && types.size() == 83;
+
+            // The bulk packet already on the link, then the control call, then telemetry
+            // taking about three packets for every bulk one.
+            int telemetryFirst = 0;
+            for (int type: types.subList(2, 42)) {
+                if (type == 20) {
+                    telemetryFirst++;
+                }
+            }
+            pass = pass && types.get(0) == Fragmenter.FRAGMENT_PACKET_ID && types.get(1) == RPC.RPC_PACKET_ID &&
+                    telemetryFirst >= 28 && telemetryFirst <= 32 && scheduler.getWritten(control) == 1 &&
+                    scheduler.getWritten(telemetry) == 40 && scheduler.getWritten(bulk) == 42 &&
+                    metrics.getQueueWaits(control).getCount() == 1 && metrics.getQueueWaits(bulk).getCount() == 42 &&
+                    metrics.getQueueWaits(bulk).getMax() > metrics.getQueueWaits(control).getMax();
+            scheduler.close(1, TimeUnit.SECONDS);
+
+            // A write that throws or falls short is counted as lost and the writer carries on.
+            final int[] writes = { 0 };
+            final CountDownLatch stuck = new CountDownLatch(1);
+            WriteScheduler failing = new WriteScheduler(new StreamConnector() {
+                @Override
+                public int readData() {
+                    return StreamConnector.NO_DATA;
+                }
+
+                @Override
+                public int writeData(byte[] data) {
+                    writes[0]++;
+                    if (writes[0] == 1) {
+                        throw new IllegalStateException("Link failed.");
+                    }
+                    if (writes[0] == 5) {
+                        try {
+                            stuck.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return writes[0] == 2 ? 0 : data.length;
+                }
+            }, 1, WriteScheduler.TrafficClass.strict("only"));
+            for (int i = 0; i < 4; i++) {
+                failing.writeData(frame);
+            }
+            pass = pass && failing.flush(5, TimeUnit.SECONDS) && failing.getLost() == 2 && failing.getWritten(0) == 2;
+            // A sub millisecond close doesn't wait for a writer stuck on the link.
+            failing.writeData(frame);
+            long closeStart = System.nanoTime();
+            failing.close(100, TimeUnit.MICROSECONDS);
+            pass = pass && System.nanoTime() - closeStart < TimeUnit.SECONDS.toNanos(1);
+            stuck.countDown();
+        } catch (LSerializer.InvalidTypeException | InterruptedException e) {
+            e.printStackTrace();
+            pass = false;
+        }
+        System.out.println("Write scheduler test PASS = " + pass);
+    }
+
+    public static void testCaptureReplay() {
+        // A source handing over 100 calls in odd sized chunks, with a pause in the middle.
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try {
+            LWriter writer = new LWriter();
+            for (int i = 0; i < 100; i++) {
+                writer.beginCall(1, 1);
+                writer.writeUInt16(i);
+                ByteBuffer packet = writer.finish();
+                stream.write(packet.array(), 0, packet.limit());
+            }
+        } catch (LSerializer.InvalidTypeException e) {
+            e.printStackTrace();
+        }
+        final byte[] bytes = stream.toByteArray();
+        final int[] position = new int[1];
+        BlockStreamConnector source = new BlockStreamConnector() {
+            @Override
+            public int readData(byte[] buffer, int offset, int length) {
+                int end = position[0] < bytes.length / 2 ? bytes.length / 2 : bytes.length;
+                int read = Math.min(Math.min(37, length), end - position[0]);
+                if (read <= 0 || position[0] == bytes.length / 2) {
+                    return StreamConnector.NO_DATA;
+                }
+                System.arraycopy(bytes, position[0], buffer, offset, read);
+                position[0] += read;
+                return read;
+            }
+
+            @Override
+            public int readData(ByteBuffer buffer) {
+                return StreamConnector.NO_DATA;
+            }
+
+            @Override
+            public int writeData(byte[] data, int offset, int length) {
+                return length;
+            }
+
+            @Override
+            public int readData() {
+                return position[0] < bytes.length ? bytes[position[0]++] & 0xff : StreamConnector.NO_DATA;
+            }
+
+            @Override
+            public int writeData(byte[] data) {
+                return data.length;
+            }
+        };
+
+        boolean pass = true;
+        File file = null;
+        try {
+            file = File.createTempFile("capture", ".lcap");
+            // A small window so the capture has to be remapped a few times.
+            CaptureConnector capture = new CaptureConnector(source, file, 256);
+            final List<Integer> captured = new ArrayList<>();
+            StreamParser parser = new StreamParser(capture, new byte[256], 64);
+            RPC rpc = new RPC(capture);
+            rpc.attach(parser);
+            rpc.registerReaderFunction(1, new RPC.ReaderHandler() {
+                @Override
+                public boolean onRPC(int functionId, LReader reader) {
+                    captured.add(reader.getInt(0));
+                    return true;
+                }
+            });
+            while (parser.parse() > 0) {
+            }
+            rpc.call(2, new LSerializer(LObjects.Int(LType.UINT8, 1)));
+            Thread.sleep(80);
+            // The second half is read a byte at a time.
+            while (position[0] < bytes.length) {
+                parser.parse(new byte[] { (byte) capture.readData() }, 0, 1);
+            }
+            capture.readData();
+            capture.close();
+            pass = captured.size() == 100 && capture.getChunks() > 3 && file.length() == capture.getLength();
+
+            for (double speed: new double[] { ReplayConnector.FULL_SPEED, ReplayConnector.ORIGINAL_SPEED }) {
+                ReplayConnector replay = new ReplayConnector(file, speed);
+                final List<Integer> replayed = new ArrayList<>();
+                parser = new StreamParser(replay, new byte[256], 64);
+                rpc = new RPC(replay);
+                rpc.attach(parser);
+                rpc.registerReaderFunction(1, new RPC.ReaderHandler() {
+                    @Override
+                    public boolean onRPC(int functionId, LReader reader) {
+                        replayed.add(reader.getInt(0));
+                        return true;
+                    }
+                });
+                long start = System.nanoTime();
+                while (parser.parse() != StreamConnector.ERROR_EXIT) {
+                }
+                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                replay.close();
+                pass = pass && replayed.equals(captured) && replay.isFinished() && replay.getBytesRead() == bytes.length &&
+                        (speed == ReplayConnector.FULL_SPEED || millis >= 70);
+            }
+        } catch (IOException | LSerializer.InvalidTypeException | InterruptedException e) {
+            e.printStackTrace();
+            pass = false;
+        } finally {
+            if (file != null) {
+                file.delete();
+            }
+        }
+        System.out.println("Capture replay test PASS = " + pass);
+    }
+
+    public static void testRingBuffer() {
+        // Calls of all sizes, some too big for the ring's slack, read in random sized chunks.
+        final java.util.Random random = new java.util.Random(3);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final List<String> sent = new ArrayList<>();
+        try {
+            LWriter writer = new LWriter();
+            for (int i = 0; i < 500; i++) {
+                char[] text = new char[i % 50 == 0 ? 200 : random.nextInt(60)];
+                Arrays.fill(text, (char) ('a' + i % 26));
+                sent.add(i + new String(text));
+                writer.beginCall(1, 2);
+                writer.writeUInt16(i);
+                writer.writeString(new String(text));
+                ByteBuffer packet = writer.finish();
+                stream.write(packet.array(), 0, packet.limit());
+            }
+        } catch (LSerializer.InvalidTypeException e) {
+            e.printStackTrace();
+        }
+        final byte[] bytes = stream.toByteArray();
+        BlockStreamConnector source = new BlockStreamConnector() {
+            private int position = 0;
+
+            @Override
+            public int readData(ByteBuffer buffer) {
+                if (this.position == bytes.length) {
+                    return StreamConnector.ERROR_EXIT;
+                }
+                int read = Math.min(Math.min(buffer.remaining(), 1 + random.nextInt(100)), bytes.length - this.position);
+                buffer.put(bytes, this.position, read);
+                this.position += read;
+                return read;
+            }
+
+            @Override
+            public int readData(byte[] buffer, int offset, int length) {
+                return this.readData(ByteBuffer.wrap(buffer, offset, length));
+            }
+
+            @Override
+            public int writeData(byte[] data, int offset, int length) {
+                return length;
+            }
+
+            @Override
+            public int readData() {
+                return StreamConnector.NO_DATA;
+            }
+
+            @Override
+            public int writeData(byte[] data) {
+                return data.length;
+            }
+        };
+
+        RingBuffer ring = new RingBuffer(256, 128);
+        StreamParser parser = new StreamParser(source, new byte[512]);
+        parser.setDeliveryMode(StreamParser.DeliveryMode.VIEW);
+        RPC rpc = new RPC(source);
+        rpc.attach(parser);
+        final List<String> received = new ArrayList<>();
+        rpc.registerReaderFunction(1, new RPC.ReaderHandler() {
+            @Override
+            public boolean onRPC(int functionId, LReader reader) {
+                received.add(reader.getInt(0) + reader.getString(1));
+                return true;
+            }
+        });
+        Thread filler = ring.startFilling(source, "Ring filler");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!(ring.isClosed() && ring.available() == 0) && System.currentTimeMillis() < deadline) {
+            parser.parse(ring);
+            ring.awaitData(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        boolean pass = received.equals(sent) && ring.capacity() == 256;
+        try {
+            filler.join(1000);
+        } catch (InterruptedException e) {
+            pass = false;
+        }
+
+        // A buffer dispatched in VIEW mode reaches handlers read only and from index 0.
+        final ByteBuffer[] seen = new ByteBuffer[1];
+        parser.addHandler(20, new StreamParser.StreamHandler() {
+            @Override
+            public void onPacket(int type, int size, ByteBuffer buffer) {
+                seen[0] = buffer;
+            }
+        });
+        ByteBuffer writable = ByteBuffer.allocate(16);
+        writable.position(3);
+        parser.dispatch(20, writable, 10);
+        pass = pass && seen[0].isReadOnly() && seen[0].position() == 0 && seen[0].limit() == 10;
+        System.out.println("Ring buffer test PASS = " + pass);
+    }
+
+    public static void testCallQueue() {
+        // 100 calls read 16 bytes at a time, with a subscriber that asks for nothing at first.
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try {
+            LWriter writer = new LWriter();
+            for (int i = 0; i < 100; i++) {
+                writer.beginCall(5, 1);
+                writer.writeUInt16(i);
+                ByteBuffer packet = writer.finish();
+                stream.write(packet.array(), 0, packet.limit());
+            }
+        } catch (LSerializer.InvalidTypeException e) {
+            e.printStackTrace();
+        }
+        final byte[] bytes = stream.toByteArray();
+        final int[] position = new int[1];
+        BlockStreamConnector source = new BlockStreamConnector() {
+            @Override
+            public int readData(byte[] buffer, int offset, int length) {
+                synchronized (position) {
+                    if (position[0] == bytes.length) {
+                        return StreamConnector.NO_DATA;
+                    }
+                    int read = Math.min(Math.min(length, 16), bytes.length - position[0]);
+                    System.arraycopy(bytes, position[0], buffer, offset, read);
+                    position[0] += read;
+                    return read;
+                }
+            }
+
+            @Override
+            public int readData(ByteBuffer buffer) {
+                byte[] chunk = new byte[Math.min(buffer.remaining(), 16)];
+                int read = this.readData(chunk, 0, chunk.length);
+                if (read > 0) {
+                    buffer.put(chunk, 0, read);
+                }
+                return read;
+            }
+
+            @Override
+            public int readData() {
+                return StreamConnector.NO_DATA;
+            }
+
+            @Override
+            public int writeData(byte[] data, int offset, int length) {
+                return length;
+            }
+
+            @Override
+            public int writeData(byte[] data) {
+                return data.length;
+            }
+        };
+
+        PausableConnector connector = new PausableConnector(source);
+        final StreamParser parser = new StreamParser(connector, new byte[256], 64);
+        RPC rpc = new RPC(connector);
+        rpc.attach(parser);
+        final CallQueue queue = new CallQueue(8, CallQueue.Overflow.PAUSE_READING, connector);
+        rpc.registerFunction(5, queue);
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch completed = new CountDownLatch(1);
+        queue.subscribe(new CallQueue.Sink() {
+            @Override
+            public void onCall(CallQueue.Call call) {
+                received.add((int) call.getArguments().longAt(0));
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                error.printStackTrace();
+            }
+
+            @Override
+            public void onComplete() {
+                completed.countDown();
+            }
+        });
+        final boolean[] running = {true};
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (running[0]) {
+                    parser.parse();
+                }
+            }
+        }, "CallQueue reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        boolean pass = true;
+        try {
+            long deadline = System.currentTimeMillis() + 2000;
+            while (!connector.isPaused() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            // Give the reader time to carry on if the pause didn't hold.
+            Thread.sleep(50);
+            int consumed;
+            synchronized (position) {
+                consumed = position[0];
+            }
+            // The buffer may go over by what the last 16 byte read held.
+            pass &= queue.isPaused() && received.isEmpty() && queue.size() >= 8 && queue.size() <= 10 && consumed < bytes.length;
+
+            while (received.size() < 100 && System.currentTimeMillis() < deadline) {
+                queue.request(3);
+                Thread.sleep(1);
+            }
+            queue.complete();
+            pass &= completed.await(1, TimeUnit.SECONDS) && !connector.isPaused();
+        } catch (InterruptedException e) {
+            pass = false;
+        }
+        running[0] = false;
+        for (int i = 0; i < 100 && pass; i++) {
+            pass = received.size() == 100 && received.get(i) == i;
+        }
+
+        // Without pausing, the oldest or newest calls are lost instead, or the sink fails.
+        CallQueue oldest = new CallQueue(2, CallQueue.Overflow.DROP_OLDEST);
+        CallQueue newest = new CallQueue(2, CallQueue.Overflow.DROP_NEWEST);
+        CallQueue failing = new CallQueue(2, CallQueue.Overflow.FAIL);
+        final List<String> events = new ArrayList<>();
+        for (final CallQueue each: new CallQueue[]{oldest, newest, failing}) {
+            for (int i = 0; i < 5; i++) {
+                each.onRPC(i, new LSerializer(LObjects.Int(LType.UINT8, i)));
+            }
+            each.subscribe(new CallQueue.Sink() {
+                @Override
+                public void onCall(CallQueue.Call call) {
+                    events.add(String.valueOf(call.getFunctionId()));
+                }
+
+                @Override
+                public void onError(Throwable error) {
+                    events.add("error");
+                }
+
+                @Override
+                public void onComplete() {
+                    events.add("complete");
+                }
+            });
+            each.request(Long.MAX_VALUE);
+            each.complete();
+        }
+        pass &= events.equals(Arrays.asList("3", "4", "complete", "0", "1", "complete", "error"))
+                && oldest.getDropped() == 3 && newest.getDropped() == 3 && !failing.onRPC(5, new LSerializer());
+        System.out.println("Call queue test PASS = " + pass);
+    }
+
+    public static void testBufferPool() {
+        BufferPool pool = new BufferPool(1024);
+        ByteBuffer first = pool.acquire(100);
+        pool.release(first);
+        // Releasing twice, or a slice that happens to be a pool size, changes nothing.
+        pool.release(first);
+        ByteBuffer whole = ByteBuffer.allocate(256);
+        whole.position(128);
+        pool.release(whole.slice());
+        ByteBuffer second = pool.acquire(100);
+        ByteBuffer third = pool.acquire(100);
+        boolean pass = second == first && third != first && third.arrayOffset() == 0 && third.capacity() == 128 && second.limit() == 100;
+        System.out.println("Buffer pool test PASS = " + pass);
+    }
+
+    public static void testDeliveryModes() {
+        // Packets of a few sizes, including an empty one, back to back in one stream.
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        java.util.Random random = new java.util.Random(4);
+        for (int size: new int[] { 0, 1, 100, 200, 17 }) {
+            byte[] packet = new byte[StreamParser.HEADER_SIZE + size];
+            StreamParser.WriteHeader(packet, 0, 20, size);
+            for (int i = StreamParser.HEADER_SIZE; i < packet.length; i++) {
+                packet[i] = (byte) random.nextInt(256);
+            }
+            stream.write(packet, 0, packet.length);
+        }
+        byte[] data = stream.toByteArray();
+
+        boolean pass = true;
+        List<List<String>> payloads = new ArrayList<>();
+        for (final StreamParser.DeliveryMode mode: StreamParser.DeliveryMode.values()) {
+            final StreamParser parser = new StreamParser(new LoopbackConnector(), new byte[256]);
+            if (mode == StreamParser.DeliveryMode.POOLED) {
+                parser.setBufferPool(new BufferPool(256));
+            } else {
+                parser.setDeliveryMode(mode);
+            }
+            final List<String> received = new ArrayList<>();
+            final boolean[] readOnly = { true };
+            parser.addHandler(20, new StreamParser.StreamHandler() {
+                @Override
+                public void onPacket(int type, int size, ByteBuffer buffer) {
+                    byte[] payload = new byte[size];
+                    ByteBuffer view = buffer.duplicate();
+                    view.position(0);
+                    view.get(payload);
+                    received.add(Arrays.toString(payload));
+                    readOnly[0] &= buffer.isReadOnly();
+                    if (mode == StreamParser.DeliveryMode.POOLED) {
+                        parser.getBufferPool().release(buffer);
+                    }
+                }
+            });
+            parser.parse(data, 0, data.length);
+            pass = pass && received.size() == 5 && (mode != StreamParser.DeliveryMode.VIEW || readOnly[0]);
+            payloads.add(received);
+        }
+        // Every mode hands over the same bytes.
+        for (List<String> received: payloads) {
+            pass = pass && received.equals(payloads.get(0));
+        }
+        System.out.println("Delivery modes test PASS = " + pass);
+    }
 }
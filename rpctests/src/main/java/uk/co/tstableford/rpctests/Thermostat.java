@@ -0,0 +1,24 @@
+package uk.co.tstableford.rpctests;
+
+import uk.co.tstableford.rpc.lib.annotation.Field;
+import uk.co.tstableford.rpc.lib.annotation.RPCFunction;
+import uk.co.tstableford.rpc.lib.annotation.RPCService;
+import uk.co.tstableford.rpc.lib.object.LType;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * An example RPCService, ThermostatStub and ThermostatSkeleton are generated from it.
+ */
+@RPCService
+public interface Thermostat {
+    @RPCFunction(id = 20)
+    void setTarget(@Field(LType.INT16) int tenthsOfDegree, String zone, boolean heating);
+
+    @RPCFunction(id = 21)
+    CompletableFuture<Float> getTemperature(String zone);
+
+    @RPCFunction(id = 22, timeoutMillis = 500)
+    @Field(LType.UVARINT)
+    CompletableFuture<Long> getUptime();
+}
@@ -0,0 +1,205 @@
+package uk.co.tstableford.rpctests.sim;
+
+import org.HdrHistogram.Histogram;
+import uk.co.tstableford.rpc.lib.RPC;
+import uk.co.tstableford.rpc.lib.object.LObjects;
+import uk.co.tstableford.rpc.lib.object.LType;
+import uk.co.tstableford.rpc.lib.serializer.LSerializer;
+import uk.co.tstableford.rpc.lib.stream.StreamConnector;
+import uk.co.tstableford.rpc.lib.stream.StreamParser;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Drives request/response traffic over a SimulatedLink and reports round trip latency
+ * percentiles, goodput and how long the parser takes to resync after corruption.
+ *
+ * Arguments are key=value pairs, for example
+ * <pre>
+ * baud=115200 latencyMicros=2000 flip=0.0001 drop=0 garbage=0.00005 calls=2000 inFlight=8 strings=1
+ * </pre>
+ */
+public class LinkHarness {
+    private static final int ECHO_FID = 1;
+
+    private final SimulatedLink link;
+    private final RPC client, server;
+    private final Thread clientThread, serverThread;
+    private volatile boolean run = true;
+    private final Histogram latency = new Histogram(TimeUnit.SECONDS.toNanos(60), 3);
+    private final Histogram resync = new Histogram(TimeUnit.SECONDS.toNanos(60), 3);
+    private final AtomicLong payloadBytes = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private long lastResyncCorruption = 0;
+
+    public LinkHarness(SimulatedLink.Config config) {
+        this.link = new SimulatedLink(config);
+        this.client = new RPC(link.getA());
+        this.server = new RPC(link.getB());
+        this.server.registerRequestFunction(ECHO_FID, new RPC.RequestHandler() {
+            @Override
+            public LSerializer onRequest(int functionId, LSerializer object) {
+                return object;
+            }
+        });
+
+        StreamParser clientParser = new StreamParser(link.getA(), new byte[1024], 256);
+        clientParser.setDeliveryMode(StreamParser.DeliveryMode.VIEW);
+        this.client.attach(clientParser);
+
+        // Wrap the server's RPC to see when packets make it through after corruption.
+        StreamParser serverParser = new StreamParser(link.getB(), new byte[1024], 256);
+        serverParser.setDeliveryMode(StreamParser.DeliveryMode.VIEW);
+        serverParser.addHandler(RPC.RPC_REQUEST_PACKET_ID, new StreamParser.StreamHandler() {
+            @Override
+            public void onPacket(int type, int size, ByteBuffer buffer) {
+                long corruption = link.getLastCorruptionNanos();
+                long now = System.nanoTime();
+                if (corruption != 0 && corruption != lastResyncCorruption && corruption < now) {
+                    resync.recordValue(now - corruption);
+                    lastResyncCorruption = corruption;
+                }
+                server.onPacket(type, size, buffer);
+            }
+        });
+
+        this.clientThread = readThread(clientParser, "client read");
+        this.serverThread = readThread(serverParser, "server read");
+    }
+
+    private Thread readThread(final StreamParser parser, String name) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (parser.parse() != StreamConnector.ERROR_EXIT && run);
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Make calls echo calls, keeping up to inFlight outstanding, and wait for them all.
+     */
+    public void run(int calls, int inFlight, final LSerializer message, final int payloadSize, long timeoutMillis) throws InterruptedException {
+        final Semaphore slots = new Semaphore(inFlight);
+        this.client.setMaxInFlight(inFlight);
+        for (int i = 0; i < calls; i++) {
+            slots.acquire();
+            final long start = System.nanoTime();
+            CompletableFuture<LSerializer> reply = this.client.callAsync(ECHO_FID, message, timeoutMillis, TimeUnit.MILLISECONDS);
+            reply.whenComplete(new BiConsumer<LSerializer, Throwable>() {
+                @Override
+                public void accept(LSerializer result, Throwable error) {
+                    if (error == null) {
+                        latency.recordValue(System.nanoTime() - start);
+                        payloadBytes.addAndGet(payloadSize);
+                    } else if (error instanceof TimeoutException) {
+                        timeouts.incrementAndGet();
+                    } else {
+                        failures.incrementAndGet();
+                    }
+                    slots.release();
+                }
+            });
+        }
+        slots.acquire(inFlight);
+    }
+
+    public void close() {
+        this.run = false;
+        this.link.close();
+        this.client.shutdown();
+        this.server.shutdown();
+    }
+
+    public void report(long elapsedNanos) {
+        System.out.println("Completed calls:   " + this.latency.getTotalCount());
+        System.out.println("Timed out calls:   " + this.timeouts.get());
+        System.out.println("Failed calls:      " + this.failures.get());
+        System.out.println("Corrupted bytes:   " + this.link.getCorruptedBytes());
+        System.out.println("Latency ms p50 " + millis(this.latency.getValueAtPercentile(50)) +
+                " p90 " + millis(this.latency.getValueAtPercentile(90)) +
+                " p99 " + millis(this.latency.getValueAtPercentile(99)) +
+                " p99.9 " + millis(this.latency.getValueAtPercentile(99.9)) +
+                " max " + millis(this.latency.getMaxValue()));
+        System.out.println("Goodput:           " + (this.payloadBytes.get() * TimeUnit.SECONDS.toNanos(1) / Math.max(1, elapsedNanos)) + " payload bytes/s");
+        if (this.resync.getTotalCount() > 0) {
+            System.out.println("Resync ms p50 " + millis(this.resync.getValueAtPercentile(50)) +
+                    " p99 " + millis(this.resync.getValueAtPercentile(99)) +
+                    " max " + millis(this.resync.getMaxValue()) +
+                    " over " + this.resync.getTotalCount() + " corruptions");
+        }
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    public static void main(String[] args) throws Exception {
+        SimulatedLink.Config config = new SimulatedLink.Config().baudRate(115200);
+        int calls = 2000;
+        int inFlight = 8;
+        int strings = 1;
+        long timeoutMillis = 2000;
+        for (String arg: args) {
+            String[] pair = arg.split("=", 2);
+            switch (pair[0]) {
+                case "baud":
+                    config.baudRate(Integer.parseInt(pair[1]));
+                    break;
+                case "latencyMicros":
+                    config.latencyMicros(Long.parseLong(pair[1]));
+                    break;
+                case "flip":
+                    config.bitFlipRate(Double.parseDouble(pair[1]));
+                    break;
+                case "drop":
+                    config.dropRate(Double.parseDouble(pair[1]));
+                    break;
+                case "garbage":
+                    config.garbage(Double.parseDouble(pair[1]), config.garbageLength);
+                    break;
+                case "calls":
+                    calls = Integer.parseInt(pair[1]);
+                    break;
+                case "inFlight":
+                    inFlight = Integer.parseInt(pair[1]);
+                    break;
+                case "strings":
+                    strings = Integer.parseInt(pair[1]);
+                    break;
+                case "timeoutMillis":
+                    timeoutMillis = Long.parseLong(pair[1]);
+                    break;
+                default:
+                    System.err.println("Unknown argument " + arg);
+                    return;
+            }
+        }
+
+        LSerializer message = new LSerializer();
+        message.getData().add(LObjects.Int(LType.INT64, System.currentTimeMillis()));
+        message.getData().add(LObjects.Float(21.5f));
+        for (int i = 0; i < strings; i++) {
+            message.getData().add(LObjects.String("status report " + i));
+        }
+        int payloadSize = message.serialize().capacity();
+
+        System.out.println("Running " + calls + " calls at " + config.baudRate + " baud with " + inFlight + " in flight.");
+        LinkHarness harness = new LinkHarness(config);
+        long start = System.nanoTime();
+        harness.run(calls, inFlight, message, payloadSize, timeoutMillis);
+        long elapsed = System.nanoTime() - start;
+        harness.report(elapsed);
+        harness.close();
+    }
+}
@@ -0,0 +1,65 @@
+package uk.co.tstableford.rpctests.sim;
+
+import uk.co.tstableford.rpc.lib.RPC;
+import uk.co.tstableford.rpc.lib.metrics.Metrics;
+import uk.co.tstableford.rpc.lib.serializer.LReader;
+import uk.co.tstableford.rpc.lib.stream.ReplayConnector;
+import uk.co.tstableford.rpc.lib.stream.StreamConnector;
+import uk.co.tstableford.rpc.lib.stream.StreamParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays a CaptureConnector capture through a StreamParser and an RPC that accepts every call,
+ * then reports throughput and what the parser made of the stream.
+ *
+ * Arguments are the capture file and optionally speed=N, a multiple of the original rate.
+ * Without it the capture is played as fast as possible.
+ * <pre>
+ * field.lcap speed=10
+ * </pre>
+ */
+public class ReplayHarness {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ReplayHarness capture [speed=N]");
+            System.exit(1);
+        }
+        double speed = ReplayConnector.FULL_SPEED;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("speed=")) {
+                speed = Double.parseDouble(args[i].substring("speed=".length()));
+            }
+        }
+
+        ReplayConnector replay = new ReplayConnector(new File(args[0]), speed);
+        Metrics metrics = new Metrics();
+        StreamParser parser = new StreamParser(replay, new byte[65536], 4096);
+        parser.setDeliveryMode(StreamParser.DeliveryMode.VIEW);
+        parser.setMetrics(metrics);
+        RPC rpc = new RPC(replay);
+        rpc.setMetrics(metrics);
+        rpc.attach(parser);
+        rpc.addReaderHandler(new RPC.ReaderHandler() {
+            @Override
+            public boolean onRPC(int functionId, LReader reader) {
+                return true;
+            }
+        });
+
+        long start = System.nanoTime();
+        while (parser.parse() != StreamConnector.ERROR_EXIT) {
+        }
+        double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+        replay.close();
+
+        System.out.printf("Replayed %d bytes in %.3f s: %.1f MB/s, %.0f frames/s%n", replay.getBytesRead(), seconds,
+                replay.getBytesRead() / seconds / 1e6, metrics.getFrames() / seconds);
+        System.out.println("Frames by type: " + metrics.getFramesByType());
+        System.out.println("CRC failures: " + metrics.getCrcFailures() + ", bytes skipped resyncing: " + metrics.getResyncSkippedBytes() +
+                ", oversize drops: " + metrics.getOversizeDrops() + ", decode errors: " + metrics.getDecodeErrors());
+        System.out.println("Handler calls: " + rpc.getHandlerCalls() + ", max handler time: " + rpc.getMaxHandlerNanos() + " ns");
+    }
+}
@@ -0,0 +1,307 @@
+package uk.co.tstableford.rpctests.sim;
+
+import uk.co.tstableford.rpc.lib.stream.BlockStreamConnector;
+import uk.co.tstableford.rpc.lib.stream.StreamConnector;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Two connectors joined by an in memory link that behaves like a slow, noisy serial line.
+ *
+ * Each direction is throttled to a baud rate (10 bits per byte), delayed by a fixed latency
+ * and can flip bits, drop bytes and inject bursts of random garbage. Writes return straight
+ * away like a UART with a large buffer; each byte only becomes readable once it would have
+ * arrived. Reads block for up to the read timeout and then return NO_DATA, like a serial port
+ * in blocking mode.
+ */
+public class SimulatedLink {
+    public static class Config {
+        public int baudRate = 9600;
+        public long latencyMicros = 0;
+        // Chance per byte.
+        public double bitFlipRate = 0;
+        public double dropRate = 0;
+        public double garbageRate = 0;
+        public int garbageLength = 32;
+        public long readTimeoutMillis = 100;
+        public long seed = 42;
+
+        public Config baudRate(int baudRate) {
+            this.baudRate = baudRate;
+            return this;
+        }
+
+        public Config latencyMicros(long latencyMicros) {
+            this.latencyMicros = latencyMicros;
+            return this;
+        }
+
+        public Config bitFlipRate(double bitFlipRate) {
+            this.bitFlipRate = bitFlipRate;
+            return this;
+        }
+
+        public Config dropRate(double dropRate) {
+            this.dropRate = dropRate;
+            return this;
+        }
+
+        public Config garbage(double garbageRate, int garbageLength) {
+            this.garbageRate = garbageRate;
+            this.garbageLength = garbageLength;
+            return this;
+        }
+
+        public Config readTimeoutMillis(long readTimeoutMillis) {
+            this.readTimeoutMillis = readTimeoutMillis;
+            return this;
+        }
+
+        public Config seed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+    }
+
+    private final Pipe aToB, bToA;
+    private final End a, b;
+
+    public SimulatedLink(Config aToB, Config bToA) {
+        this.aToB = new Pipe(aToB);
+        this.bToA = new Pipe(bToA);
+        this.a = new End(this.bToA, this.aToB);
+        this.b = new End(this.aToB, this.bToA);
+    }
+
+    public SimulatedLink(Config config) {
+        this(config, config);
+    }
+
+    public BlockStreamConnector getA() {
+        return this.a;
+    }
+
+    public BlockStreamConnector getB() {
+        return this.b;
+    }
+
+    /**
+     * Send length random bytes from a to b, as if the line picked up noise.
+     */
+    public void injectGarbage(int length) {
+        this.aToB.garbage(length);
+    }
+
+    /**
+     * The nanoTime at which the last corrupted, dropped or garbage byte from a to b arrived,
+     * or 0 if there hasn't been one.
+     */
+    public long getLastCorruptionNanos() {
+        return this.aToB.getLastCorruptionNanos();
+    }
+
+    public long getCorruptedBytes() {
+        return this.aToB.corrupted + this.bToA.corrupted;
+    }
+
+    /**
+     * Make both ends return ERROR_EXIT.
+     */
+    public void close() {
+        this.aToB.close();
+        this.bToA.close();
+    }
+
+    private static class Chunk {
+        private final byte[] data;
+        // When the first byte arrives.
+        private final long arrival;
+        private int position = 0;
+
+        private Chunk(byte[] data, long arrival) {
+            this.data = data;
+            this.arrival = arrival;
+        }
+    }
+
+    private static class Pipe {
+        private final Config config;
+        private final long byteNanos;
+        private final Random random;
+        private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+        // When the line is next free to start sending a byte.
+        private long lineFree = 0;
+        private long lastCorruption = 0;
+        private long corrupted = 0;
+        private boolean closed = false;
+
+        private Pipe(Config config) {
+            this.config = config;
+            this.byteNanos = TimeUnit.SECONDS.toNanos(10) / config.baudRate;
+            this.random = new Random(config.seed);
+        }
+
+        private synchronized void write(byte[] data, int offset, int length) {
+            ByteBuffer out = ByteBuffer.allocate(length + length / 4 + this.config.garbageLength + 8);
+            boolean corrupt = false;
+            for (int i = offset; i < offset + length; i++) {
+                if (this.config.garbageRate > 0 && this.random.nextDouble() < this.config.garbageRate) {
+                    out = this.ensure(out, this.config.garbageLength);
+                    for (int j = 0; j < this.config.garbageLength; j++) {
+                        out.put((byte) this.random.nextInt(256));
+                    }
+                    this.corrupted += this.config.garbageLength;
+                    corrupt = true;
+                }
+                if (this.config.dropRate > 0 && this.random.nextDouble() < this.config.dropRate) {
+                    this.corrupted++;
+                    corrupt = true;
+                    continue;
+                }
+                byte value = data[i];
+                if (this.config.bitFlipRate > 0 && this.random.nextDouble() < this.config.bitFlipRate) {
+                    value ^= 1 << this.random.nextInt(8);
+                    this.corrupted++;
+                    corrupt = true;
+                }
+                out = this.ensure(out, 1);
+                out.put(value);
+            }
+            this.queue(out, corrupt);
+        }
+
+        private synchronized void garbage(int length) {
+            ByteBuffer out = ByteBuffer.allocate(length);
+            for (int i = 0; i < length; i++) {
+                out.put((byte) this.random.nextInt(256));
+            }
+            this.corrupted += length;
+            this.queue(out, true);
+        }
+
+        private ByteBuffer ensure(ByteBuffer buffer, int more) {
+            if (buffer.remaining() >= more) {
+                return buffer;
+            }
+            ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2 + more);
+            buffer.flip();
+            larger.put(buffer);
+            return larger;
+        }
+
+        private void queue(ByteBuffer out, boolean corrupt) {
+            out.flip();
+            if (!out.hasRemaining()) {
+                return;
+            }
+            byte[] data = new byte[out.remaining()];
+            out.get(data);
+            long now = System.nanoTime();
+            long start = Math.max(now, this.lineFree);
+            this.lineFree = start + data.length * this.byteNanos;
+            long arrival = start + TimeUnit.MICROSECONDS.toNanos(this.config.latencyMicros) + this.byteNanos;
+            if (corrupt) {
+                this.lastCorruption = arrival + (data.length - 1) * this.byteNanos;
+            }
+            this.chunks.add(new Chunk(data, arrival));
+            this.notifyAll();
+        }
+
+        private synchronized long getLastCorruptionNanos() {
+            return this.lastCorruption;
+        }
+
+        private synchronized int read(byte[] buffer, int offset, int length) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.config.readTimeoutMillis);
+            while (true) {
+                if (this.closed) {
+                    return StreamConnector.ERROR_EXIT;
+                }
+                long now = System.nanoTime();
+                Chunk chunk = this.chunks.peek();
+                long wait = deadline - now;
+                if (chunk != null) {
+                    // Bytes that have fully arrived by now.
+                    long arrived = now < chunk.arrival ? 0 : (now - chunk.arrival) / this.byteNanos + 1;
+                    int available = (int) Math.min(arrived, chunk.data.length) - chunk.position;
+                    if (available > 0) {
+                        int count = Math.min(available, length);
+                        System.arraycopy(chunk.data, chunk.position, buffer, offset, count);
+                        chunk.position += count;
+                        if (chunk.position == chunk.data.length) {
+                            this.chunks.poll();
+                        }
+                        return count;
+                    }
+                    wait = Math.min(wait, chunk.arrival + chunk.position * this.byteNanos - now);
+                }
+                if (deadline - now <= 0) {
+                    return StreamConnector.NO_DATA;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, Math.max(wait, 1000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return StreamConnector.NO_DATA;
+                }
+            }
+        }
+
+        private synchronized void close() {
+            this.closed = true;
+            this.notifyAll();
+        }
+    }
+
+    private static class End implements BlockStreamConnector {
+        private final Pipe in, out;
+        private final byte[] single = new byte[1];
+
+        private End(Pipe in, Pipe out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public int readData() {
+            int read = this.in.read(this.single, 0, 1);
+            return read > 0 ? this.single[0] & 0xff : read;
+        }
+
+        @Override
+        public int readData(byte[] buffer, int offset, int length) {
+            return this.in.read(buffer, offset, length);
+        }
+
+        @Override
+        public int readData(ByteBuffer buffer) {
+            if (!buffer.hasArray()) {
+                byte[] data = new byte[buffer.remaining()];
+                int read = this.in.read(data, 0, data.length);
+                if (read > 0) {
+                    buffer.put(data, 0, read);
+                }
+                return read;
+            }
+            int read = this.in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (read > 0) {
+                buffer.position(buffer.position() + read);
+            }
+            return read;
+        }
+
+        @Override
+        public int writeData(byte[] data) {
+            return this.writeData(data, 0, data.length);
+        }
+
+        @Override
+        public int writeData(byte[] data, int offset, int length) {
+            this.out.write(data, offset, length);
+            return length;
+        }
+    }
+}